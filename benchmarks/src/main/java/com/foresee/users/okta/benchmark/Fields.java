@@ -0,0 +1,28 @@
+package com.foresee.users.okta.benchmark;
+
+import java.lang.reflect.Field;
+
+/**
+ * Sets the {@code @Autowired} and {@code @Value} fields of a service without starting Spring.
+ */
+public final class Fields {
+
+    private Fields() {
+    }
+
+    public static <T> T set(T target, String name, Object value) {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return target;
+            } catch (NoSuchFieldException e) {
+                // Try the superclass
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot set " + name + " on " + type.getName(), e);
+            }
+        }
+        throw new IllegalArgumentException(target.getClass().getName() + " has no field " + name);
+    }
+}
@@ -0,0 +1,101 @@
+package com.foresee.users.okta.benchmark;
+
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.index.OktaUserIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the Okta id and foreseeId indexes, and probing them once per APP_USER row.
+ * <p>
+ * The {@code hashMaps} benchmarks keep the users in two {@link HashMap}s, as the service did before
+ * {@link OktaUserIndex}, as a baseline.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IndexBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int users;
+
+    private List<OktaUserRecord> oktaUsers;
+    private List<AppUserRecord> appUsers;
+    private OktaUserIndex index;
+    private HashMaps hashMaps;
+
+    @Setup
+    public void setUp() {
+        SyntheticUsers synthetic = new SyntheticUsers();
+        oktaUsers = synthetic.oktaUserRecords(0, users);
+        appUsers = synthetic.appUserRecords(0, users);
+        index = buildIndex();
+        hashMaps = buildHashMaps();
+    }
+
+    @Benchmark
+    public OktaUserIndex buildIndex() {
+        OktaUserIndex built = new OktaUserIndex();
+        for (OktaUserRecord user : oktaUsers) {
+            built.add(user);
+        }
+        return built;
+    }
+
+    @Benchmark
+    public HashMaps buildHashMaps() {
+        HashMaps built = new HashMaps();
+        for (OktaUserRecord user : oktaUsers) {
+            built.byOktaId.putIfAbsent(user.getId(), user);
+            if (user.getForeseeId() != null) {
+                built.byForeseeId.putIfAbsent(user.getForeseeId(), user);
+            }
+        }
+        return built;
+    }
+
+    @Benchmark
+    public void probeIndex(Blackhole blackhole) {
+        for (AppUserRecord appUser : appUsers) {
+            if (appUser.getOktaId() != null) {
+                blackhole.consume(index.findByOktaId(appUser.getOktaId()));
+            }
+            blackhole.consume(index.findByForeseeId(appUser.getId()));
+        }
+    }
+
+    @Benchmark
+    public void probeHashMap(Blackhole blackhole) {
+        for (AppUserRecord appUser : appUsers) {
+            if (appUser.getOktaId() != null) {
+                blackhole.consume(hashMaps.byOktaId.get(appUser.getOktaId()));
+            }
+            blackhole.consume(hashMaps.byForeseeId.get(appUser.getId()));
+        }
+    }
+
+    public static class HashMaps {
+        private final Map<String, OktaUserRecord> byOktaId = new HashMap<>();
+        private final Map<Long, OktaUserRecord> byForeseeId = new HashMap<>();
+    }
+}
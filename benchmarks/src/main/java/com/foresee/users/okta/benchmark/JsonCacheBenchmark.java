@@ -0,0 +1,75 @@
+package com.foresee.users.okta.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading the OktaUserRecordCache and AppUserRecordCache with {@link ObjectMapper}, in memory so that
+ * the disk is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JsonCacheBenchmark {
+
+    private static final TypeReference<List<OktaUserRecord>> OKTA_USERS = new TypeReference<List<OktaUserRecord>>() {};
+    private static final TypeReference<List<AppUserRecord>> APP_USERS = new TypeReference<List<AppUserRecord>>() {};
+
+    @Param({"100000", "1000000"})
+    private int users;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private List<OktaUserRecord> oktaUsers;
+    private List<AppUserRecord> appUsers;
+    private byte[] oktaUserCache;
+    private byte[] appUserCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        SyntheticUsers synthetic = new SyntheticUsers();
+        oktaUsers = synthetic.oktaUserRecords(0, users);
+        appUsers = synthetic.appUserRecords(0, users);
+        oktaUserCache = writeOktaUsers();
+        appUserCache = writeAppUsers();
+    }
+
+    @Benchmark
+    public byte[] writeOktaUsers() throws IOException {
+        return objectMapper.writeValueAsBytes(oktaUsers);
+    }
+
+    @Benchmark
+    public List<OktaUserRecord> readOktaUsers() throws IOException {
+        return objectMapper.readValue(oktaUserCache, OKTA_USERS);
+    }
+
+    @Benchmark
+    public byte[] writeAppUsers() throws IOException {
+        return objectMapper.writeValueAsBytes(appUsers);
+    }
+
+    @Benchmark
+    public List<AppUserRecord> readAppUsers() throws IOException {
+        return objectMapper.readValue(appUserCache, APP_USERS);
+    }
+}
@@ -0,0 +1,315 @@
+package com.foresee.users.okta.benchmark;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.okta.domain.user.OktaUser;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.domain.UserEntity;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A synthetic Okta org and the APP_USER table that goes with it.
+ * <p>
+ * User {@code i} is worked out from the seed and {@code i} alone, so any range of users can be generated on its own
+ * and comes out the same every time, however large the population. The mix of users is roughly what a production
+ * tenant looks like:
+ * </p>
+ * <ul>
+ * <li>most Okta users are ACTIVE, with some PROVISIONED, SUSPENDED, DEPROVISIONED and LOCKED_OUT</li>
+ * <li>about 1% of Okta users have no foreseeId and 3% have no APP_USER row, so they are orphans</li>
+ * <li>about 2% of APP_USER rows have no OKTA_ID and 1% point at an Okta id that does not exist</li>
+ * <li>about 5% of rows have an ACCOUNT_ENABLED that disagrees with the Okta status</li>
+ * <li>a few thousand clients share all the users</li>
+ * <li>each user is in the Okta group of its client, except for about 1% who are in another client's</li>
+ * </ul>
+ */
+public class SyntheticUsers {
+
+    public static final long FIRST_FORESEE_ID = 1_000_000L;
+    private static final String OKTA_ID_ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final DateTimeFormatter OKTA_DATE = ISODateTimeFormat.dateTime().withZoneUTC();
+    private static final DateTime EPOCH = new DateTime(2017, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    private final long seed;
+    private final int clients;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    public SyntheticUsers(long seed, int clients) {
+        this.seed = seed;
+        this.clients = clients;
+    }
+
+    public SyntheticUsers() {
+        this(42, 2000);
+    }
+
+    /**
+     * @return the 20 character Okta id of user {@code i}, unique for every {@code i}
+     */
+    public String oktaId(int i) {
+        char[] id = new char[20];
+        id[0] = '0';
+        id[1] = '0';
+        id[2] = 'u';
+        long value = mix(i, 1) & Long.MAX_VALUE;
+        // The user number goes in the low characters so that ids never collide
+        long unique = i;
+        for (int c = 19; c >= 3; c--) {
+            if (c >= 14) {
+                id[c] = OKTA_ID_ALPHABET.charAt((int) (unique % OKTA_ID_ALPHABET.length()));
+                unique /= OKTA_ID_ALPHABET.length();
+            } else {
+                id[c] = OKTA_ID_ALPHABET.charAt((int) (value % OKTA_ID_ALPHABET.length()));
+                value /= OKTA_ID_ALPHABET.length();
+            }
+        }
+        return new String(id);
+    }
+
+    /**
+     * @return the {@code i} of the Okta id, which is kept in its low characters
+     */
+    public int userNumber(String oktaId) {
+        long number = 0;
+        for (int c = 14; c < 20; c++) {
+            number = number * OKTA_ID_ALPHABET.length() + OKTA_ID_ALPHABET.indexOf(oktaId.charAt(c));
+        }
+        return (int) number;
+    }
+
+    public long foreseeId(int i) {
+        return FIRST_FORESEE_ID + i;
+    }
+
+    public long clientId(int i) {
+        return 100 + (mix(i, 2) & Long.MAX_VALUE) % clients;
+    }
+
+    /**
+     * @return the client whose Okta group user {@code i} is in
+     */
+    public long groupClientId(int i) {
+        return roll(i, 14) < 1 ? 100 + (clientId(i) - 100 + 1) % clients : clientId(i);
+    }
+
+    public String login(int i) {
+        return "user" + i + "@client" + clientId(i) + ".example.com";
+    }
+
+    public UserStatus oktaStatus(int i) {
+        int roll = roll(i, 3);
+        if (roll < 80) {
+            return UserStatus.ACTIVE;
+        } else if (roll < 88) {
+            return UserStatus.PROVISIONED;
+        } else if (roll < 93) {
+            return UserStatus.SUSPENDED;
+        } else if (roll < 97) {
+            return UserStatus.DEPROVISIONED;
+        } else if (roll < 98) {
+            return UserStatus.LOCKED_OUT;
+        } else if (roll < 99) {
+            return UserStatus.PASSWORD_EXPIRED;
+        }
+        return UserStatus.RECOVERY;
+    }
+
+    public boolean hasForeseeId(int i) {
+        return roll(i, 4) >= 1;
+    }
+
+    /**
+     * @return whether user {@code i} has an APP_USER row; the Okta users without one are orphans
+     */
+    public boolean hasAppUser(int i) {
+        return hasForeseeId(i) && roll(i, 5) >= 3;
+    }
+
+    public DateTime lastLogin(int i) {
+        return EPOCH.plusMinutes((int) ((mix(i, 6) & Long.MAX_VALUE) % (60 * 24 * 600)));
+    }
+
+    public DateTime lastUpdated(int i) {
+        return lastLogin(i).plusMinutes(5);
+    }
+
+    /**
+     * Write user {@code i} as the Okta users API returns it, profile, credentials and links included.
+     */
+    public void writeOktaUser(JsonGenerator generator, int i, String baseUrl) throws IOException {
+        String id = oktaId(i);
+        DateTime lastLogin = lastLogin(i);
+        generator.writeStartObject();
+        generator.writeStringField("id", id);
+        generator.writeStringField("status", oktaStatus(i).name());
+        generator.writeStringField("created", OKTA_DATE.print(EPOCH));
+        generator.writeStringField("activated", OKTA_DATE.print(EPOCH.plusHours(1)));
+        generator.writeStringField("statusChanged", OKTA_DATE.print(lastLogin.minusDays(30)));
+        generator.writeStringField("lastLogin", OKTA_DATE.print(lastLogin));
+        generator.writeStringField("lastUpdated", OKTA_DATE.print(lastUpdated(i)));
+        generator.writeStringField("passwordChanged", OKTA_DATE.print(lastLogin.minusDays(90)));
+        generator.writeObjectFieldStart("profile");
+        generator.writeStringField("firstName", "First" + i);
+        generator.writeStringField("lastName", "Last" + i);
+        generator.writeStringField("mobilePhone", null);
+        generator.writeStringField("secondEmail", null);
+        generator.writeStringField("login", login(i));
+        generator.writeStringField("email", login(i));
+        generator.writeStringField("clientId", Long.toString(clientId(i)));
+        if (hasForeseeId(i)) {
+            generator.writeNumberField("foreseeId", foreseeId(i));
+        }
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("credentials");
+        generator.writeObjectFieldStart("password");
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("recovery_question");
+        generator.writeStringField("question", "What is the name of your first pet?");
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("provider");
+        generator.writeStringField("type", "OKTA");
+        generator.writeStringField("name", "OKTA");
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("_links");
+        generator.writeObjectFieldStart("self");
+        generator.writeStringField("href", baseUrl + "/api/v1/users/" + id);
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return users {@code from} to {@code to}, exclusive, as a JSON array in the shape of the Okta users API
+     */
+    public byte[] oktaUsersJson(int from, int to) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((to - from) * 1024);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.writeStartArray();
+            for (int i = from; i < to; i++) {
+                writeOktaUser(generator, i, "https://example.okta.com");
+            }
+            generator.writeEndArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return users {@code from} to {@code to}, exclusive, read from their JSON the same way Feign reads them
+     */
+    public List<OktaUser> oktaUsers(int from, int to) {
+        try {
+            return objectMapper.readValue(oktaUsersJson(from, to), new TypeReference<List<OktaUser>>() {});
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return users {@code from} to {@code to}, exclusive, as the decoder reads them from the JSON, timestamps kept
+     * as the ISO text Okta sends
+     */
+    public List<OktaUserRecord> oktaUserRecords(int from, int to) {
+        List<OktaUserRecord> records = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            DateTime lastLogin = lastLogin(i);
+            records.add(new OktaUserRecord(oktaId(i), oktaStatus(i), login(i), clientId(i),
+                    hasForeseeId(i) ? foreseeId(i) : null,
+                    OKTA_DATE.print(lastLogin), OKTA_DATE.print(lastLogin.minusDays(90))));
+        }
+        return records;
+    }
+
+    /**
+     * @return the APP_USER row of user {@code i}, or null if the user is an orphan in Okta
+     */
+    public UserEntity userEntity(int i) {
+        if (!hasAppUser(i)) {
+            return null;
+        }
+        UserStatus status = oktaStatus(i);
+        boolean enabled = status != UserStatus.SUSPENDED && status != UserStatus.DEPROVISIONED;
+        if (roll(i, 7) < 5) {
+            enabled = !enabled;
+        }
+        int oktaIdRoll = roll(i, 8);
+
+        UserEntity entity = new UserEntity();
+        entity.setId(foreseeId(i));
+        entity.setClientId(clientId(i));
+        entity.setVersion((long) roll(i, 9));
+        entity.setUserName("user" + i);
+        entity.setUserNameSuffix("@client" + clientId(i) + ".example.com");
+        entity.setEmail(login(i));
+        entity.setFirstName("First" + i);
+        entity.setLastName("Last" + i);
+        entity.setAccountEnabled(enabled ? "Y" : "N");
+        entity.setLastLogonDate(lastLogin(i));
+        entity.setAuthenticationProvider(roll(i, 10) < 90 ? "FORESEE" : "SAML");
+        entity.setPassword(roll(i, 11) < 95 ? "{bcrypt}" + Long.toHexString(mix(i, 12)) : null);
+        entity.setPasswordMigrated(status == UserStatus.ACTIVE && roll(i, 13) < 70 ? "Y" : "N");
+        entity.setOktaStatus("Y".equals(entity.getPasswordMigrated()) ? "PASSWORD_MIGRATED" : "CREATED");
+        if (oktaIdRoll >= 3) {
+            entity.setOktaId(oktaId(i));
+        } else if (oktaIdRoll >= 1) {
+            // Points at an Okta user that does not exist
+            entity.setOktaId(oktaId(Integer.MAX_VALUE - i));
+        }
+        return entity;
+    }
+
+    /**
+     * @return the APP_USER rows of users {@code from} to {@code to}, exclusive, leaving out the orphans
+     */
+    public List<UserEntity> userEntities(int from, int to) {
+        List<UserEntity> entities = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            UserEntity entity = userEntity(i);
+            if (entity != null) {
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    public List<AppUserRecord> appUserRecords(int from, int to) {
+        List<AppUserRecord> records = new ArrayList<>(to - from);
+        for (UserEntity entity : userEntities(from, to)) {
+            records.add(AppUserRecord.from(entity));
+        }
+        return records;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    // A percentage from 0 to 99 for one property of user i
+    private int roll(int i, int property) {
+        return (int) ((mix(i, property) & Long.MAX_VALUE) % 100);
+    }
+
+    // SplitMix64 over the seed, the user and the property
+    private long mix(int i, int property) {
+        long z = seed + i * 0x9E3779B97F4A7C15L + property * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,61 @@
+package com.foresee.users.okta.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.okta.domain.user.OktaUser;
+import com.foresee.users.okta.benchmark.SyntheticUsers;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one page of the Okta users API, into {@link OktaUserRecord}s with {@link OktaUserRecordDecoder} and,
+ * as the baseline, into full {@link OktaUser}s with data binding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OktaPageDecodeBenchmark {
+
+    @Param({"200", "1000"})
+    private int pageSize;
+
+    private ObjectMapper objectMapper;
+    private byte[] page;
+
+    @Setup
+    public void setUp() {
+        SyntheticUsers synthetic = new SyntheticUsers();
+        objectMapper = synthetic.getObjectMapper();
+        page = synthetic.oktaUsersJson(0, pageSize);
+    }
+
+    @Benchmark
+    public List<OktaUserRecord> decodeRecords() throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(page)) {
+            return OktaUserRecordDecoder.readUsers(parser);
+        }
+    }
+
+    @Benchmark
+    public List<OktaUser> bindOktaUsers() throws IOException {
+        return objectMapper.readValue(page, new TypeReference<List<OktaUser>>() {});
+    }
+}
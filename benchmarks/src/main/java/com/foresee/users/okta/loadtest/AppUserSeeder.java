@@ -0,0 +1,154 @@
+package com.foresee.users.okta.loadtest;
+
+import com.foresee.users.okta.benchmark.SyntheticUsers;
+import com.foresee.users.okta.domain.UserEntity;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Fills an embedded H2 database with the APP_USER rows of a {@link SyntheticUsers} org.
+ * <p>
+ * The table has the columns {@link UserEntity} maps. Rows are inserted with JDBC batches, and the size of the
+ * population is recorded, so a database already seeded with the same users is reused instead of being filled again.
+ * </p>
+ */
+public class AppUserSeeder {
+
+    private static final int BATCH_SIZE = 5000;
+
+    private static final String CREATE_TABLE = "CREATE TABLE APP_USER ("
+            + "ID BIGINT PRIMARY KEY, "
+            + "CLIENT_ID BIGINT NOT NULL, "
+            + "VERSION BIGINT, "
+            + "USERNAME VARCHAR(255) NOT NULL, "
+            + "USERNAME_SUFFIX VARCHAR(255), "
+            + "PASSWORD VARCHAR(255), "
+            + "FIRST_NAME VARCHAR(255) NOT NULL, "
+            + "LAST_NAME VARCHAR(255) NOT NULL, "
+            + "EMAIL VARCHAR(255) NOT NULL, "
+            + "PHONE_NUMBER VARCHAR(64), "
+            + "ACCOUNT_ENABLED VARCHAR(1), "
+            + "ACCOUNT_EXPIRED VARCHAR(1), "
+            + "ACCOUNT_LOCKED VARCHAR(1), "
+            + "SESSION_ACTIVE VARCHAR(1), "
+            + "SINGLE_USE VARCHAR(1), "
+            + "IS_PROFILE_LOCKED VARCHAR(1), "
+            + "PASSWORD_STATUS VARCHAR(64), "
+            + "AUTHENTICATION_PROVIDER VARCHAR(64), "
+            + "EXTERNAL_ID VARCHAR(255), "
+            + "OKTA_ID VARCHAR(64), "
+            + "OKTA_STATUS VARCHAR(64), "
+            + "CHALLENGE_QUESTION_SET VARCHAR(255), "
+            + "PASSWORD_MIGRATED VARCHAR(1), "
+            + "SHADOW VARCHAR(1), "
+            + "SHADOW_ID BIGINT, "
+            + "CREATE_DATE TIMESTAMP, "
+            + "LAST_MODIFIED TIMESTAMP, "
+            + "LAST_LOGON_DATE TIMESTAMP, "
+            + "FAILED_LOGON_DATE TIMESTAMP, "
+            + "LOGON_COUNT BIGINT, "
+            + "FAILED_LOGON_COUNT BIGINT)";
+
+    private static final String INSERT = "INSERT INTO APP_USER (ID, CLIENT_ID, VERSION, USERNAME, USERNAME_SUFFIX, "
+            + "PASSWORD, FIRST_NAME, LAST_NAME, EMAIL, ACCOUNT_ENABLED, AUTHENTICATION_PROVIDER, OKTA_ID, OKTA_STATUS, "
+            + "PASSWORD_MIGRATED, SHADOW, LAST_LOGON_DATE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    public AppUserSeeder(String url, String username, String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Make sure the database holds the APP_USER rows of the first {@code userCount} users, and nothing else.
+     *
+     * @return the number of APP_USER rows
+     */
+    public int seed(SyntheticUsers users, int userCount) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, username, password)) {
+            if (isSeeded(connection, userCount)) {
+                try (Statement statement = connection.createStatement();
+                     ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM APP_USER")) {
+                    rows.next();
+                    return rows.getInt(1);
+                }
+            }
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS APP_USER");
+                statement.execute("DROP TABLE IF EXISTS LOAD_TEST_SEED");
+                statement.execute(CREATE_TABLE);
+                statement.execute("CREATE INDEX APP_USER_OKTA_ID ON APP_USER (OKTA_ID)");
+                statement.execute("CREATE TABLE LOAD_TEST_SEED (USER_COUNT INT)");
+            }
+
+            connection.setAutoCommit(false);
+            int rows = 0;
+            try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+                for (int i = 0; i < userCount; i++) {
+                    UserEntity user = users.userEntity(i);
+                    if (user == null) {
+                        continue;
+                    }
+                    bind(insert, user);
+                    insert.addBatch();
+                    if (++rows % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                        connection.commit();
+                    }
+                }
+                insert.executeBatch();
+            }
+            try (PreparedStatement seed = connection.prepareStatement("INSERT INTO LOAD_TEST_SEED VALUES (?)")) {
+                seed.setInt(1, userCount);
+                seed.executeUpdate();
+            }
+            connection.commit();
+            return rows;
+        }
+    }
+
+    private static boolean isSeeded(Connection connection, int userCount) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet seed = statement.executeQuery("SELECT USER_COUNT FROM LOAD_TEST_SEED")) {
+            return seed.next() && seed.getInt(1) == userCount;
+        } catch (SQLException e) {
+            // Not seeded yet
+            return false;
+        }
+    }
+
+    private static void bind(PreparedStatement insert, UserEntity user) throws SQLException {
+        insert.setLong(1, user.getId());
+        insert.setLong(2, user.getClientId());
+        insert.setLong(3, user.getVersion());
+        insert.setString(4, user.getUserName());
+        insert.setString(5, user.getUserNameSuffix());
+        insert.setString(6, user.getPassword());
+        insert.setString(7, user.getFirstName());
+        insert.setString(8, user.getLastName());
+        insert.setString(9, user.getEmail());
+        insert.setString(10, user.getAccountEnabled());
+        insert.setString(11, user.getAuthenticationProvider());
+        insert.setString(12, user.getOktaId());
+        insert.setString(13, user.getOktaStatus());
+        insert.setString(14, user.getPasswordMigrated());
+        insert.setString(15, "N");
+        if (user.getLastLogonDate() != null) {
+            insert.setTimestamp(16, new Timestamp(user.getLastLogonDate().getMillis()));
+        } else {
+            insert.setNull(16, Types.TIMESTAMP);
+        }
+    }
+}
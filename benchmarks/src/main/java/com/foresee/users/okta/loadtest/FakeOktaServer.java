@@ -0,0 +1,399 @@
+package com.foresee.users.okta.loadtest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.benchmark.SyntheticUsers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the parts of the Okta API the service calls, serving the users of a {@link SyntheticUsers} org.
+ * <p>
+ * {@code GET /api/v1/users} pages through the users with {@code limit} and {@code after}, and returns the next page
+ * as a {@code link: <...?after=...&limit=...>; rel="next"} header, as Okta does. The {@code status eq} and
+ * {@code lastUpdated} comparisons used by the partitioned and incremental scans are supported in {@code filter}, and
+ * the {@code profile.clientId eq} alternatives used by a sharded scan in {@code search}.
+ * Lifecycle calls succeed without changing anything, and every user is in one group, named {@code client-<clientId>}
+ * after {@link SyntheticUsers#groupClientId}.
+ * </p>
+ * <p>
+ * Each endpoint has its own rate limit window with the {@code X-Rate-Limit-*} headers Okta sends, and answers 429
+ * once the window is used up. On top of that, every call can be delayed and a share of calls can be failed with
+ * 429 at random, to see how the service copes with a slow or busy org.
+ * </p>
+ */
+public class FakeOktaServer implements AutoCloseable {
+
+    private static final Pattern USER_PATH = Pattern.compile("/api/v1/users/([^/]+)(/.*)?");
+    private static final Pattern CONDITION = Pattern.compile("(\\w+) (eq|gt|ge|lt|le) \"([^\"]*)\"");
+    private static final Pattern CLIENT_CONDITION = Pattern.compile("profile\\.clientId eq \"(\\d+)\"");
+    private static final int DEFAULT_LIMIT = 200;
+    private static final int MAX_LIMIT = 1000;
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private final SyntheticUsers users;
+    private final int userCount;
+    private final Settings settings;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Map<String, Window> windows = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public FakeOktaServer(SyntheticUsers users, int userCount, Settings settings) {
+        this.users = users;
+        this.userCount = userCount;
+        this.settings = settings;
+    }
+
+    public FakeOktaServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", settings.port), 1024);
+        executor = Executors.newFixedThreadPool(settings.threads);
+        server.setExecutor(executor);
+        server.createContext("/api/v1/users", this::handle);
+        server.start();
+        return this;
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            String endpoint = getEndpoint(exchange.getRequestURI().getPath());
+            delay();
+            Window window = getWindow(endpoint);
+            boolean allowed = window.tryAcquire();
+            window.addHeaders(exchange);
+            if (!allowed || ThreadLocalRandom.current().nextDouble() < settings.tooManyRequestsRate) {
+                rateLimited.incrementAndGet();
+                sendJson(exchange, 429,
+                        "{\"errorCode\":\"E0000047\",\"errorSummary\":\"API call exceeded rate limit\"}");
+                return;
+            }
+
+            switch (endpoint) {
+                case "users":
+                    listUsers(exchange);
+                    break;
+                case "lifecycle":
+                    sendJson(exchange, 200, "{}");
+                    break;
+                case "groups":
+                    listGroups(exchange);
+                    break;
+                default:
+                    sendJson(exchange, 404, "{\"errorCode\":\"E0000007\",\"errorSummary\":\"Not found\"}");
+            }
+        } catch (IllegalArgumentException e) {
+            sendJson(exchange, 400, "{\"errorCode\":\"E0000031\",\"errorSummary\":\"Invalid search criteria\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // The endpoints that Okta rate limits separately
+    private static String getEndpoint(String path) {
+        Matcher userPath = USER_PATH.matcher(path);
+        if (!userPath.matches()) {
+            return "users";
+        }
+        String rest = userPath.group(2);
+        if (rest == null) {
+            return "user";
+        }
+        return rest.startsWith("/lifecycle") ? "lifecycle" : "groups";
+    }
+
+    private void listGroups(HttpExchange exchange) throws IOException {
+        Matcher userPath = USER_PATH.matcher(exchange.getRequestURI().getPath());
+        int i = userPath.matches() && userPath.group(1).length() == 20 ? users.userNumber(userPath.group(1)) : -1;
+        if (i < 0 || i >= userCount) {
+            sendJson(exchange, 404, "{\"errorCode\":\"E0000007\",\"errorSummary\":\"Not found\"}");
+            return;
+        }
+        long clientId = users.groupClientId(i);
+        sendJson(exchange, 200,
+                "[{\"id\":\"00g" + clientId + "\",\"profile\":{\"name\":\"client-" + clientId + "\"}}]");
+    }
+
+    private void listUsers(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+        limit = Math.min(MAX_LIMIT, limit);
+        int position = query.containsKey("after") ? Integer.parseInt(query.get("after")) + 1 : 0;
+        Filter filter = Filter.parse(query.get("filter"));
+        filter.parseSearch(query.get("search"));
+
+        boolean gzip = String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding")).contains("gzip");
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        if (gzip) {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+
+        // Find the page before sending anything, so that the link header can say whether there is another one
+        int[] page = new int[limit];
+        int found = 0;
+        while (position < userCount && found < limit) {
+            if (filter.matches(users, position)) {
+                page[found++] = position;
+            }
+            position++;
+        }
+        boolean hasNext = found == limit && position < userCount;
+
+        String self = getUrl() + "/api/v1/users?limit=" + limit;
+        exchange.getResponseHeaders().add("link", "<" + self + ">; rel=\"self\"");
+        if (hasNext) {
+            exchange.getResponseHeaders().add("link",
+                    "<" + getUrl() + "/api/v1/users?after=" + page[found - 1] + "&limit=" + limit + ">; rel=\"next\"");
+        }
+        exchange.sendResponseHeaders(200, 0);
+
+        OutputStream body = gzip ? new GZIPOutputStream(exchange.getResponseBody(), 1 << 16)
+                : exchange.getResponseBody();
+        try (JsonGenerator generator = jsonFactory.createGenerator(body)) {
+            generator.writeStartArray();
+            for (int i = 0; i < found; i++) {
+                users.writeOktaUser(generator, page[i], getUrl());
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private void delay() {
+        long millis = settings.latencyMillis;
+        if (settings.latencyJitterMillis > 0) {
+            millis += ThreadLocalRandom.current().nextLong(settings.latencyJitterMillis);
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized Window getWindow(String endpoint) {
+        return windows.computeIfAbsent(endpoint, e -> new Window("users".equals(e)
+                ? settings.usersRateLimit
+                : settings.userRateLimit));
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && equals < parameter.length() - 1) {
+                parameters.put(parameter.substring(0, equals),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * How the fake org behaves.
+     */
+    public static class Settings {
+        // 0 picks a free port
+        private int port;
+        private int threads = 64;
+        // Calls per minute, as for a large Okta org
+        private int usersRateLimit = 600;
+        private int userRateLimit = 1200;
+        private long latencyMillis = 50;
+        private long latencyJitterMillis = 50;
+        private double tooManyRequestsRate;
+
+        public Settings port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Settings threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Settings usersRateLimit(int usersRateLimit) {
+            this.usersRateLimit = usersRateLimit;
+            return this;
+        }
+
+        public Settings userRateLimit(int userRateLimit) {
+            this.userRateLimit = userRateLimit;
+            return this;
+        }
+
+        public Settings latency(long latencyMillis, long latencyJitterMillis) {
+            this.latencyMillis = latencyMillis;
+            this.latencyJitterMillis = latencyJitterMillis;
+            return this;
+        }
+
+        public Settings tooManyRequestsRate(double tooManyRequestsRate) {
+            this.tooManyRequestsRate = tooManyRequestsRate;
+            return this;
+        }
+    }
+
+    /**
+     * A fixed one minute rate limit window, as Okta uses.
+     */
+    private static class Window {
+        private final int limit;
+        private long resetAtMillis;
+        private int remaining;
+
+        Window(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized boolean tryAcquire() {
+            roll();
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            return true;
+        }
+
+        synchronized void addHeaders(HttpExchange exchange) {
+            exchange.getResponseHeaders().add("X-Rate-Limit-Limit", Integer.toString(limit));
+            exchange.getResponseHeaders().add("X-Rate-Limit-Remaining", Integer.toString(remaining));
+            exchange.getResponseHeaders().add("X-Rate-Limit-Reset", Long.toString(resetAtMillis / 1000));
+        }
+
+        private void roll() {
+            long now = System.currentTimeMillis();
+            if (now >= resetAtMillis) {
+                resetAtMillis = now + WINDOW_MILLIS;
+                remaining = limit;
+            }
+        }
+    }
+
+    /**
+     * The conjunction of comparisons in an Okta filter, on status and lastUpdated only, and the clients of a search.
+     */
+    private static class Filter {
+        private Set<Long> clientIds;
+        private UserStatus status;
+        private DateTime updatedFrom;
+        private boolean fromInclusive;
+        private DateTime updatedTo;
+        private boolean toInclusive;
+
+        static Filter parse(String expression) {
+            Filter filter = new Filter();
+            if (expression == null || expression.trim().isEmpty()) {
+                return filter;
+            }
+            for (String condition : expression.split(" and ")) {
+                Matcher matcher = CONDITION.matcher(condition.trim());
+                if (!matcher.matches()) {
+                    throw new IllegalArgumentException("Unsupported filter " + condition);
+                }
+                String attribute = matcher.group(1);
+                String operator = matcher.group(2);
+                String value = matcher.group(3);
+                if ("status".equals(attribute) && "eq".equals(operator)) {
+                    filter.status = UserStatus.valueOf(value);
+                } else if ("lastUpdated".equals(attribute) && operator.startsWith("g")) {
+                    filter.updatedFrom = DateTime.parse(value);
+                    filter.fromInclusive = "ge".equals(operator);
+                } else if ("lastUpdated".equals(attribute) && operator.startsWith("l")) {
+                    filter.updatedTo = DateTime.parse(value);
+                    filter.toInclusive = "le".equals(operator);
+                } else {
+                    throw new IllegalArgumentException("Unsupported filter " + condition);
+                }
+            }
+            return filter;
+        }
+
+        void parseSearch(String expression) {
+            if (expression == null || expression.trim().isEmpty()) {
+                return;
+            }
+            clientIds = new HashSet<>();
+            for (String condition : expression.split(" or ")) {
+                Matcher matcher = CLIENT_CONDITION.matcher(condition.trim());
+                if (!matcher.matches()) {
+                    throw new IllegalArgumentException("Unsupported search " + condition);
+                }
+                clientIds.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+
+        boolean matches(SyntheticUsers users, int i) {
+            if (clientIds != null && !clientIds.contains(users.clientId(i))) {
+                return false;
+            }
+            if (status != null && users.oktaStatus(i) != status) {
+                return false;
+            }
+            if (updatedFrom == null && updatedTo == null) {
+                return true;
+            }
+            long updated = users.lastUpdated(i).getMillis();
+            if (updatedFrom != null && (fromInclusive ? updated < updatedFrom.getMillis()
+                    : updated <= updatedFrom.getMillis())) {
+                return false;
+            }
+            return updatedTo == null || (toInclusive ? updated <= updatedTo.getMillis()
+                    : updated < updatedTo.getMillis());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.foresee.users.okta.loadtest;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.foresee.users.okta.Application;
+import com.foresee.users.okta.benchmark.SyntheticUsers;
+import com.foresee.users.okta.service.UserService;
+import com.google.common.base.Stopwatch;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole reconciliation, {@link UserService#execute()} included, against a {@link FakeOktaServer} and an
+ * embedded H2 APP_USER table holding the same synthetic users, and prints the end to end throughput.
+ * <p>
+ * The run is set up with system properties:
+ * </p>
+ * <ul>
+ * <li>{@code loadtest.users}, the size of the Okta org, 1,000,000 by default</li>
+ * <li>{@code loadtest.seed} and {@code loadtest.clients}, which pick the synthetic users</li>
+ * <li>{@code loadtest.latency-millis} and {@code loadtest.latency-jitter-millis}, added to every Okta call</li>
+ * <li>{@code loadtest.too-many-requests-rate}, the share of Okta calls failed with 429 at random</li>
+ * <li>{@code loadtest.users-rate-limit} and {@code loadtest.user-rate-limit}, the Okta calls allowed per minute</li>
+ * <li>{@code loadtest.dir}, where the database, reports and metrics go, {@code target/loadtest} by default</li>
+ * </ul>
+ * <p>
+ * Any {@code okta.*} or {@code spring.*} system property is passed on to the service as usual, so the scan and
+ * reconciliation modes can be compared, for example with {@code -Dokta.reconciliation.streaming=true}. The database
+ * is only seeded again when the users change, so repeated runs measure the service and not the seeding.
+ * </p>
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        int userCount = Integer.getInteger("loadtest.users", 1_000_000);
+        SyntheticUsers users = new SyntheticUsers(Long.getLong("loadtest.seed", 42),
+                Integer.getInteger("loadtest.clients", 2000));
+        File dir = new File(System.getProperty("loadtest.dir", "target/loadtest"));
+        dir.mkdirs();
+
+        String databaseUrl = "jdbc:h2:" + new File(dir, "app_user").getAbsolutePath();
+        Stopwatch seeding = Stopwatch.createStarted();
+        int appUsers = new AppUserSeeder(databaseUrl, "sa", "").seed(users, userCount);
+        System.out.printf("APP_USER has %,d rows for %,d Okta users (%s)%n", appUsers, userCount, seeding);
+
+        FakeOktaServer.Settings settings = new FakeOktaServer.Settings()
+                .latency(Long.getLong("loadtest.latency-millis", 50), Long.getLong("loadtest.latency-jitter-millis", 50))
+                .tooManyRequestsRate(Double.parseDouble(System.getProperty("loadtest.too-many-requests-rate", "0")))
+                .usersRateLimit(Integer.getInteger("loadtest.users-rate-limit", 600))
+                .userRateLimit(Integer.getInteger("loadtest.user-rate-limit", 1200));
+
+        try (FakeOktaServer okta = new FakeOktaServer(users, userCount, settings).start()) {
+            // As system properties, so that they win over application.yml
+            System.setProperty("okta.url", okta.getUrl());
+            System.setProperty("okta.api-token", "load-test");
+            System.setProperty("okta.metrics.summary-file", new File(dir, "RunMetrics.json").getPath());
+            System.setProperty("spring.datasource.url", databaseUrl);
+            System.setProperty("spring.datasource.username", "sa");
+            System.setProperty("spring.datasource.password", "");
+            System.setProperty("spring.datasource.driverClassName", "org.h2.Driver");
+            System.setProperty("spring.datasource.tomcat.validation-query", "SELECT 1");
+            System.setProperty("spring.jpa.hibernate.ddl-auto", "none");
+            System.setProperty("eureka.client.enabled", "false");
+            ConfigurableApplicationContext ctx = new SpringApplicationBuilder(Application.class)
+                    .web(false)
+                    .run(args);
+            try {
+                Stopwatch stopwatch = Stopwatch.createStarted();
+                ctx.getBean(UserService.class).execute();
+                long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+                System.out.printf("Reconciled %,d Okta users in %s, %,.0f users/s%n",
+                        userCount, stopwatch, userCount * 1000.0 / Math.max(1, millis));
+                System.out.printf("Okta calls: %,d, of which %,d were answered with 429%n",
+                        okta.getRequests(), okta.getRateLimited());
+                printLatencies(ctx.getBean(MetricRegistry.class));
+            } finally {
+                ctx.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void printLatencies(MetricRegistry metricRegistry) {
+        for (Map.Entry<String, Timer> timer : metricRegistry.getTimers().entrySet()) {
+            Snapshot snapshot = timer.getValue().getSnapshot();
+            System.out.printf("%-40s count %,10d  p50 %,8.1f ms  p99 %,8.1f ms  max %,8.1f ms%n",
+                    timer.getKey(), timer.getValue().getCount(),
+                    snapshot.getMedian() / 1_000_000, snapshot.get99thPercentile() / 1_000_000,
+                    snapshot.getMax() / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.foresee.okta.util.OktaUserUtil;
+import com.foresee.users.okta.benchmark.Fields;
+import com.foresee.users.okta.benchmark.SyntheticUsers;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.index.OktaUserIndex;
+import com.foresee.users.okta.service.UserService.LogFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The classification step of {@code handleUsers}: every APP_USER row matched against the Okta index and run through
+ * the rule engine, with the report rows counted instead of written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ClassificationBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int users;
+
+    // okta.reconciliation.parallelism; 0 classifies on the calling thread
+    @Param({"0", "4"})
+    private int parallelism;
+
+    private UserService userService;
+    private OktaUserIndex oktaUsers;
+    private List<AppUserRecord> appUsers;
+
+    @Setup
+    public void setUp() {
+        SyntheticUsers synthetic = new SyntheticUsers();
+        oktaUsers = new OktaUserIndex();
+        for (OktaUserRecord user : synthetic.oktaUserRecords(0, users)) {
+            oktaUsers.add(user);
+        }
+        appUsers = synthetic.appUserRecords(0, users);
+
+        ReconciliationRuleEngine ruleEngine = new ReconciliationRuleEngine();
+        ruleEngine.init();
+        userService = new UserService();
+        Fields.set(userService, "ruleEngine", ruleEngine);
+        Fields.set(userService, "oktaUserUtil", new OktaUserUtil());
+        Fields.set(userService, "metricRegistry", new MetricRegistry());
+        Fields.set(userService, "classificationParallelism", parallelism);
+        userService.registerMetrics();
+    }
+
+    @Benchmark
+    public long classify() {
+        CountingSink reports = new CountingSink();
+        BitSet claimed = userService.classify(appUsers, oktaUsers, reports);
+        return reports.rows + claimed.cardinality();
+    }
+
+    private static class CountingSink implements ReportSink {
+        private long rows;
+
+        @Override
+        public synchronized void write(LogFile logFile, String message) {
+            rows++;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.foresee.users.okta.benchmark.Fields;
+import com.foresee.users.okta.benchmark.SyntheticUsers;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.service.UserService.LogFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The CSV output of a run: formatting each matched row with {@link ReconciledUser#toCsv()}, and writing the rows
+ * to FullUserList.csv through {@link ReportWriter}, flushed and forced to disk, as plain CSV, as gzipped CSV, or as
+ * plain CSV plus the columnar report.
+ * <p>
+ * Like the service, the writer truncates the reports under {@code logs/} in the working directory.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReportWriterBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int users;
+
+    // Plain CSV, gzipped CSV, or plain CSV plus the columnar reports
+    @Param({"CSV", "COMPRESSED", "COLUMNAR"})
+    private String format;
+
+    private List<ReconciledUser> rows;
+    private ReportWriter reportWriter;
+
+    @Setup
+    public void setUp() {
+        SyntheticUsers synthetic = new SyntheticUsers();
+        Map<String, OktaUserRecord> oktaUsers = synthetic.oktaUserRecords(0, users).stream()
+                .collect(Collectors.toMap(OktaUserRecord::getId, Function.identity()));
+        List<AppUserRecord> appUsers = synthetic.appUserRecords(0, users);
+        rows = appUsers.stream()
+                .filter(appUser -> appUser.getOktaId() != null && oktaUsers.containsKey(appUser.getOktaId()))
+                .map(appUser -> new ReconciledUser(appUser, oktaUsers.get(appUser.getOktaId())))
+                .collect(Collectors.toList());
+
+        reportWriter = new ReportWriter();
+        Fields.set(reportWriter, "metricRegistry", new MetricRegistry());
+        Fields.set(reportWriter, "queueCapacity", 65536);
+        Fields.set(reportWriter, "compression", "COMPRESSED".equals(format));
+        Fields.set(reportWriter, "blockSize", 1 << 20);
+        Fields.set(reportWriter, "compressionLevel", 1);
+        Fields.set(reportWriter, "columnar", "COLUMNAR".equals(format));
+    }
+
+    @Benchmark
+    public long formatRows() {
+        long length = 0;
+        for (ReconciledUser row : rows) {
+            // toCsv caches the row, so format it from scratch each time
+            length += new ReconciledUser(row.getForeseeUser(), row.getOktaUser()).toCsv().length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public void writeRows() throws IOException {
+        reportWriter.open();
+        try {
+            for (ReconciledUser row : rows) {
+                reportWriter.write(LogFile.FULL_USER_LIST, row.toCsv());
+            }
+        } finally {
+            reportWriter.close();
+        }
+    }
+}
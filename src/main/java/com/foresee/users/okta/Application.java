@@ -19,6 +19,12 @@ public class Application {
                 .application()
                 .run(args);
 
+        if (ctx.getEnvironment().getProperty("okta.daemon.enabled", Boolean.class, false)) {
+            // ReconciliationDaemon and the query API take over from here; the context is closed when the JVM stops
+            log.info("Running as a daemon");
+            return;
+        }
+
         log.debug("Starting...");
         Stopwatch stopwatch = Stopwatch.createStarted();
 
@@ -0,0 +1,106 @@
+package com.foresee.users.okta.client;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the pooled HTTP client used by {@link OktaUsersClient} does: requests sent, connections opened, and
+ * response bytes received before and after decompression, where the server says how many there were.
+ * <p>
+ * Requests minus connections opened is the number of requests that reused a kept-alive connection. The counts and
+ * the state of the pool are logged when the application shuts down, and on demand with {@link #log()}.
+ * </p>
+ */
+@Component
+@Log4j2
+public class HttpConnectionStats {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder();
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+
+    public void setConnectionManager(PoolingHttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * @return a connection factory that counts every connection it opens
+     */
+    public HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> countingConnectionFactory() {
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> factory =
+                ManagedHttpClientConnectionFactory.INSTANCE;
+        return (route, config) -> {
+            connectionsOpened.increment();
+            return factory.create(route, config);
+        };
+    }
+
+    public HttpRequestInterceptor requestCounter() {
+        return (request, context) -> requests.increment();
+    }
+
+    /**
+     * Must run before the response is decompressed, so that it sees the encoding and length sent by the server.
+     */
+    public HttpResponseInterceptor responseCounter() {
+        return (response, context) -> {
+            if (response.getEntity() == null) {
+                return;
+            }
+            if (response.getFirstHeader(HttpHeaders.CONTENT_ENCODING) != null) {
+                compressedResponses.increment();
+            }
+            long length = response.getEntity().getContentLength();
+            if (length > 0) {
+                wireBytes.add(length);
+            }
+        };
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getReusedConnections() {
+        return Math.max(0, requests.sum() - connectionsOpened.sum());
+    }
+
+    public long getCompressedResponses() {
+        return compressedResponses.sum();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    public PoolStats getPoolStats() {
+        PoolingHttpClientConnectionManager manager = connectionManager;
+        return manager != null ? manager.getTotalStats() : null;
+    }
+
+    @PreDestroy
+    public void log() {
+        log.info("Okta HTTP: {} requests over {} connections ({} reused), {} compressed responses, {} bytes with a "
+                        + "known length, pool {}",
+                getRequests(), getConnectionsOpened(), getReusedConnections(), getCompressedResponses(),
+                getWireBytes(), getPoolStats());
+    }
+}
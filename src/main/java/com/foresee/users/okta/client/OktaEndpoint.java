@@ -0,0 +1,24 @@
+package com.foresee.users.okta.client;
+
+/**
+ * Okta API endpoints that are rate limited independently of each other.
+ * API Reference: https://developer.okta.com/docs/api/getting_started/rate-limits
+ */
+public enum OktaEndpoint {
+    /**
+     * List, search and create users
+     */
+    USERS,
+    /**
+     * Get, update and delete a single user
+     */
+    USER,
+    /**
+     * Lifecycle operations on a single user, e.g. suspend or deactivate
+     */
+    USER_LIFECYCLE,
+    /**
+     * Groups assigned to a user
+     */
+    USER_GROUPS
+}
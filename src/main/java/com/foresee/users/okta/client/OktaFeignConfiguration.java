@@ -0,0 +1,25 @@
+package com.foresee.users.okta.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import feign.codec.Decoder;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.boot.autoconfigure.web.HttpMessageConverters;
+import org.springframework.cloud.netflix.feign.support.ResponseEntityDecoder;
+import org.springframework.cloud.netflix.feign.support.SpringDecoder;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * Feign configuration for {@link OktaUsersClient}.
+ * <p>
+ * Deliberately not a {@code @Configuration}, so that component scanning does not make these beans the default for
+ * every Feign client.
+ * </p>
+ */
+public class OktaFeignConfiguration {
+
+    @Bean
+    public Decoder feignDecoder(ObjectFactory<HttpMessageConverters> messageConverters, ObjectMapper objectMapper) {
+        return new ResponseEntityDecoder(
+                new OktaUserRecordDecoder(objectMapper.getFactory(), new SpringDecoder(messageConverters)));
+    }
+}
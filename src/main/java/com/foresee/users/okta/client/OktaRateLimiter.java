@@ -0,0 +1,254 @@
+package com.foresee.users.okta.client;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import feign.FeignException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Throttles calls made through {@link OktaUsersClient} using the rate limit headers Okta returns with each response.
+ * <p>
+ * Every endpoint keeps its own budget from {@code X-Rate-Limit-Limit}, {@code X-Rate-Limit-Remaining} and
+ * {@code X-Rate-Limit-Reset}. Calls are spread evenly over what is left of the current window, the number of calls
+ * in flight is capped by the remaining budget, and a reserve is held back so that other users of the same Okta org
+ * are not starved. When the budget is used up calls wait for the window to reset instead of running into 429s.
+ * A 429 that happens anyway is retried once the window resets.
+ * </p>
+ * <p>
+ * Per endpoint, the latency of each call, the time spent waiting for the budget, retries and failures are recorded
+ * as {@code okta.<endpoint>.*} metrics.
+ * </p>
+ */
+@Component
+@Log4j2
+public class OktaRateLimiter {
+
+    static final String HEADER_LIMIT = "X-Rate-Limit-Limit";
+    static final String HEADER_REMAINING = "X-Rate-Limit-Remaining";
+    static final String HEADER_RESET = "X-Rate-Limit-Reset";
+    // Allow for clock skew between us and Okta when waiting for a window to reset
+    private static final long RESET_MARGIN_MILLIS = 1000;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    @Value("${okta.rate-limit.max-concurrency:8}")
+    private int maxConcurrency;
+
+    @Value("${okta.rate-limit.reserve:0.1}")
+    private double reserve;
+
+    @Value("${okta.rate-limit.max-retries:5}")
+    private int maxRetries;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private final Map<OktaEndpoint, Budget> budgets = new EnumMap<>(OktaEndpoint.class);
+    // Epoch milliseconds, compared with X-Rate-Limit-Reset; replaced in tests
+    LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Make a call against an endpoint once its budget allows it, and update the budget from the response headers
+     * if the call returns a {@link ResponseEntity}.
+     *
+     * @param endpoint the endpoint being called
+     * @param call the Okta call
+     * @return the result of the call
+     */
+    public <T> T execute(OktaEndpoint endpoint, Supplier<T> call) {
+        Budget budget = getBudget(endpoint);
+        int attempt = 0;
+        while (true) {
+            Timer.Context waiting = budget.waits.time();
+            budget.acquire();
+            waiting.stop();
+            T result;
+            Timer.Context latency = budget.latency.time();
+            try {
+                result = call.get();
+            } catch (RuntimeException e) {
+                latency.stop();
+                boolean rateLimited = getStatus(e) == HttpStatus.TOO_MANY_REQUESTS.value();
+                budget.release(null, rateLimited, attempt);
+                if (rateLimited && attempt++ < maxRetries) {
+                    budget.retries.inc();
+                    log.warn("Okta rate limit exceeded on {}, retry {} of {}", endpoint, attempt, maxRetries);
+                    continue;
+                }
+                budget.failures.inc();
+                throw e;
+            }
+            latency.stop();
+            budget.release(result instanceof ResponseEntity ? ((ResponseEntity<?>) result).getHeaders() : null,
+                    false, attempt);
+            return result;
+        }
+    }
+
+    /**
+     * @return the fraction of the endpoint's rate limit that is left in the current window, or 1 if it is not known yet
+     */
+    public double getRemainingFraction(OktaEndpoint endpoint) {
+        return getBudget(endpoint).getRemainingFraction();
+    }
+
+    private synchronized Budget getBudget(OktaEndpoint endpoint) {
+        return budgets.computeIfAbsent(endpoint, Budget::new);
+    }
+
+    private static int getStatus(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof FeignException) {
+                return ((FeignException) t).status();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rate limit state for one endpoint. A limit of zero means no rate limit headers have been seen yet.
+     */
+    private class Budget {
+        private final OktaEndpoint endpoint;
+        private final Timer latency;
+        private final Timer waits;
+        private final Counter retries;
+        private final Counter failures;
+        private int limit;
+        private int remaining;
+        private long resetAtMillis;
+        private long blockedUntilMillis;
+        private boolean withoutHeaders;
+        private int inFlight;
+        private long nextCallAtMillis;
+
+        Budget(OktaEndpoint endpoint) {
+            this.endpoint = endpoint;
+            String prefix = MetricRegistry.name("okta", endpoint.name().toLowerCase());
+            this.latency = metricRegistry.timer(MetricRegistry.name(prefix, "latency"));
+            this.waits = metricRegistry.timer(MetricRegistry.name(prefix, "rate-limit-wait"));
+            this.retries = metricRegistry.counter(MetricRegistry.name(prefix, "retries"));
+            this.failures = metricRegistry.counter(MetricRegistry.name(prefix, "failures"));
+        }
+
+        synchronized void acquire() {
+            try {
+                while (true) {
+                    long now = clock.getAsLong();
+                    if (resetAtMillis > 0 && now >= resetAtMillis) {
+                        // New window; the real numbers arrive with the next response
+                        remaining = limit;
+                        resetAtMillis = 0;
+                    }
+
+                    if (now < blockedUntilMillis) {
+                        wait(blockedUntilMillis - now);
+                        continue;
+                    }
+
+                    if (limit == 0) {
+                        // Nothing known yet, so only let one call through to find out. Calls that do not return
+                        // headers are only limited by concurrency and by 429s.
+                        if (inFlight == 0 || (withoutHeaders && inFlight < maxConcurrency)) {
+                            break;
+                        }
+                        wait();
+                        continue;
+                    }
+
+                    int usable = remaining - (int) Math.ceil(limit * reserve);
+                    if (usable <= 0) {
+                        long waitMillis = resetAtMillis > 0 ? resetAtMillis - now : INITIAL_BACKOFF_MILLIS;
+                        log.info("Okta rate limit budget for {} used up, waiting {}ms for it to reset",
+                                endpoint, waitMillis);
+                        wait(Math.max(1, waitMillis));
+                        continue;
+                    }
+                    if (inFlight >= Math.min(maxConcurrency, usable)) {
+                        wait();
+                        continue;
+                    }
+                    if (now < nextCallAtMillis) {
+                        wait(nextCallAtMillis - now);
+                        continue;
+                    }
+
+                    long windowMillis = resetAtMillis > 0 ? resetAtMillis - now : 0;
+                    nextCallAtMillis = now + windowMillis / usable;
+                    break;
+                }
+                inFlight++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for Okta rate limit", e);
+            }
+        }
+
+        synchronized void release(HttpHeaders headers, boolean rateLimited, int attempt) {
+            try {
+                inFlight--;
+                if (!updateFromHeaders(headers)) {
+                    if (rateLimited) {
+                        remaining = 0;
+                        long now = clock.getAsLong();
+                        if (resetAtMillis <= now) {
+                            resetAtMillis = now + (INITIAL_BACKOFF_MILLIS << Math.min(attempt, 6));
+                        }
+                        blockedUntilMillis = resetAtMillis;
+                    } else if (limit == 0) {
+                        withoutHeaders = true;
+                    } else if (remaining > 0) {
+                        remaining--;
+                    }
+                }
+            } finally {
+                notifyAll();
+            }
+        }
+
+        // Treats a response without all three headers, or with one that is not a number, as having none
+        private boolean updateFromHeaders(HttpHeaders headers) {
+            if (headers == null) {
+                return false;
+            }
+            String limitHeader = headers.getFirst(HEADER_LIMIT);
+            String remainingHeader = headers.getFirst(HEADER_REMAINING);
+            String resetHeader = headers.getFirst(HEADER_RESET);
+            if (limitHeader == null || remainingHeader == null || resetHeader == null) {
+                return false;
+            }
+            long resetAt;
+            int responseRemaining;
+            int responseLimit;
+            try {
+                resetAt = Long.parseLong(resetHeader.trim()) * 1000 + RESET_MARGIN_MILLIS;
+                responseRemaining = Integer.parseInt(remainingHeader.trim());
+                responseLimit = Integer.parseInt(limitHeader.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring malformed Okta rate limit headers for {}: limit {}, remaining {}, reset {}",
+                        endpoint, limitHeader, remainingHeader, resetHeader);
+                return false;
+            }
+            limit = responseLimit;
+            // Responses can come back out of order, so within a window trust the lowest remaining count
+            remaining = resetAt == resetAtMillis ? Math.min(remaining, responseRemaining) : responseRemaining;
+            resetAtMillis = resetAt;
+            return true;
+        }
+
+        synchronized double getRemainingFraction() {
+            return limit == 0 ? 1 : (double) remaining / limit;
+        }
+    }
+}
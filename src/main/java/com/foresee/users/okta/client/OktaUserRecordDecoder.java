@@ -0,0 +1,177 @@
+package com.foresee.users.okta.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import feign.FeignException;
+import feign.Response;
+import feign.codec.DecodeException;
+import feign.codec.Decoder;
+import lombok.extern.log4j.Log4j2;
+import org.assertj.core.util.Lists;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes a page of the Okta users API straight into {@link OktaUserRecord}s with the Jackson streaming parser.
+ * <p>
+ * Only id, status, lastLogin, passwordChanged and the profile's login, clientId and foreseeId are read. Every other
+ * field, including the rest of the profile, {@code _links} and credentials, is skipped token by token without being
+ * turned into objects or strings. Field names are matched against the parser's canonical names, so recognising them
+ * allocates nothing either.
+ * </p>
+ * <p>
+ * Any other return type is handed to the delegate decoder.
+ * </p>
+ */
+@Log4j2
+public class OktaUserRecordDecoder implements Decoder {
+
+    private final JsonFactory jsonFactory;
+    private final Decoder delegate;
+
+    public OktaUserRecordDecoder(JsonFactory jsonFactory, Decoder delegate) {
+        this.jsonFactory = jsonFactory;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Object decode(Response response, Type type) throws IOException, FeignException {
+        if (!isRecordList(type)) {
+            return delegate.decode(response, type);
+        }
+        if (response.body() == null) {
+            return Collections.emptyList();
+        }
+        try (InputStream body = response.body().asInputStream();
+             JsonParser parser = jsonFactory.createParser(body)) {
+            return readUsers(parser);
+        }
+    }
+
+    static boolean isRecordList(Type type) {
+        if (!(type instanceof ParameterizedType)) {
+            return false;
+        }
+        ParameterizedType parameterized = (ParameterizedType) type;
+        return parameterized.getRawType() == List.class
+                && parameterized.getActualTypeArguments()[0] == OktaUserRecord.class;
+    }
+
+    static List<OktaUserRecord> readUsers(JsonParser parser) throws IOException {
+        List<OktaUserRecord> users = Lists.newArrayList();
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            return users;
+        }
+        if (token != JsonToken.START_ARRAY) {
+            throw new DecodeException("Expected an array of Okta users but found " + token);
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            users.add(readUser(parser));
+        }
+        return users;
+    }
+
+    private static OktaUserRecord readUser(JsonParser parser) throws IOException {
+        String id = null;
+        UserStatus status = null;
+        String lastLogin = null;
+        String passwordChanged = null;
+        String login = null;
+        Long clientId = null;
+        Long foreseeId = null;
+
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = readText(parser, value);
+                    break;
+                case "status":
+                    status = readStatus(parser, value);
+                    break;
+                case "lastLogin":
+                    lastLogin = readText(parser, value);
+                    break;
+                case "passwordChanged":
+                    passwordChanged = readText(parser, value);
+                    break;
+                case "profile":
+                    if (value != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        break;
+                    }
+                    String profileField;
+                    while ((profileField = parser.nextFieldName()) != null) {
+                        JsonToken profileValue = parser.nextToken();
+                        switch (profileField) {
+                            case "login":
+                                login = readText(parser, profileValue);
+                                break;
+                            case "clientId":
+                                clientId = readLong(parser, profileValue);
+                                break;
+                            case "foreseeId":
+                                foreseeId = readLong(parser, profileValue);
+                                break;
+                            default:
+                                parser.skipChildren();
+                        }
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return new OktaUserRecord(id, status, login, clientId, foreseeId, lastLogin, passwordChanged);
+    }
+
+    private static String readText(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value.isScalarValue()) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static UserStatus readStatus(JsonParser parser, JsonToken value) throws IOException {
+        String text = readText(parser, value);
+        if (text == null) {
+            return null;
+        }
+        try {
+            return UserStatus.valueOf(text);
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown Okta user status {}", text);
+            return null;
+        }
+    }
+
+    private static Long readLong(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        String text = readText(parser, value);
+        if (text == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(text.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring non-numeric Okta profile id {}", text);
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.foresee.okta.domain.group.OktaGroup;
 import com.foresee.okta.domain.user.OktaUser;
 import com.foresee.okta.domain.user.OktaUserUpdateRequest;
 import com.foresee.okta.domain.user.UserActivateResponse;
+import com.foresee.users.okta.domain.OktaUserRecord;
 import org.springframework.cloud.netflix.feign.FeignClient;
 import org.springframework.context.annotation.Primary;
 import org.springframework.http.ResponseEntity;
@@ -26,7 +27,7 @@ import static org.springframework.web.bind.annotation.RequestMethod.*;
  */
 @Service
 @Primary
-@FeignClient(value = OKTA_USER_SERVICE, url = "${okta.url}")
+@FeignClient(value = OKTA_USER_SERVICE, url = "${okta.url}", configuration = OktaFeignConfiguration.class)
 public interface OktaUsersClient {
 
     String OKTA_USER_SERVICE = "okta-service";
@@ -34,6 +35,7 @@ public interface OktaUsersClient {
     static final String OKTA_PARAM_FILTER = "filter";
     static final String OKTA_PARAM_LIMIT = "limit";
     static final String OKTA_PARAM_AFTER = "after";
+    static final String OKTA_PARAM_SEARCH = "search";
 
     /**
      * Get user by okta-id or by userName
@@ -78,6 +80,38 @@ public interface OktaUsersClient {
             @RequestParam(OKTA_PARAM_LIMIT) Integer limit,
             @RequestParam(OKTA_PARAM_AFTER) String after);
 
+    /**
+     * Same as {@link #search}, but each user is decoded into the few fields the reconciliation reads by
+     * {@link OktaUserRecordDecoder}.
+     * @param query an optional search parameter that will search in firstName, lastName, and email
+     * @param filter an optional search parameter that will search by the field specified in the filter
+     * @param limit limits the results
+     * @param after gives you the next page of results (found in the header)
+     * @return
+     */
+    @RequestMapping(value = OKTA_API_VERSION + OKTA_USERS, method = GET)
+    ResponseEntity<List<OktaUserRecord>> searchRecords(
+            @RequestHeader(AUTHORIZATION_HEADER) String token,
+            @RequestParam(OKTA_PARAM_QUERY) String query,
+            @RequestParam(OKTA_PARAM_FILTER) String filter,
+            @RequestParam(OKTA_PARAM_LIMIT) Integer limit,
+            @RequestParam(OKTA_PARAM_AFTER) String after);
+
+    /**
+     * Same as {@link #searchRecords}, with a search expression instead of a filter. Unlike filters, search
+     * expressions can test custom profile attributes such as clientId.
+     * @param search an Okta search expression, such as {@code profile.clientId eq "1234"}
+     * @param limit limits the results
+     * @param after gives you the next page of results (found in the header)
+     * @return
+     */
+    @RequestMapping(value = OKTA_API_VERSION + OKTA_USERS, method = GET)
+    ResponseEntity<List<OktaUserRecord>> searchRecordsByExpression(
+            @RequestHeader(AUTHORIZATION_HEADER) String token,
+            @RequestParam(OKTA_PARAM_SEARCH) String search,
+            @RequestParam(OKTA_PARAM_LIMIT) Integer limit,
+            @RequestParam(OKTA_PARAM_AFTER) String after);
+
     /**
      * Update user in okta
      *
@@ -95,11 +129,11 @@ public interface OktaUsersClient {
      *
      * @param token  the api key for the Okta tenant
      * @param userId the id of the user to find groups for
-     * @return the list of groups that the user is assigned to
+     * @return the list of groups that the user is assigned to, with the rate limit headers
      */
     @RequestMapping(value = OKTA_API_VERSION + OKTA_USERS + OKTA_ENDPOINT_USER_ID + OKTA_GROUPS, method = GET)
-    List<OktaGroup> getGroupsForUser(@RequestHeader(AUTHORIZATION_HEADER) String token,
-                                     @PathVariable(USER_ID) String userId);
+    ResponseEntity<List<OktaGroup>> getGroupsForUser(@RequestHeader(AUTHORIZATION_HEADER) String token,
+                                                     @PathVariable(USER_ID) String userId);
 
     /**
      * Suspend/disable a user
@@ -1,5 +1,6 @@
 package com.foresee.users.okta.config;
 
+import com.codahale.metrics.MetricRegistry;
 import com.foresee.okta.util.OktaUserUtil;
 import org.springframework.cloud.netflix.feign.EnableFeignClients;
 import org.springframework.context.annotation.Bean;
@@ -14,4 +15,9 @@ public class AppConfig {
     public OktaUserUtil oktaUserUtil() {
         return new OktaUserUtil();
     }
+
+    @Bean
+    public MetricRegistry metricRegistry() {
+        return new MetricRegistry();
+    }
 }
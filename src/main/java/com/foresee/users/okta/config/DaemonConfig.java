@@ -0,0 +1,15 @@
+package com.foresee.users.okta.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Runs the refreshes of the {@link com.foresee.users.okta.service.ReconciliationDaemon} when the service is started
+ * with {@code okta.daemon.enabled}. The scheduler's thread also keeps the JVM up once {@code main} returns.
+ */
+@Configuration
+@ConditionalOnProperty(name = "okta.daemon.enabled", havingValue = "true")
+@EnableScheduling
+public class DaemonConfig {
+}
@@ -0,0 +1,101 @@
+package com.foresee.users.okta.config;
+
+import com.foresee.users.okta.client.HttpConnectionStats;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Apache HTTP client that Feign uses for {@link com.foresee.users.okta.client.OktaUsersClient}.
+ * <p>
+ * Spring Cloud picks up these beans instead of building its own client. Connections are pooled and kept alive for
+ * as long as Okta allows, with enough connections per route for every concurrent Okta call. Response compression is
+ * left on, so every request asks for gzip and the body is inflated before Feign sees it.
+ * </p>
+ */
+@Configuration
+public class OktaHttpClientConfig {
+
+    // Used when Okta does not say how long a connection may be kept alive
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    @Value("${okta.http.max-connections:64}")
+    private int maxConnections;
+
+    @Value("${okta.http.max-connections-per-route:32}")
+    private int maxConnectionsPerRoute;
+
+    @Value("${okta.http.connection-ttl-seconds:300}")
+    private int connectionTtlSeconds;
+
+    @Value("${okta.http.connect-timeout-millis:5000}")
+    private int connectTimeoutMillis;
+
+    @Value("${okta.http.socket-timeout-millis:30000}")
+    private int socketTimeoutMillis;
+
+    @Value("${okta.http.socket-buffer-size:65536}")
+    private int socketBufferSize;
+
+    @Bean(destroyMethod = "shutdown")
+    public PoolingHttpClientConnectionManager httpClientConnectionManager(HttpConnectionStats httpConnectionStats) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                        .build(),
+                httpConnectionStats.countingConnectionFactory(),
+                null,
+                null,
+                connectionTtlSeconds,
+                TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .setRcvBufSize(socketBufferSize)
+                .setSndBufSize(socketBufferSize)
+                .setSoTimeout(socketTimeoutMillis)
+                .build());
+        // Check connections that sat idle for a while before reusing them, instead of failing the first call on them
+        connectionManager.setValidateAfterInactivity(2000);
+        httpConnectionStats.setConnectionManager(connectionManager);
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient httpClient(HttpClientConnectionManager httpClientConnectionManager,
+                                          HttpConnectionStats httpConnectionStats) {
+        return HttpClients.custom()
+                .setConnectionManager(httpClientConnectionManager)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive =
+                            DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE_MILLIS;
+                })
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setConnectionRequestTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(socketTimeoutMillis)
+                        .setContentCompressionEnabled(true)
+                        .build())
+                .addInterceptorFirst(httpConnectionStats.requestCounter())
+                .addInterceptorFirst(httpConnectionStats.responseCounter())
+                .disableCookieManagement()
+                .build();
+    }
+}
@@ -0,0 +1,56 @@
+package com.foresee.users.okta.domain;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+import org.joda.time.DateTime;
+
+import java.io.Serializable;
+
+/**
+ * The part of an APP_USER row that the reconciliation reads.
+ * <p>
+ * The password itself is never kept, only whether there is one. Rows are read straight into this class by
+ * {@link com.foresee.users.okta.repository.UserRepository#findRecordsByIdIn}; the private no-args constructor is
+ * only there for Jackson, which reads the checkpoints and the cache back.
+ * </p>
+ */
+@Value
+@AllArgsConstructor
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+public class AppUserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Long clientId;
+    private Long id;
+    private String accountEnabled;
+    private DateTime lastLogonDate;
+    private String userName;
+    private String userNameSuffix;
+    private String email;
+    private String passwordMigrated;
+    private String oktaStatus;
+    private String authenticationProvider;
+    private String oktaId;
+    private boolean passwordSet;
+    // Null for records cached before the column was read
+    private Long version;
+
+    public static AppUserRecord from(UserEntity userEntity) {
+        return new AppUserRecord(
+                userEntity.getClientId(),
+                userEntity.getId(),
+                userEntity.getAccountEnabled(),
+                userEntity.getLastLogonDate(),
+                userEntity.getUserName(),
+                userEntity.getUserNameSuffix(),
+                userEntity.getEmail(),
+                userEntity.getPasswordMigrated(),
+                userEntity.getOktaStatus(),
+                userEntity.getAuthenticationProvider(),
+                userEntity.getOktaId(),
+                userEntity.getPassword() != null,
+                userEntity.getVersion());
+    }
+}
@@ -0,0 +1,60 @@
+package com.foresee.users.okta.domain;
+
+import com.foresee.okta.domain.user.OktaUser;
+import com.foresee.okta.domain.user.UserStatus;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The part of an Okta user that the reconciliation reads.
+ * <p>
+ * Kept instead of the full {@link OktaUser} so that indexes and snapshots do not carry profiles, links and
+ * credentials around. Timestamps are kept as the text that ends up in the reports. Pages of the users API are decoded
+ * straight into this class by {@link com.foresee.users.okta.client.OktaUserRecordDecoder}; the private no-args
+ * constructor is only there for Jackson, which reads the cache and the checkpoints back.
+ * </p>
+ */
+@Value
+@AllArgsConstructor
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+public class OktaUserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String id;
+    private UserStatus status;
+    private String login;
+    private Long clientId;
+    private Long foreseeId;
+    private String lastLogin;
+    private String passwordChanged;
+
+    public static OktaUserRecord from(OktaUser oktaUser) {
+        return new OktaUserRecord(
+                oktaUser.getId(),
+                oktaUser.getStatus(),
+                oktaUser.getProfile().getLogin(),
+                toLong(oktaUser.getProfile().getClientId()),
+                oktaUser.getProfile().getForeseeId(),
+                Objects.toString(oktaUser.getLastLogin(), null),
+                Objects.toString(oktaUser.getPasswordChanged(), null));
+    }
+
+    private static Long toLong(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
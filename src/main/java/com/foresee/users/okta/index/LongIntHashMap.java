@@ -0,0 +1,120 @@
+package com.foresee.users.okta.index;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive long keys to non-negative int values, using open addressing with linear probing.
+ * <p>
+ * Keys and values live in two parallel arrays, so an entry costs 12 bytes of table, around 24 at the load factor
+ * kept, instead of a node, a boxed key and a boxed value. Entries cannot be removed. Not thread safe while it is
+ * being written; concurrent reads are fine once it is complete.
+ * </p>
+ */
+public class LongIntHashMap {
+
+    public static final int NO_VALUE = -1;
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int shift;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @return the value for the key, or {@link #NO_VALUE}
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            int value = values[slot];
+            if (value == NO_VALUE || keys[slot] == key) {
+                return value;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Store a value for the key unless it already has one.
+     *
+     * @param value the value, which must not be negative
+     * @return the value the key already had, or {@link #NO_VALUE} if the new value was stored
+     */
+    public int putIfAbsent(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must not be negative: " + value);
+        }
+        int mask = keys.length - 1;
+        int slot = slot(key);
+        while (values[slot] != NO_VALUE) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return every key, in no particular order
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int i = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (values[slot] != NO_VALUE) {
+                result[i++] = keys[slot];
+            }
+        }
+        return result;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * GOLDEN_RATIO) >>> shift);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int slot = slot(oldKeys[i]);
+                while (values[slot] != NO_VALUE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
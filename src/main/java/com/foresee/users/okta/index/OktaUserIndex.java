@@ -0,0 +1,226 @@
+package com.foresee.users.okta.index;
+
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.OktaUserRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Okta users held column by column, with lookups by Okta id and by foreseeId.
+ * <p>
+ * Users are addressed by position, in the order they were added. Strings are packed into {@link StringColumn}s,
+ * the status is stored as its ordinal and client ids are dictionary encoded, since a few thousand clients are shared
+ * by millions of users. The Okta id lookup is an open addressing table of positions that compares candidates against
+ * the packed bytes, and the foreseeId lookup is a {@link LongIntHashMap}, so neither keeps a key object per user.
+ * {@link #get(int)} rebuilds an {@link OktaUserRecord} on each call.
+ * </p>
+ * <p>
+ * Not thread safe while users are being added; any number of threads may read it afterwards.
+ * </p>
+ */
+public class OktaUserIndex {
+
+    private static final UserStatus[] STATUSES = UserStatus.values();
+    private static final byte NULL_STATUS = -1;
+    private static final int NULL_CODE = -1;
+    private static final long NULL_FORESEE_ID = Long.MIN_VALUE;
+    private static final int EMPTY_SLOT = 0;
+
+    private final StringColumn ids = new StringColumn();
+    private final StringColumn logins = new StringColumn();
+    private final StringColumn lastLogins = new StringColumn();
+    private final StringColumn passwordChanges = new StringColumn();
+    private byte[] statuses = new byte[1024];
+    private int[] clientIdCodes = new int[1024];
+    private long[] foreseeIds = new long[1024];
+    private int size;
+
+    private final LongIntHashMap clientIdDictionary = new LongIntHashMap();
+    private long[] clientIds = new long[64];
+
+    // Positions plus one, so that zero marks an empty slot
+    private int[] idTable = new int[1024];
+    private int[] idHashes = new int[1024];
+    private final LongIntHashMap foreseeIdIndex = new LongIntHashMap();
+
+    /**
+     * Add a user. A user whose Okta id was already added is stored, but lookups by id keep finding the first one.
+     *
+     * @return the position of the user
+     */
+    public int add(OktaUserRecord user) {
+        if (size == statuses.length) {
+            int capacity = size * 2;
+            statuses = Arrays.copyOf(statuses, capacity);
+            clientIdCodes = Arrays.copyOf(clientIdCodes, capacity);
+            foreseeIds = Arrays.copyOf(foreseeIds, capacity);
+        }
+        int position = size++;
+        ids.add(user.getId());
+        logins.add(user.getLogin());
+        lastLogins.add(user.getLastLogin());
+        passwordChanges.add(user.getPasswordChanged());
+        statuses[position] = user.getStatus() == null ? NULL_STATUS : (byte) user.getStatus().ordinal();
+        clientIdCodes[position] = encodeClientId(user.getClientId());
+        foreseeIds[position] = user.getForeseeId() == null ? NULL_FORESEE_ID : user.getForeseeId();
+
+        if (user.getId() != null) {
+            indexId(user.getId(), position);
+        }
+        if (user.getForeseeId() != null) {
+            foreseeIdIndex.putIfAbsent(user.getForeseeId(), position);
+        }
+        return position;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public OktaUserRecord get(int position) {
+        checkPosition(position);
+        return new OktaUserRecord(
+                ids.get(position),
+                getStatus(position),
+                logins.get(position),
+                getClientId(position),
+                getForeseeId(position),
+                lastLogins.get(position),
+                passwordChanges.get(position));
+    }
+
+    public UserStatus getStatus(int position) {
+        byte status = statuses[position];
+        return status == NULL_STATUS ? null : STATUSES[status];
+    }
+
+    public Long getClientId(int position) {
+        int code = clientIdCodes[position];
+        return code == NULL_CODE ? null : clientIds[code];
+    }
+
+    public Long getForeseeId(int position) {
+        long foreseeId = foreseeIds[position];
+        return foreseeId == NULL_FORESEE_ID ? null : foreseeId;
+    }
+
+    public boolean hasForeseeId(int position) {
+        return foreseeIds[position] != NULL_FORESEE_ID;
+    }
+
+    /**
+     * @return the position of the first user added with the Okta id, or -1
+     */
+    public int findByOktaId(String oktaId) {
+        byte[] key = oktaId.getBytes(StandardCharsets.UTF_8);
+        int hash = StringColumn.hash(key);
+        int mask = idTable.length - 1;
+        for (int slot = hash & mask; idTable[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+            int position = idTable[slot] - 1;
+            if (idHashes[slot] == hash && ids.equalsAt(position, key)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the first user added with the foreseeId, or -1
+     */
+    public int findByForeseeId(long foreseeId) {
+        return foreseeIdIndex.get(foreseeId);
+    }
+
+    public boolean containsForeseeId(long foreseeId) {
+        return foreseeIdIndex.containsKey(foreseeId);
+    }
+
+    /**
+     * @return every distinct foreseeId, in no particular order
+     */
+    public long[] getForeseeIds() {
+        return foreseeIdIndex.keys();
+    }
+
+    /**
+     * @return a read-only view of the users as records, each one rebuilt when it is read
+     */
+    public List<OktaUserRecord> asList() {
+        return new RecordList();
+    }
+
+    private int encodeClientId(Long clientId) {
+        if (clientId == null) {
+            return NULL_CODE;
+        }
+        int code = clientIdDictionary.size();
+        int existing = clientIdDictionary.putIfAbsent(clientId, code);
+        if (existing != LongIntHashMap.NO_VALUE) {
+            return existing;
+        }
+        if (code == clientIds.length) {
+            clientIds = Arrays.copyOf(clientIds, code * 2);
+        }
+        clientIds[code] = clientId;
+        return code;
+    }
+
+    private void indexId(String id, int position) {
+        // Keep the table at most half full
+        if ((ids.size() + 1) * 2 > idTable.length) {
+            rehashIds(idTable.length * 2);
+        }
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int hash = StringColumn.hash(key);
+        int mask = idTable.length - 1;
+        int slot = hash & mask;
+        while (idTable[slot] != EMPTY_SLOT) {
+            if (idHashes[slot] == hash && ids.equalsAt(idTable[slot] - 1, key)) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        idTable[slot] = position + 1;
+        idHashes[slot] = hash;
+    }
+
+    private void rehashIds(int capacity) {
+        int[] oldTable = idTable;
+        int[] oldHashes = idHashes;
+        idTable = new int[capacity];
+        idHashes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != EMPTY_SLOT) {
+                int slot = oldHashes[i] & mask;
+                while (idTable[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) & mask;
+                }
+                idTable[slot] = oldTable[i];
+                idHashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+        }
+    }
+
+    private class RecordList extends AbstractList<OktaUserRecord> implements RandomAccess {
+        @Override
+        public OktaUserRecord get(int index) {
+            return OktaUserIndex.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.foresee.users.okta.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Append-only column of strings, stored back to back as UTF-8 in one byte array.
+ * <p>
+ * A short ASCII value such as an Okta id takes its length in bytes plus a four byte offset, where a {@link String}
+ * takes an object header, a hash field and a separate char array. Values are decoded each time they are read.
+ * </p>
+ */
+class StringColumn {
+
+    private static final int NULL_LENGTH = -1;
+
+    private byte[] data = new byte[1 << 16];
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private int size;
+    private int dataLength;
+
+    int add(String value) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        if (value == null) {
+            offsets[size] = dataLength;
+            lengths[size] = NULL_LENGTH;
+            return size++;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (dataLength + bytes.length > data.length) {
+            long capacity = Math.max((long) data.length * 2, (long) dataLength + bytes.length);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("String column is full");
+            }
+            data = Arrays.copyOf(data, (int) capacity);
+        }
+        System.arraycopy(bytes, 0, data, dataLength, bytes.length);
+        offsets[size] = dataLength;
+        lengths[size] = bytes.length;
+        dataLength += bytes.length;
+        return size++;
+    }
+
+    String get(int i) {
+        int length = lengths[i];
+        return length == NULL_LENGTH ? null : new String(data, offsets[i], length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param value the UTF-8 bytes of the value to compare with
+     */
+    boolean equalsAt(int i, byte[] value) {
+        int length = lengths[i];
+        if (length != value.length) {
+            return false;
+        }
+        int offset = offsets[i];
+        for (int j = 0; j < length; j++) {
+            if (data[offset + j] != value[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // FNV-1a, finished with a multiply and shift so that the low bits used for a hash table slot are well mixed
+    static int hash(byte[] value) {
+        int hash = 0x811C9DC5;
+        for (byte b : value) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        hash *= 0x9E3779B1;
+        return hash ^ (hash >>> 16);
+    }
+}
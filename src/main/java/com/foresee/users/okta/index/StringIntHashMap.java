@@ -0,0 +1,97 @@
+package com.foresee.users.okta.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Map from string keys to non-negative int values, using open addressing with linear probing.
+ * <p>
+ * Keys are packed into a {@link StringColumn} and the table only holds the number of each key and its hash, so an
+ * entry costs the key's UTF-8 bytes plus about 24 bytes, with no {@link String} kept per key. Entries cannot be
+ * removed. Not thread safe while it is being written; concurrent reads are fine once it is complete.
+ * </p>
+ */
+public class StringIntHashMap {
+
+    public static final int NO_VALUE = -1;
+    private static final int EMPTY_SLOT = 0;
+
+    private final StringColumn keys = new StringColumn();
+    private int[] values = new int[1024];
+    // Key numbers plus one, so that zero marks an empty slot
+    private int[] table = new int[1024];
+    private int[] hashes = new int[1024];
+
+    /**
+     * @return the value for the key, or {@link #NO_VALUE}
+     */
+    public int get(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = StringColumn.hash(bytes);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+            int number = table[slot] - 1;
+            if (hashes[slot] == hash && keys.equalsAt(number, bytes)) {
+                return values[number];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Store a value for the key unless it already has one.
+     *
+     * @param value the value, which must not be negative
+     * @return the value the key already had, or {@link #NO_VALUE} if the new value was stored
+     */
+    public int putIfAbsent(String key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must not be negative: " + value);
+        }
+        // Keep the table at most half full
+        if ((keys.size() + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = StringColumn.hash(bytes);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != EMPTY_SLOT) {
+            int number = table[slot] - 1;
+            if (hashes[slot] == hash && keys.equalsAt(number, bytes)) {
+                return values[number];
+            }
+            slot = (slot + 1) & mask;
+        }
+        int number = keys.add(key);
+        if (number == values.length) {
+            values = Arrays.copyOf(values, number * 2);
+        }
+        values[number] = value;
+        table[slot] = number + 1;
+        hashes[slot] = hash;
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    private void rehash(int capacity) {
+        int[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new int[capacity];
+        hashes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != EMPTY_SLOT) {
+                int slot = oldHashes[i] & mask;
+                while (table[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = oldTable[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
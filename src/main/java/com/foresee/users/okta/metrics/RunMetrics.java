@@ -0,0 +1,97 @@
+package com.foresee.users.okta.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.json.MetricsModule;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics of a reconciliation run.
+ * <p>
+ * Every metric in the {@link MetricRegistry} can be read over JMX under the {@code okta-reconciliation} domain
+ * while the run is going, and all of them are written to {@code okta.metrics.summary-file} as JSON when the
+ * application shuts down. Heap gauges are registered here; the other metrics are registered by the classes that
+ * update them.
+ * </p>
+ */
+@Component
+@Log4j2
+public class RunMetrics {
+
+    private static final String JMX_DOMAIN = "okta-reconciliation";
+
+    @Value("${okta.metrics.summary-file:logs/RunMetrics.json}")
+    private String summaryFile;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private JmxReporter jmxReporter;
+
+    @PostConstruct
+    public void start() {
+        metricRegistry.register(MetricRegistry.name("jvm", "heap", "used"),
+                (Gauge<Long>) () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        // The sum of the peaks of each heap pool, which may have peaked at different times, so an upper bound
+        metricRegistry.register(MetricRegistry.name("jvm", "heap", "peak-used"), (Gauge<Long>) () -> {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            return peak;
+        });
+        metricRegistry.register(MetricRegistry.name("jvm", "heap", "max"),
+                (Gauge<Long>) () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+
+        jmxReporter = JmxReporter.forRegistry(metricRegistry)
+                .inDomain(JMX_DOMAIN)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        jmxReporter.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        writeSummary();
+        jmxReporter.stop();
+    }
+
+    /**
+     * Write every metric to the summary file, with rates per second and durations in milliseconds.
+     */
+    public void writeSummary() {
+        File file = new File(summaryFile);
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new MetricsModule(TimeUnit.SECONDS, TimeUnit.MILLISECONDS, false, MetricFilter.ALL))
+                .enable(SerializationFeature.INDENT_OUTPUT);
+        try {
+            objectMapper.writeValue(file, metricRegistry);
+            log.info("Wrote run metrics to {}", file);
+        } catch (IOException e) {
+            log.warn("Failed to write run metrics to {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.foresee.users.okta.report;
+
+import org.assertj.core.util.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A report written by {@link ColumnarReportWriter}, from which single columns can be read without touching the
+ * others.
+ * <p>
+ * Every column is deflated on its own and the footer says where each one starts, so reading a column costs one seek
+ * and the decompression of that column alone. Numbers inside a column are unsigned LEB128 varints, so small ones take
+ * a byte. Longs and timestamps, the latter as epoch milliseconds, are stored as the zigzag encoded difference from
+ * the previous value in the column that is not null, and a missing value as {@link #NULL_LONG} itself. Dictionary
+ * columns store the code of each value plus one, 0 for null, and their distinct values in the footer. String columns
+ * store the length of the UTF-8 bytes of each value plus one, 0 for null, followed by the bytes.
+ * </p>
+ * <pre>
+ * header  magic, version
+ * columns the deflated values of each column, one after the other
+ * footer  row count, column count, then per column: name, type, offset, length, and for dictionary columns the
+ *         number of values and each value
+ * trailer footer offset, magic
+ * </pre>
+ */
+public class ColumnarReport {
+
+    static final int MAGIC = 0x4F4B5243;
+    static final int VERSION = 1;
+    static final int TRAILER_SIZE = 8 + 4;
+    public static final long NULL_LONG = Long.MIN_VALUE;
+
+    public enum Type {
+        LONG,
+        TIMESTAMP,
+        DICTIONARY,
+        STRING
+    }
+
+    private final File file;
+    private final int rowCount;
+    private final List<Column> columns;
+
+    private ColumnarReport(File file, int rowCount, List<Column> columns) {
+        this.file = file;
+        this.rowCount = rowCount;
+        this.columns = columns;
+    }
+
+    /**
+     * Read the footer of a report, leaving the columns where they are.
+     */
+    public static ColumnarReport open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < 8 + TRAILER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a columnar report: " + file);
+            }
+            in.seek(in.length() - TRAILER_SIZE);
+            long footerOffset = in.readLong();
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Columnar report was not written to the end: " + file);
+            }
+
+            in.seek(footerOffset);
+            int rowCount = in.readInt();
+            int columnCount = in.readInt();
+            List<Column> columns = Lists.newArrayList();
+            for (int i = 0; i < columnCount; i++) {
+                String name = in.readUTF();
+                Type type = Type.values()[in.readByte()];
+                long offset = in.readLong();
+                long length = in.readLong();
+                String[] dictionary = null;
+                if (type == Type.DICTIONARY) {
+                    dictionary = new String[in.readInt()];
+                    for (int code = 0; code < dictionary.length; code++) {
+                        dictionary[code] = in.readUTF();
+                    }
+                }
+                columns.add(new Column(name, type, offset, length, dictionary));
+            }
+            return new ColumnarReport(file, rowCount, columns);
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public List<String> getColumnNames() {
+        List<String> names = Lists.newArrayList();
+        columns.forEach(column -> names.add(column.name));
+        return Collections.unmodifiableList(names);
+    }
+
+    public Type getType(String column) {
+        return getColumn(column).type;
+    }
+
+    /**
+     * @return the values of a long or timestamp column, with {@link #NULL_LONG} for missing values
+     */
+    public long[] readLongs(String name) throws IOException {
+        Column column = getColumn(name);
+        if (column.type != Type.LONG && column.type != Type.TIMESTAMP) {
+            throw new IllegalArgumentException(name + " is a " + column.type + " column");
+        }
+        long[] values = new long[rowCount];
+        try (DataInputStream in = read(column)) {
+            long previous = 0;
+            for (int row = 0; row < rowCount; row++) {
+                long delta = readVarLong(in);
+                values[row] = previous + ((delta >>> 1) ^ -(delta & 1));
+                if (values[row] != NULL_LONG) {
+                    previous = values[row];
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the values of a dictionary or string column
+     */
+    public String[] readStrings(String name) throws IOException {
+        Column column = getColumn(name);
+        String[] values = new String[rowCount];
+        try (DataInputStream in = read(column)) {
+            switch (column.type) {
+                case DICTIONARY:
+                    for (int row = 0; row < rowCount; row++) {
+                        int code = (int) readVarLong(in);
+                        values[row] = code == 0 ? null : column.dictionary[code - 1];
+                    }
+                    break;
+                case STRING:
+                    for (int row = 0; row < rowCount; row++) {
+                        int length = (int) readVarLong(in);
+                        if (length > 0) {
+                            byte[] bytes = new byte[length - 1];
+                            in.readFully(bytes);
+                            values[row] = new String(bytes, StandardCharsets.UTF_8);
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(name + " is a " + column.type + " column");
+            }
+        }
+        return values;
+    }
+
+    private DataInputStream read(Column column) throws IOException {
+        byte[] compressed = new byte[(int) column.length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(column.offset);
+            in.readFully(compressed);
+        }
+        return new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(compressed)), 1 << 16));
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 10 bytes");
+    }
+
+    private Column getColumn(String name) {
+        for (Column column : columns) {
+            if (column.name.equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("No column " + name + " in " + file);
+    }
+
+    private static class Column {
+        private final String name;
+        private final Type type;
+        private final long offset;
+        private final long length;
+        private final String[] dictionary;
+
+        Column(String name, Type type, long offset, long length, String[] dictionary) {
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.dictionary = dictionary;
+        }
+    }
+}
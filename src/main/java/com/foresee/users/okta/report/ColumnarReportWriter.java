@@ -0,0 +1,217 @@
+package com.foresee.users.okta.report;
+
+import com.foresee.users.okta.report.ColumnarReport.Type;
+import com.google.common.collect.Maps;
+import org.assertj.core.util.Lists;
+import org.joda.time.Chronology;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static com.foresee.users.okta.report.ColumnarReport.MAGIC;
+import static com.foresee.users.okta.report.ColumnarReport.NULL_LONG;
+import static com.foresee.users.okta.report.ColumnarReport.VERSION;
+import static com.foresee.users.okta.report.ColumnarReport.writeVarLong;
+
+/**
+ * Writes a {@link ColumnarReport} a row at a time.
+ * <p>
+ * Each column is deflated as the rows come in and held in memory, compressed, until {@link #close()} writes the
+ * file, so a report of a million users holds about 30MB until then. Values are given as the strings the CSV
+ * reports hold and stored by column type: longs and ISO timestamps parsed, dictionary columns as a code per row. The
+ * report replaces the target file once it is complete.
+ * </p>
+ */
+public class ColumnarReportWriter implements Closeable {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final DateTimeFormatter TIMESTAMP_PARSER = ISODateTimeFormat.dateTimeParser().withOffsetParsed();
+    private static final Chronology UTC = ISOChronology.getInstanceUTC();
+    // yyyy-MM-ddTHH:mm:ss.SSSZ, as Okta sends its timestamps and DateTime prints them in UTC
+    private static final int UTC_TIMESTAMP_LENGTH = 24;
+
+    private final File file;
+    private final List<Column> columns = Lists.newArrayList();
+    private int rowCount;
+
+    public ColumnarReportWriter(File file, List<String> names, List<Type> types) {
+        if (names.size() != types.size()) {
+            throw new IllegalArgumentException(names.size() + " column names for " + types.size() + " types");
+        }
+        this.file = file;
+        for (int i = 0; i < names.size(); i++) {
+            columns.add(new Column(names.get(i), types.get(i)));
+        }
+    }
+
+    /**
+     * Add a row.
+     *
+     * @param values one per column, null where there is no value
+     * @throws IllegalArgumentException if a long or timestamp does not parse, in which case nothing is added
+     */
+    public void write(String[] values) throws IOException {
+        if (values.length != columns.size()) {
+            throw new IllegalArgumentException(values.length + " values for " + columns.size() + " columns");
+        }
+        long[] parsed = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            parsed[i] = columns.get(i).parse(values[i]);
+        }
+        for (int i = 0; i < values.length; i++) {
+            columns.get(i).write(values[i], parsed[i]);
+        }
+        rowCount++;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long[] lengths = new long[columns.size()];
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                column.out.close();
+                lengths[i] = column.compressed.size();
+                column.compressed.writeTo(out);
+            }
+
+            // DataOutputStream counts in an int, so the offsets are added up rather than taken from it
+            long footerOffset = 8;
+            for (long length : lengths) {
+                footerOffset += length;
+            }
+            out.writeInt(rowCount);
+            out.writeInt(columns.size());
+            long offset = 8;
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                out.writeUTF(column.name);
+                out.writeByte(column.type.ordinal());
+                out.writeLong(offset);
+                out.writeLong(lengths[i]);
+                offset += lengths[i];
+                if (column.type == Type.DICTIONARY) {
+                    out.writeInt(column.dictionary.size());
+                    for (String value : column.dictionary) {
+                        out.writeUTF(value);
+                    }
+                }
+            }
+            out.writeLong(footerOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class Column {
+        private final String name;
+        private final Type type;
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(1 << 12);
+        private final DataOutputStream out;
+        private final Map<String, Integer> codes = Maps.newHashMap();
+        private final List<String> dictionary = Lists.newArrayList();
+        private long previous;
+
+        Column(String name, Type type) {
+            this.name = name;
+            this.type = type;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED), 1 << 16), 1 << 16));
+        }
+
+        long parse(String value) {
+            if (value == null) {
+                return NULL_LONG;
+            }
+            switch (type) {
+                case LONG:
+                    return Long.parseLong(value);
+                case TIMESTAMP:
+                    return parseTimestamp(value);
+                default:
+                    return NULL_LONG;
+            }
+        }
+
+        /**
+         * Read the usual UTC layout field by field, which is many times quicker than the general ISO parser that
+         * every other layout is left to.
+         */
+        private static long parseTimestamp(String value) {
+            if (value.length() != UTC_TIMESTAMP_LENGTH || value.charAt(4) != '-' || value.charAt(7) != '-'
+                    || value.charAt(10) != 'T' || value.charAt(13) != ':' || value.charAt(16) != ':'
+                    || value.charAt(19) != '.' || value.charAt(23) != 'Z') {
+                return TIMESTAMP_PARSER.parseMillis(value);
+            }
+            return UTC.getDateTimeMillis(digits(value, 0, 4), digits(value, 5, 2), digits(value, 8, 2),
+                    digits(value, 11, 2), digits(value, 14, 2), digits(value, 17, 2), digits(value, 20, 3));
+        }
+
+        private static int digits(String value, int start, int count) {
+            int result = 0;
+            for (int i = start; i < start + count; i++) {
+                int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("Invalid timestamp: " + value);
+                }
+                result = result * 10 + digit;
+            }
+            return result;
+        }
+
+        void write(String value, long parsed) throws IOException {
+            switch (type) {
+                case LONG:
+                case TIMESTAMP:
+                    long delta = parsed - previous;
+                    writeVarLong(out, (delta << 1) ^ (delta >> 63));
+                    if (parsed != NULL_LONG) {
+                        previous = parsed;
+                    }
+                    break;
+                case DICTIONARY:
+                    writeVarLong(out, value == null ? 0 : codes.computeIfAbsent(value, v -> {
+                        dictionary.add(v);
+                        return dictionary.size();
+                    }));
+                    break;
+                case STRING:
+                    if (value == null) {
+                        writeVarLong(out, 0);
+                    } else {
+                        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                        writeVarLong(out, bytes.length + 1);
+                        out.write(bytes);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown column type " + type);
+            }
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package com.foresee.users.okta.repository;
 
+import com.foresee.users.okta.domain.AppUserRecord;
 import com.foresee.users.okta.domain.UserEntity;
+import org.joda.time.DateTime;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 
+import javax.persistence.QueryHint;
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * JPA Repository to interact with the APP_USER table in WORKBENCH_APP Schema
@@ -36,6 +42,23 @@ import java.util.List;
  */
 public interface UserRepository extends CrudRepository<UserEntity,Long> {
 
+    /**
+     * Rows fetched per round trip by the read-only queries. The Oracle driver fetches 10 by default, which turns a
+     * partition of 1000 ids into 100 round trips.
+     */
+    String READ_FETCH_SIZE = "1000";
+
+    /**
+     * Rows fetched per round trip when the whole table is streamed.
+     */
+    String SCAN_FETCH_SIZE = "5000";
+
+    String RECORD_PROJECTION = "select new com.foresee.users.okta.domain.AppUserRecord("
+            + "u.clientId, u.id, u.accountEnabled, u.lastLogonDate, u.userName, u.userNameSuffix, u.email, "
+            + "u.passwordMigrated, u.oktaStatus, u.authenticationProvider, u.oktaId, "
+            + "case when u.password is null then false else true end, u.version) "
+            + "from UserEntity u";
+
      /**
      * Find users associated with user ids
      * @param userIds
@@ -43,4 +66,61 @@ public interface UserRepository extends CrudRepository<UserEntity,Long> {
      */
     List<UserEntity> findByIdIn(@Param("userIds") Collection<Long> userIds);
 
+    /**
+     * Find the columns the reconciliation needs for the users associated with user ids. The rows are not managed
+     * entities, so nothing is tracked for dirty checking and the password never leaves the database.
+     * @param userIds
+     * @return list of user records
+     */
+    @Query(RECORD_PROJECTION + " where u.id in :userIds")
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+            @QueryHint(name = "org.hibernate.fetchSize", value = READ_FETCH_SIZE)})
+    List<AppUserRecord> findRecordsByIdIn(@Param("userIds") Collection<Long> userIds);
+
+    /**
+     * Find the columns the reconciliation needs for the users changed after a point in time, going by LAST_MODIFIED.
+     * @param since
+     * @return list of user records
+     */
+    @Query(RECORD_PROJECTION + " where u.lastModifiedDate > :since")
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+            @QueryHint(name = "org.hibernate.fetchSize", value = READ_FETCH_SIZE)})
+    List<AppUserRecord> findRecordsByLastModifiedAfter(@Param("since") DateTime since);
+
+    /**
+     * Stream the columns the reconciliation needs for every user, over a single forward-only cursor. Must be called
+     * inside a transaction and the stream must be closed.
+     * @return stream of user records
+     */
+    @Query(RECORD_PROJECTION)
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+            @QueryHint(name = "org.hibernate.fetchSize", value = SCAN_FETCH_SIZE)})
+    Stream<AppUserRecord> streamAllRecords();
+
+    /**
+     * Same as {@link #streamAllRecords()}, for the users of the clients with {@code clientId mod shardCount} equal
+     * to the shard index.
+     * @param shardCount
+     * @param shardIndex
+     * @return stream of user records
+     */
+    @Query(RECORD_PROJECTION + " where mod(u.clientId, :shardCount) = :shardIndex")
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+            @QueryHint(name = "org.hibernate.fetchSize", value = SCAN_FETCH_SIZE)})
+    Stream<AppUserRecord> streamRecordsInShard(@Param("shardCount") int shardCount,
+                                               @Param("shardIndex") int shardIndex);
+
+    /**
+     * Find the clients with {@code clientId mod shardCount} equal to the shard index that have users.
+     * @param shardCount
+     * @param shardIndex
+     * @return client ids, in ascending order
+     */
+    @Query("select distinct u.clientId from UserEntity u where mod(u.clientId, :shardCount) = :shardIndex "
+            + "order by u.clientId")
+    List<Long> findClientIdsInShard(@Param("shardCount") int shardCount, @Param("shardIndex") int shardIndex);
 }
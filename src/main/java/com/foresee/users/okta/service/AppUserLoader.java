@@ -0,0 +1,264 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.repository.UserRepository;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.assertj.core.util.Lists;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static com.foresee.users.okta.service.UserService.LogFile.APP_USER_CHECKPOINT;
+
+/**
+ * Reads APP_USER rows by id.
+ * <p>
+ * The ids are split into partitions that are read concurrently, each on its own connection from the pool. Every
+ * partition is checkpointed once it is read, so a run that dies part way only has to read the partitions that were
+ * not finished. Each partition's rows go into their own slot and are only put together once every partition is in,
+ * so the reading threads never contend for a shared list.
+ * </p>
+ */
+@Service
+@Log4j2
+public class AppUserLoader {
+
+    static final int PARTITION_SIZE = 1000;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+
+    @Value("${okta.checkpoint.sync-interval:10}")
+    private int checkpointSyncInterval;
+
+    @Value("${okta.app-user.parallelism:16}")
+    private int parallelism;
+
+    @Value("${okta.app-user.max-retries:3}")
+    private int maxRetries;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ClientShard clientShard;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    /**
+     * Read the APP_USER rows for the given ids, resuming from the checkpoint of an earlier run if there is one.
+     */
+    public List<AppUserRecord> load(List<Long> userIds) {
+        File checkpointFile = new File(APP_USER_CHECKPOINT.getFilename());
+        try (CheckpointJournal<PartitionCheckpoint> journal = new CheckpointJournal<>(
+                checkpointFile, objectMapper, PartitionCheckpoint.class, checkpointSyncInterval)) {
+            List<AppUserRecord> users = load(userIds, journal);
+            journal.complete();
+            return users;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to checkpoint Foresee users", e);
+        }
+    }
+
+    /**
+     * Read the APP_USER rows for the given ids from the start and without a checkpoint, for a process that reads them
+     * again and again and must neither resume a read of another run nor leave one behind.
+     */
+    public List<AppUserRecord> loadWithoutCheckpoint(List<Long> userIds) {
+        try {
+            return load(userIds, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read every APP_USER row in one sequential pass over the table instead of looking them up by id, or every row of
+     * the clients in this instance's {@link ClientShard}. Nothing is checkpointed; the scan is cheap enough to simply
+     * run again.
+     *
+     * @return the number of rows read
+     */
+    @Transactional(readOnly = true)
+    public int scan(Consumer<AppUserRecord> consumer) {
+        int count = 0;
+        try (Stream<AppUserRecord> rows = clientShard.isSharded()
+                ? userRepository.streamRecordsInShard(clientShard.getCount(), clientShard.getIndex())
+                : userRepository.streamAllRecords()) {
+            for (Iterator<AppUserRecord> it = rows.iterator(); it.hasNext(); count++) {
+                consumer.accept(it.next());
+            }
+        }
+        metricRegistry.meter("app-user.rows").mark(count);
+        log.info("Scanned {} users from app_user", count);
+        return count;
+    }
+
+    /**
+     * The ids are sorted first so that the partitions come out the same on the next run.
+     *
+     * @param journal the checkpoint to resume from and append to, or null
+     */
+    private List<AppUserRecord> load(List<Long> userIds, CheckpointJournal<PartitionCheckpoint> journal)
+            throws IOException {
+        List<Long> sortedIds = Lists.newArrayList(userIds);
+        Collections.sort(sortedIds);
+        List<List<Long>> partitions = Lists.newArrayList(Iterables.partition(sortedIds, PARTITION_SIZE));
+
+        AtomicReferenceArray<List<AppUserRecord>> results = new AtomicReferenceArray<>(partitions.size());
+        AtomicBoolean mismatched = new AtomicBoolean();
+        if (journal != null) {
+            journal.replay(checkpoint -> {
+                int partition = checkpoint.getPartition();
+                if (partition >= partitions.size() || !checkpoint.isFor(partitions.get(partition))) {
+                    mismatched.set(true);
+                } else {
+                    results.compareAndSet(partition, null, checkpoint.getUsers());
+                }
+            });
+        }
+        if (mismatched.get()) {
+            log.warn("APP_USER checkpoint is for a different set of users, starting over");
+            for (int i = 0; i < results.length(); i++) {
+                results.set(i, null);
+            }
+            journal.restart();
+        }
+
+        List<Callable<Void>> reads = Lists.newArrayList();
+        for (int i = 0; i < partitions.size(); i++) {
+            if (results.get(i) == null) {
+                reads.add(read(i, partitions.get(i), results, journal));
+            }
+        }
+        if (reads.size() < partitions.size()) {
+            log.info("Resuming APP_USER read from checkpoint after {} of {} partitions",
+                    partitions.size() - reads.size(), partitions.size());
+        }
+        readConcurrently(reads);
+
+        int size = 0;
+        for (int i = 0; i < results.length(); i++) {
+            size += results.get(i).size();
+        }
+        List<AppUserRecord> users = new ArrayList<>(size);
+        for (int i = 0; i < results.length(); i++) {
+            users.addAll(results.get(i));
+        }
+        return users;
+    }
+
+    private Callable<Void> read(int partition, List<Long> ids, AtomicReferenceArray<List<AppUserRecord>> results,
+                                CheckpointJournal<PartitionCheckpoint> journal) {
+        return () -> {
+            List<AppUserRecord> users = findWithRetry(partition, ids);
+            if (journal != null) {
+                try {
+                    journal.append(new PartitionCheckpoint(partition, ids.get(0), ids.size(), hash(ids), users));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            results.set(partition, users);
+            return null;
+        };
+    }
+
+    private List<AppUserRecord> findWithRetry(int partition, List<Long> ids) throws InterruptedException {
+        int attempt = 0;
+        while (true) {
+            Timer.Context timer = metricRegistry.timer("app-user.partition").time();
+            try {
+                List<AppUserRecord> users = userRepository.findRecordsByIdIn(ids);
+                timer.stop();
+                metricRegistry.meter("app-user.rows").mark(users.size());
+                return users;
+            } catch (RuntimeException e) {
+                timer.stop();
+                if (attempt++ >= maxRetries) {
+                    metricRegistry.counter("app-user.partition-failures").inc();
+                    throw e;
+                }
+                metricRegistry.counter("app-user.partition-retries").inc();
+                long backoffMillis = INITIAL_BACKOFF_MILLIS << Math.min(attempt, 6);
+                log.warn("Failed to read APP_USER partition {}, retry {} of {} in {}ms",
+                        partition, attempt, maxRetries, backoffMillis, e);
+                Thread.sleep(backoffMillis);
+            }
+        }
+    }
+
+    private void readConcurrently(List<Callable<Void>> reads) {
+        if (reads.isEmpty()) {
+            return;
+        }
+        log.info("Reading {} APP_USER partitions with {} threads", reads.size(), parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, reads.size())));
+        try {
+            for (Future<Void> future : executor.invokeAll(reads)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading Foresee users", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read Foresee users", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long hash(List<Long> ids) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        ids.forEach(hasher::putLong);
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * The APP_USER rows read for one partition of ids, and enough about the ids to tell whether the partition of a
+     * later run holds the same ones.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class PartitionCheckpoint {
+        private int partition;
+        private Long firstId;
+        private int idCount;
+        private long idHash;
+        private List<AppUserRecord> users;
+
+        boolean isFor(List<Long> ids) {
+            return ids.get(0).equals(firstId) && ids.size() == idCount && hash(ids) == idHash;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.google.common.collect.Iterables;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.assertj.core.util.Lists;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes the Okta state found by the reconciliation back into APP_USER.
+ * <p>
+ * Users whose password was probably migrated get OKTA_STATUS and PASSWORD_MIGRATED set, and users pointing at the
+ * wrong Okta id get the id of the Okta user that carries their foreseeId. Corrections are collected while users are
+ * classified and written afterwards with JDBC batch updates, {@code okta.write-back.batch-size} rows per batch and
+ * one short transaction per batch, so APP_USER is never locked for longer than a batch takes.
+ * </p>
+ * <p>
+ * Every update checks VERSION against the value read with the row and increments it, so a row changed by someone
+ * else since it was read is left alone and counted as a conflict.
+ * </p>
+ */
+@Service
+@Log4j2
+public class AppUserWriteBack {
+
+    private static final String PASSWORD_MIGRATED_STATUS = ReconciledUser.PASSWORD_MIGRATED_STATUS;
+    private static final String PASSWORD_MIGRATED = "Y";
+
+    // A null argument leaves the column as it is. Rows without a version are matched on -1
+    private static final String UPDATE_SQL = "UPDATE APP_USER SET "
+            + "OKTA_STATUS = COALESCE(?, OKTA_STATUS), "
+            + "PASSWORD_MIGRATED = COALESCE(?, PASSWORD_MIGRATED), "
+            + "OKTA_ID = COALESCE(?, OKTA_ID), "
+            + "VERSION = COALESCE(VERSION, 0) + 1, "
+            + "LAST_MODIFIED = CURRENT_TIMESTAMP "
+            + "WHERE ID = ? AND COALESCE(VERSION, -1) = ?";
+    private static final long NO_VERSION = -1;
+
+    @Value("${okta.write-back.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${okta.write-back.parallelism:4}")
+    private int parallelism;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final ConcurrentLinkedQueue<Correction> corrections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Queue a correction for a user whose password is probably migrated. Safe to call from any thread.
+     */
+    void passwordMigrated(AppUserRecord foreseeUser) {
+        corrections.add(new Correction(foreseeUser.getId(), foreseeUser.getVersion(),
+                PASSWORD_MIGRATED_STATUS, PASSWORD_MIGRATED, null));
+    }
+
+    /**
+     * Queue a correction for a user pointing at the wrong Okta id. Safe to call from any thread.
+     */
+    void oktaId(AppUserRecord foreseeUser, String oktaId) {
+        corrections.add(new Correction(foreseeUser.getId(), foreseeUser.getVersion(), null, null, oktaId));
+    }
+
+    /**
+     * Write every queued correction to APP_USER.
+     */
+    public void flush() {
+        List<Correction> pending = Lists.newArrayList(corrections);
+        corrections.clear();
+        if (pending.isEmpty()) {
+            return;
+        }
+        log.info("Writing {} corrections back to APP_USER", pending.size());
+        long start = System.currentTimeMillis();
+        LongAdder updated = new LongAdder();
+        LongAdder conflicts = new LongAdder();
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+
+        List<Callable<Void>> batches = Lists.newArrayList();
+        for (List<Correction> batch : Iterables.partition(pending, Math.max(1, batchSize))) {
+            batches.add(() -> {
+                int[] counts = transaction.execute(status -> write(batch));
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        conflicts.increment();
+                        log.debug("APP_USER {} changed since it was read, not corrected", batch.get(i).getId());
+                    } else if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        updated.increment();
+                    }
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, batches.size())));
+        try {
+            for (Future<Void> result : executor.invokeAll(batches)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing corrections to APP_USER", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to write corrections to APP_USER", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info("Corrected {} APP_USER rows in {} batches in {} ms, {} changed since they were read",
+                updated.sum(), batches.size(), System.currentTimeMillis() - start, conflicts.sum());
+    }
+
+    private int[] write(List<Correction> batch) {
+        return jdbcTemplate.batchUpdate(UPDATE_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                Correction correction = batch.get(i);
+                setString(ps, 1, correction.getOktaStatus());
+                setString(ps, 2, correction.getPasswordMigrated());
+                setString(ps, 3, correction.getOktaId());
+                ps.setLong(4, correction.getId());
+                ps.setLong(5, correction.getVersion() != null ? correction.getVersion() : NO_VERSION);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return batch.size();
+            }
+        });
+    }
+
+    private static void setString(PreparedStatement ps, int index, String value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.VARCHAR);
+        } else {
+            ps.setString(index, value);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Correction {
+        private final Long id;
+        private final Long version;
+        private final String oktaStatus;
+        private final String passwordMigrated;
+        private final String oktaId;
+    }
+}
@@ -0,0 +1,147 @@
+package com.foresee.users.okta.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of checkpoints, one JSON document per line.
+ * <p>
+ * Every entry is flushed as soon as it is appended and forced to disk every {@code syncInterval} entries, so a
+ * process that dies loses at most the entries since the last sync. Only lines that end with a newline are replayed:
+ * whatever follows the last one was only partly written when the process died, and is dropped so that the next entry
+ * starts a line of its own. The journal is deleted once the work it tracks is complete.
+ * </p>
+ *
+ * @param <T> the type of the entries
+ */
+@Log4j2
+class CheckpointJournal<T> implements Closeable {
+
+    private static final byte NEWLINE = '\n';
+
+    private final File file;
+    private final ObjectMapper objectMapper;
+    private final Class<T> type;
+    private final int syncInterval;
+    private FileOutputStream fileOut;
+    private OutputStream out;
+    private int unsyncedCount;
+
+    CheckpointJournal(File file, ObjectMapper objectMapper, Class<T> type, int syncInterval) {
+        this.file = file;
+        this.objectMapper = objectMapper;
+        this.type = type;
+        this.syncInterval = Math.max(1, syncInterval);
+    }
+
+    /**
+     * Hand every complete entry left by an earlier run to the consumer, and get ready to append after them.
+     *
+     * @return the number of entries replayed
+     */
+    int replay(Consumer<T> consumer) throws IOException {
+        long validLength = 0;
+        int count = 0;
+        if (file.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                int b;
+                while ((b = in.read()) != -1) {
+                    if (b != NEWLINE) {
+                        line.write(b);
+                        continue;
+                    }
+                    T entry;
+                    try {
+                        entry = parse(line.toByteArray());
+                    } catch (IOException e) {
+                        break;
+                    }
+                    consumer.accept(entry);
+                    validLength += line.size() + 1;
+                    count++;
+                    line.reset();
+                }
+            }
+            // Whatever follows the last newline was still being appended, even if it happens to parse
+            if (file.length() > validLength) {
+                log.warn("Ignoring incomplete checkpoint at the end of {}", file);
+            }
+        }
+        openForAppend(validLength);
+        return count;
+    }
+
+    /**
+     * Drop every entry and start the journal over.
+     */
+    void restart() throws IOException {
+        close();
+        openForAppend(0);
+    }
+
+    synchronized void append(T entry) throws IOException {
+        out.write(objectMapper.writeValueAsBytes(entry));
+        out.write(NEWLINE);
+        out.flush();
+        if (++unsyncedCount >= syncInterval) {
+            fileOut.getChannel().force(false);
+            unsyncedCount = 0;
+        }
+    }
+
+    /**
+     * The work is done, so the checkpoints are no longer needed.
+     */
+    void complete() throws IOException {
+        close();
+        if (!file.delete()) {
+            log.warn("Failed to delete checkpoint journal {}", file);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    // Jackson would stop at the end of the first document and ignore what follows it on the line
+    private T parse(byte[] line) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(line)) {
+            T entry = objectMapper.readValue(parser, type);
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Unexpected content after checkpoint");
+            }
+            return entry;
+        }
+    }
+
+    private void openForAppend(long validLength) throws IOException {
+        fileOut = new FileOutputStream(file, true);
+        FileChannel channel = fileOut.getChannel();
+        if (channel.size() > validLength) {
+            channel.truncate(validLength);
+        }
+        out = new BufferedOutputStream(fileOut, 1 << 16);
+        unsyncedCount = 0;
+    }
+}
@@ -0,0 +1,73 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.service.UserService.LogFile;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * The clients this instance reconciles when the tenant is split across {@code okta.shard.count} instances.
+ * <p>
+ * Clients are assigned by {@code clientId mod okta.shard.count}, and the instance with {@code okta.shard.index} takes
+ * the clients with that remainder. Its Okta users are read with search expressions on {@code profile.clientId} and its
+ * APP_USER rows with the same modulo in the query, so each instance only reads its share of both. Every report, cache
+ * and checkpoint of the shard goes under its own directory, and an instance run with {@code okta.shard.merge} puts the
+ * reports of all shards together in the usual place.
+ * </p>
+ * <p>
+ * Okta users whose clientId is missing, or is not the clientId of any APP_USER row, are in no shard's search, so only
+ * an unsharded run reports them.
+ * </p>
+ */
+@Component
+@Getter
+@Log4j2
+public class ClientShard {
+
+    @Value("${okta.shard.count:1}")
+    private int count;
+
+    @Value("${okta.shard.index:0}")
+    private int index;
+
+    @Value("${okta.shard.merge:false}")
+    private boolean merge;
+
+    @Value("${okta.shard.clients-per-search:50}")
+    private int clientsPerSearch;
+
+    @PostConstruct
+    void init() {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalStateException("Shard " + index + " of " + count + " does not exist");
+        }
+        if (isSharded() && !merge) {
+            LogFile.useDirectory(getDirectory(index, count));
+            log.info("Reconciling the clients of shard {} of {}", index, count);
+        }
+    }
+
+    public boolean isSharded() {
+        return count > 1;
+    }
+
+    /**
+     * @return whether the client belongs to this shard; every client does when the tenant is not sharded
+     */
+    public boolean contains(Long clientId) {
+        if (!isSharded()) {
+            return true;
+        }
+        return clientId != null && Math.floorMod(clientId, (long) count) == index;
+    }
+
+    /**
+     * @return where the files of a shard go
+     */
+    static String getDirectory(int index, int count) {
+        return UserService.LOG_DIR + "/shard-" + index + "-of-" + count;
+    }
+}
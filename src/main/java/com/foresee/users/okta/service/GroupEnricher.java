@@ -0,0 +1,316 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.foresee.okta.domain.group.OktaGroup;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.client.OktaEndpoint;
+import com.foresee.users.okta.client.OktaRateLimiter;
+import com.foresee.users.okta.client.OktaUsersClient;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.service.UserService.LogFile;
+import feign.FeignException;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Looks up the Okta groups of matched users while they are being classified, and reports the users whose groups
+ * belong to other clients than their APP_USER row.
+ * <p>
+ * Classification hands each matched user that is not deprovisioned over through a queue of at most
+ * {@code okta.groups.queue-capacity} users and carries on, so it only waits for Okta when the lookups fall that far
+ * behind. {@code okta.groups.parallelism} threads take users off the queue and call
+ * {@code /users/{id}/groups} through {@link OktaRateLimiter}, which holds the calls in flight to what the
+ * USER_GROUPS budget allows, so how fast users are enriched is set by the rate limit rather than by the threads.
+ * </p>
+ * <p>
+ * A group belongs to a client when its name matches {@code okta.groups.client-pattern}, whose first capturing group
+ * is the clientId. A user is reported in {@code ClientGroupMismatch.csv} when it is in at least one client's group
+ * and none of them is the client of its row. Groups are kept once each by id for the whole run, however many users
+ * are in them, and the clientId is only worked out from the name the first time a group is seen.
+ * </p>
+ */
+@Service
+@Log4j2
+public class GroupEnricher {
+
+    private static final String OKTA_TOKEN_PREFIX = "SSWS ";
+    private static final long POLL_MILLIS = 100;
+
+    @Value("${okta.api-token}")
+    private String apiToken;
+
+    @Value("${okta.groups.enabled:false}")
+    private boolean enabled;
+
+    @Value("${okta.groups.client-pattern:^client-(\\d+)$}")
+    private String clientPattern;
+
+    @Value("${okta.groups.parallelism:8}")
+    private int parallelism;
+
+    @Value("${okta.groups.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Autowired
+    private OktaUsersClient oktaUsersClient;
+
+    @Autowired
+    private OktaRateLimiter oktaRateLimiter;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    // Every group seen in this run, by id
+    private final ConcurrentMap<String, ClientGroup> groups = new ConcurrentHashMap<>();
+    private Pattern pattern;
+    private Meter enrichedUsers;
+    private Counter mismatches;
+    private Counter failures;
+    private volatile Enrichment enrichment;
+
+    @PostConstruct
+    public void init() {
+        pattern = Pattern.compile(clientPattern, Pattern.CASE_INSENSITIVE);
+        enrichedUsers = metricRegistry.meter(MetricRegistry.name("groups", "users"));
+        mismatches = metricRegistry.counter(MetricRegistry.name("groups", "mismatches"));
+        failures = metricRegistry.counter(MetricRegistry.name("groups", "failures"));
+        metricRegistry.register(MetricRegistry.name("groups", "cached"), (Gauge<Integer>) groups::size);
+        metricRegistry.register(MetricRegistry.name("groups", "queued"), (Gauge<Integer>) () -> {
+            Enrichment current = enrichment;
+            return current == null ? 0 : current.queue.size();
+        });
+    }
+
+    /**
+     * Start looking up the groups of the users handed to {@link #submit}. Does nothing unless
+     * {@code okta.groups.enabled} is set.
+     *
+     * @param reports where mismatches are written, from the lookup threads
+     */
+    synchronized void start(ReportSink reports) {
+        if (!enabled) {
+            return;
+        }
+        if (enrichment != null) {
+            throw new IllegalStateException("Group enrichment is already running");
+        }
+        groups.clear();
+        enrichment = new Enrichment(reports);
+    }
+
+    /**
+     * Queue the user for a group lookup if enrichment is running and the user is relevant. Blocks while the queue is
+     * full, until a lookup thread makes room or enrichment is stopped.
+     */
+    void submit(ReconciledUser user) {
+        Enrichment current = enrichment;
+        if (current == null) {
+            return;
+        }
+        AppUserRecord foreseeUser = user.getForeseeUser();
+        OktaUserRecord oktaUser = user.getOktaUser();
+        if (oktaUser == null || foreseeUser.getClientId() == null
+                || oktaUser.getStatus() == UserStatus.DEPROVISIONED) {
+            return;
+        }
+        Member member = new Member(oktaUser.getId(), foreseeUser.getClientId(), foreseeUser.getId(),
+                foreseeUser.getUserName());
+        try {
+            while (!current.queue.offer(member, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (current.closed) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a group lookup", e);
+        }
+    }
+
+    /**
+     * Wait for every queued user to be looked up, which is as long as the USER_GROUPS rate limit takes.
+     */
+    void finish() {
+        Enrichment current = enrichment;
+        if (current == null) {
+            return;
+        }
+        log.info("Waiting for the groups of {} users", current.queue.size());
+        current.stop(true);
+        enrichment = null;
+        log.info("Looked up the groups of {} users, {} groups in all, {} with groups of another client",
+                current.enriched.sum(), groups.size(), current.mismatched.sum());
+    }
+
+    /**
+     * Drop the users still queued and stop, if enrichment is running.
+     */
+    void cancel() {
+        Enrichment current = enrichment;
+        if (current != null) {
+            log.warn("Dropping the group lookups of {} users", current.queue.size());
+            current.stop(false);
+            enrichment = null;
+        }
+    }
+
+    private void enrich(Member member, Enrichment current) {
+        List<OktaGroup> oktaGroups;
+        try {
+            ResponseEntity<List<OktaGroup>> response = oktaRateLimiter.execute(OktaEndpoint.USER_GROUPS,
+                    () -> oktaUsersClient.getGroupsForUser(OKTA_TOKEN_PREFIX + apiToken, member.oktaId));
+            oktaGroups = response.getBody();
+        } catch (FeignException e) {
+            failures.inc();
+            log.warn("Failed to get the groups of Okta user {}: {}", member.oktaId, e.status());
+            return;
+        } catch (RuntimeException e) {
+            failures.inc();
+            log.warn("Failed to get the groups of Okta user {}", member.oktaId, e);
+            return;
+        }
+        enrichedUsers.mark();
+        current.enriched.increment();
+
+        Set<Long> clientIds = new TreeSet<>();
+        if (oktaGroups != null) {
+            for (OktaGroup oktaGroup : oktaGroups) {
+                ClientGroup group = intern(oktaGroup);
+                if (group.clientId != null) {
+                    clientIds.add(group.clientId);
+                }
+            }
+        }
+        if (!clientIds.isEmpty() && !clientIds.contains(member.clientId)) {
+            mismatches.inc();
+            current.mismatched.increment();
+            current.reports.write(LogFile.CLIENT_GROUP_MISMATCH,
+                    StringUtils.joinWith(",",
+                            member.oktaId,
+                            member.clientId,
+                            member.foreseeId,
+                            StringUtils.join(clientIds, ' '),
+                            member.userName
+                    ));
+        }
+    }
+
+    private ClientGroup intern(OktaGroup oktaGroup) {
+        ClientGroup group = groups.get(oktaGroup.getId());
+        if (group == null) {
+            group = groups.computeIfAbsent(oktaGroup.getId(),
+                    id -> new ClientGroup(oktaGroup, getClientId(oktaGroup)));
+        }
+        return group;
+    }
+
+    private Long getClientId(OktaGroup group) {
+        if (group.getProfile() == null || group.getProfile().getName() == null) {
+            return null;
+        }
+        Matcher matcher = pattern.matcher(group.getProfile().getName());
+        if (!matcher.matches() || matcher.groupCount() < 1) {
+            return null;
+        }
+        try {
+            return Long.valueOf(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The lookup threads of one run and the users waiting for them.
+     */
+    private class Enrichment {
+        private final ReportSink reports;
+        private final BlockingQueue<Member> queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+        private final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        private final LongAdder enriched = new LongAdder();
+        private final LongAdder mismatched = new LongAdder();
+        private volatile boolean closed;
+
+        Enrichment(ReportSink reports) {
+            this.reports = reports;
+            for (int i = 0; i < Math.max(1, parallelism); i++) {
+                executor.execute(() -> {
+                    try {
+                        while (true) {
+                            Member member = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                            if (member != null) {
+                                enrich(member, this);
+                            } else if (closed) {
+                                return;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+
+        void stop(boolean drain) {
+            closed = true;
+            if (!drain) {
+                queue.clear();
+                executor.shutdownNow();
+                return;
+            }
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("{} users still waiting for a group lookup", queue.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new IllegalStateException("Interrupted while looking up groups", e);
+            }
+        }
+    }
+
+    /**
+     * What is needed of a matched user to look up its groups and report it.
+     */
+    @AllArgsConstructor
+    private static class Member {
+        private final String oktaId;
+        private final Long clientId;
+        private final Long foreseeId;
+        private final String userName;
+    }
+
+    /**
+     * An Okta group and the client it belongs to, if any.
+     */
+    @AllArgsConstructor
+    private static class ClientGroup {
+        private final OktaGroup group;
+        private final Long clientId;
+    }
+}
@@ -0,0 +1,688 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.client.OktaEndpoint;
+import com.foresee.users.okta.client.OktaRateLimiter;
+import com.foresee.users.okta.client.OktaUsersClient;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.repository.UserRepository;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.assertj.core.util.Lists;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.foresee.users.okta.service.UserService.LogFile.OKTA_SCAN_CHECKPOINT;
+import static com.foresee.users.okta.service.UserService.LogFile.OKTA_USER_CACHE;
+import static com.foresee.users.okta.service.UserService.LogFile.OKTA_USER_WATERMARK;
+
+/**
+ * Reads the Okta user directory one page at a time.
+ * <p>
+ * Pages come from the {@code OktaUserRecordCache} file when it exists, otherwise from the Okta users API following
+ * the {@code after} cursor. Pages fetched from Okta are decoded straight into {@link OktaUserRecord}s and appended to
+ * the cache as they arrive so that no more than one page has to be held in memory by the scanner itself.
+ * </p>
+ * <p>
+ * The scan can be split into independent slices, either one per Okta {@link UserStatus} or a number of
+ * {@code lastUpdated} ranges, each with its own cursor. Slices are paged through concurrently and their results are
+ * de-duplicated by Okta id, since a user that changes while the scan runs can show up in more than one slice.
+ * </p>
+ * <p>
+ * With {@code okta.sync.incremental} enabled only users updated since the last sync are fetched and merged into
+ * the cached snapshot, with a full scan every so often.
+ * </p>
+ * <p>
+ * Every page of a full scan is checkpointed in {@code OktaScanRecordCheckpoint} together with the cursor of the next
+ * page, so a scan that dies part way is picked up where it stopped by the next run.
+ * </p>
+ * <p>
+ * Every call goes through the {@link OktaRateLimiter}, which decides how many slices actually page concurrently.
+ * </p>
+ */
+@Service
+@Log4j2
+public class OktaUserScanner {
+
+    static final Integer OKTA_PAGE_SIZE = 200;
+    static final String OKTA_TOKEN_PREFIX = "SSWS ";
+    private static final String OKTA_HEADER_LINKS = "link";
+    private static final String NEXT_PAGE_INDICATOR = "rel=\"next\"";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Users updated while a sync is running may or may not be in it, so the next sync goes back a little further
+    private static final Duration WATERMARK_OVERLAP = Duration.standardMinutes(5);
+    private static final double PAGE_SIZE_INCREASE_THRESHOLD = 0.5;
+    private static final DateTimeFormatter OKTA_DATE_FORMAT = ISODateTimeFormat.dateTime().withZoneUTC();
+    private Pattern NEXT_PAGE_PATTERN = Pattern.compile("after=(\\w+)&");
+
+    @Value("${okta.api-token}")
+    private String apiToken;
+
+    @Value("${okta.sync.incremental:false}")
+    private boolean incremental;
+
+    @Value("${okta.sync.full-scan-interval-hours:168}")
+    private int fullScanIntervalHours;
+
+    @Value("${okta.checkpoint.sync-interval:10}")
+    private int checkpointSyncInterval;
+
+    @Value("${okta.scan.page-size:200}")
+    private int initialPageSize;
+
+    @Value("${okta.scan.max-page-size:1000}")
+    private volatile int maxPageSize;
+
+    @Value("${okta.scan.partitioning:NONE}")
+    private Partitioning partitioning;
+
+    @Value("${okta.scan.parallelism:4}")
+    private int parallelism;
+
+    @Value("${okta.scan.last-updated-slices:16}")
+    private int lastUpdatedSlices;
+
+    @Value("${okta.scan.last-updated-since:2015-01-01}")
+    private String lastUpdatedSince;
+
+    @Autowired
+    private OktaUsersClient oktaUsersClient;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ClientShard clientShard;
+
+    @Autowired
+    private OktaRateLimiter oktaRateLimiter;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private final AtomicInteger pageSize = new AtomicInteger();
+
+    @PostConstruct
+    void init() {
+        pageSize.set(Math.min(initialPageSize, maxPageSize));
+    }
+
+    /**
+     * Hand every Okta user to the page handler, one page at a time.
+     *
+     * @param pageHandler called once per page, never with an empty page
+     * @return the total number of users handed to the page handler
+     */
+    public int forEachPage(Consumer<List<OktaUserRecord>> pageHandler) {
+        if (incremental) {
+            Watermark watermark = readWatermark();
+            if (watermark != null) {
+                return syncIncrementally(watermark, pageHandler);
+            }
+        } else {
+            int cachedCount = readCache(pageHandler);
+            if (cachedCount > 0) {
+                log.info("Found {} Okta users in cache", cachedCount);
+                return cachedCount;
+            }
+        }
+
+        DateTime scanStart = DateTime.now();
+        int userCount = writeCache(this::scanAll, pageHandler);
+        writeWatermark(new Watermark(scanStart.minus(WATERMARK_OVERLAP), scanStart));
+        return userCount;
+    }
+
+    /**
+     * Fetch only the users that changed since the watermark and merge them into the cached snapshot.
+     * <p>
+     * The changes are held in memory while the snapshot is streamed from the old cache into a new one, with changed
+     * users replacing their cached copy and new users added at the end. Users that are deactivated come back with
+     * a status of DEPROVISIONED. Users deleted from Okta are not returned by the filter at all, so they stay in the
+     * snapshot until the next full scan, which happens every {@code okta.sync.full-scan-interval-hours}.
+     * </p>
+     */
+    private int syncIncrementally(Watermark watermark, Consumer<List<OktaUserRecord>> pageHandler) {
+        DateTime syncStart = DateTime.now();
+        Map<String, OktaUserRecord> changedUsers = Maps.newLinkedHashMap();
+        scanChangedSince(watermark.getUpdatedSince(),
+                page -> page.forEach(oktaUser -> changedUsers.put(oktaUser.getId(), oktaUser)));
+        log.info("Found {} Okta users updated since {}", changedUsers.size(), watermark.getUpdatedSince());
+
+        int changedCount = changedUsers.size();
+        int userCount = writeCache(mergedPageHandler -> {
+            int cachedCount = readCache(page -> {
+                List<OktaUserRecord> merged = Lists.newArrayList();
+                for (OktaUserRecord cachedUser : page) {
+                    OktaUserRecord changedUser = changedUsers.remove(cachedUser.getId());
+                    merged.add(changedUser != null ? changedUser : cachedUser);
+                }
+                mergedPageHandler.accept(merged);
+            });
+            if (cachedCount == 0) {
+                // Without the old snapshot the merge would only contain the changes, so make the next run start over
+                new File(OKTA_USER_WATERMARK.getFilename()).delete();
+                throw new IllegalStateException("Okta user cache could not be read for an incremental sync");
+            }
+            Iterables.partition(Lists.newArrayList(changedUsers.values()), OKTA_PAGE_SIZE)
+                    .forEach(mergedPageHandler);
+            return 0;
+        }, pageHandler);
+        log.info("Merged {} changed and {} new Okta users into a snapshot of {} users",
+                changedCount - changedUsers.size(), changedUsers.size(), userCount);
+
+        writeWatermark(new Watermark(syncStart.minus(WATERMARK_OVERLAP), watermark.getLastFullScan()));
+        return userCount;
+    }
+
+    /**
+     * Write every user produced by the source to a new cache file, replacing the old one once it is complete, and
+     * pass each page on to the page handler.
+     *
+     * @return the number of users written
+     */
+    private int writeCache(Function<Consumer<List<OktaUserRecord>>, Integer> source,
+                           Consumer<List<OktaUserRecord>> pageHandler) {
+        File cache = new File(OKTA_USER_CACHE.getFilename());
+        File tempCache = new File(cache.getPath() + TEMP_SUFFIX);
+        AtomicInteger userCount = new AtomicInteger();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(tempCache, JsonEncoding.UTF8)) {
+            generator.setCodec(objectMapper);
+            generator.writeStartArray();
+            source.apply(page -> {
+                writePage(generator, page);
+                userCount.addAndGet(page.size());
+                pageHandler.accept(page);
+            });
+            generator.writeEndArray();
+        } catch (IOException e) {
+            log.error("Failed to cache Okta users", e);
+            tempCache.delete();
+            throw new IllegalStateException("Failed to write Okta user cache", e);
+        }
+
+        try {
+            Files.move(tempCache.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Failed to cache Okta users", e);
+        }
+        return userCount.get();
+    }
+
+    /**
+     * @return the watermark of the last sync, or null if there is no usable cache or a full scan is due
+     */
+    private Watermark readWatermark() {
+        File f = new File(OKTA_USER_WATERMARK.getFilename());
+        if (!f.exists() || !new File(OKTA_USER_CACHE.getFilename()).exists()) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(f.toPath());
+            Watermark watermark = new Watermark(DateTime.parse(lines.get(0)), DateTime.parse(lines.get(1)));
+            if (watermark.getLastFullScan().plusHours(fullScanIntervalHours).isBeforeNow()) {
+                log.info("Last full scan of Okta users was at {}, doing a full scan", watermark.getLastFullScan());
+                return null;
+            }
+            return watermark;
+        } catch (Exception e) {
+            log.error("Failed to read Okta user watermark, doing a full scan", e);
+            return null;
+        }
+    }
+
+    private void writeWatermark(Watermark watermark) {
+        try {
+            Files.write(new File(OKTA_USER_WATERMARK.getFilename()).toPath(), Arrays.asList(
+                    OKTA_DATE_FORMAT.print(watermark.getUpdatedSince()),
+                    OKTA_DATE_FORMAT.print(watermark.getLastFullScan())));
+        } catch (IOException e) {
+            log.error("Failed to write Okta user watermark", e);
+        }
+    }
+
+    /**
+     * Page through the whole directory, sliced according to the configured partitioning, or only the users of the
+     * clients in this instance's {@link ClientShard}, sliced by groups of clients.
+     *
+     * @param pageHandler called once per page by one thread at a time, never with an empty page
+     * @return the total number of distinct users handed to the page handler
+     */
+    int scanAll(Consumer<List<OktaUserRecord>> pageHandler) {
+        File checkpointFile = new File(OKTA_SCAN_CHECKPOINT.getFilename());
+        try (CheckpointJournal<PageCheckpoint> journal = new CheckpointJournal<>(
+                checkpointFile, objectMapper, PageCheckpoint.class, checkpointSyncInterval)) {
+            int userCount = scanAll(pageHandler, journal);
+            journal.complete();
+            return userCount;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to checkpoint Okta scan", e);
+        }
+    }
+
+    /**
+     * As {@link #scanAll(Consumer)}, but always from the start and without a checkpoint, for a process that reads the
+     * directory again and again and must neither resume a scan of another run nor leave one behind.
+     */
+    int scanAllWithoutCheckpoint(Consumer<List<OktaUserRecord>> pageHandler) {
+        try {
+            return scanAll(pageHandler, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param journal the checkpoint to resume from and append to, or null
+     */
+    private int scanAll(Consumer<List<OktaUserRecord>> pageHandler, CheckpointJournal<PageCheckpoint> journal)
+            throws IOException {
+        boolean searching = clientShard.isSharded();
+        boolean partitioned = searching || partitioning != Partitioning.NONE;
+
+        Set<String> seenIds = ConcurrentHashMap.newKeySet();
+        Object handlerLock = new Object();
+        Consumer<List<OktaUserRecord>> sliceHandler = !partitioned ? pageHandler : page -> {
+            List<OktaUserRecord> newUsers = page.stream()
+                    .filter(oktaUser -> seenIds.add(oktaUser.getId()))
+                    .collect(Collectors.toList());
+            if (!newUsers.isEmpty()) {
+                synchronized (handlerLock) {
+                    pageHandler.accept(newUsers);
+                }
+            }
+        };
+
+        // The last checkpoint of each slice says where to carry on from
+        Map<String, PageCheckpoint> lastCheckpoints = Maps.newHashMap();
+        AtomicInteger replayedUserCount = new AtomicInteger();
+        AtomicLong replayedStartedAt = new AtomicLong();
+        int replayedPages = journal == null ? 0 : journal.replay(checkpoint -> {
+            sliceHandler.accept(checkpoint.getUsers());
+            replayedUserCount.addAndGet(checkpoint.getUsers().size());
+            lastCheckpoints.put(checkpoint.getSlice(), checkpoint);
+            replayedStartedAt.compareAndSet(0, checkpoint.getScanStartedAt());
+        });
+        if (replayedPages > 0) {
+            log.info("Resuming Okta scan from checkpoint after {} pages and {} users",
+                    replayedPages, replayedUserCount.get());
+        }
+
+        // A resumed scan has to cut the directory into the same slices as the scan it carries on, or none of its
+        // checkpoints would match a slice
+        long scanStartedAt = replayedStartedAt.get() != 0 ? replayedStartedAt.get() : System.currentTimeMillis();
+        List<String> expressions = searching ? getShardSearches() : getPartitionFilters(new DateTime(scanStartedAt));
+        if (!partitioned) {
+            expressions.add(null);
+        }
+
+        List<Callable<Integer>> slices = Lists.newArrayList();
+        for (String expression : expressions) {
+            PageCheckpoint lastCheckpoint = lastCheckpoints.get(Strings.nullToEmpty(expression));
+            if (lastCheckpoint != null && lastCheckpoint.getAfter() == null) {
+                continue;
+            }
+            String startAfter = lastCheckpoint != null ? lastCheckpoint.getAfter() : null;
+            String filter = searching ? null : expression;
+            String search = searching ? expression : null;
+            slices.add(() -> scan(filter, search, startAfter, journal, scanStartedAt, sliceHandler));
+        }
+
+        int scannedUserCount = partitioned ? scanConcurrently(slices) : scanSequentially(slices);
+        if (!partitioned) {
+            return replayedUserCount.get() + scannedUserCount;
+        }
+        log.info("Read {} Okta users from {} slices, {} after removing duplicates",
+                replayedUserCount.get() + scannedUserCount, expressions.size(), seenIds.size());
+        return seenIds.size();
+    }
+
+    private int scanSequentially(List<Callable<Integer>> slices) {
+        int userCount = 0;
+        try {
+            for (Callable<Integer> slice : slices) {
+                userCount += slice.call();
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to scan Okta users", e);
+        }
+        return userCount;
+    }
+
+    private int scanConcurrently(List<Callable<Integer>> slices) {
+        if (slices.isEmpty()) {
+            return 0;
+        }
+        log.info("Scanning Okta users in {} slices with {} threads", slices.size(), parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, slices.size()));
+        try {
+            List<Future<Integer>> futures = executor.invokeAll(slices);
+            int userCount = 0;
+            for (Future<Integer> future : futures) {
+                userCount += future.get();
+            }
+            return userCount;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning Okta users", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to scan Okta users", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return one search expression per group of {@code okta.shard.clients-per-search} clients in this shard, going
+     * by the clients that have APP_USER rows
+     */
+    List<String> getShardSearches() {
+        List<Long> clientIds = userRepository.findClientIdsInShard(clientShard.getCount(), clientShard.getIndex());
+        log.info("Shard {} of {} has {} clients", clientShard.getIndex(), clientShard.getCount(), clientIds.size());
+        List<String> searches = Lists.newArrayList();
+        for (List<Long> group : Iterables.partition(clientIds, clientShard.getClientsPerSearch())) {
+            searches.add(group.stream()
+                    .map(clientId -> "profile.clientId eq \"" + clientId + "\"")
+                    .collect(Collectors.joining(" or ")));
+        }
+        return searches;
+    }
+
+    /**
+     * @param until the end of the last lastUpdated slice, which is left open so that later updates still fall in it
+     * @return one Okta filter per slice of the directory, or an empty list to scan it in one pass
+     */
+    List<String> getPartitionFilters(DateTime until) {
+        List<String> filters = Lists.newArrayList();
+        switch (partitioning) {
+            case STATUS:
+                for (UserStatus status : UserStatus.values()) {
+                    filters.add("status eq \"" + status.name() + "\"");
+                }
+                break;
+            case LAST_UPDATED:
+                // The first and last slices are open ended so nothing falls outside the ranges
+                DateTime since = DateTime.parse(lastUpdatedSince);
+                long sliceMillis = Math.max(1, (until.getMillis() - since.getMillis()) / lastUpdatedSlices);
+                String lowerBound = null;
+                for (int i = 1; i <= lastUpdatedSlices; i++) {
+                    String upperBound = i < lastUpdatedSlices
+                            ? OKTA_DATE_FORMAT.print(since.plus(sliceMillis * i))
+                            : null;
+                    List<String> conditions = Lists.newArrayList();
+                    if (lowerBound != null) {
+                        conditions.add("lastUpdated ge \"" + lowerBound + "\"");
+                    }
+                    if (upperBound != null) {
+                        conditions.add("lastUpdated lt \"" + upperBound + "\"");
+                    }
+                    filters.add(StringUtils.join(conditions, " and "));
+                    lowerBound = upperBound;
+                }
+                break;
+            default:
+                break;
+        }
+        return filters;
+    }
+
+    /**
+     * Page through the Okta users matching the filter, following the {@code after} cursor until there is no next page.
+     *
+     * @param filter an optional Okta filter expression
+     * @param pageHandler called once per page, never with an empty page
+     * @return the total number of users handed to the page handler
+     */
+    int scan(String filter, Consumer<List<OktaUserRecord>> pageHandler) {
+        return scan(filter, null, null, null, 0, pageHandler);
+    }
+
+    /**
+     * Page through the users updated after a point in time, leaving the cache and the watermark alone. When the
+     * tenant is sharded, the users of other shards are fetched too but left out.
+     *
+     * @return the total number of users handed to the page handler
+     */
+    int scanChangedSince(DateTime since, Consumer<List<OktaUserRecord>> pageHandler) {
+        AtomicInteger userCount = new AtomicInteger();
+        scan("lastUpdated gt \"" + OKTA_DATE_FORMAT.print(since) + "\"", page -> {
+            List<OktaUserRecord> inShard = !clientShard.isSharded() ? page : page.stream()
+                    .filter(oktaUser -> clientShard.contains(oktaUser.getClientId()))
+                    .collect(Collectors.toList());
+            if (!inShard.isEmpty()) {
+                userCount.addAndGet(inShard.size());
+                pageHandler.accept(inShard);
+            }
+        });
+        return userCount.get();
+    }
+
+    /**
+     * Page through the Okta users matching the filter or search expression, starting at a cursor and checkpointing
+     * every page.
+     *
+     * @param filter an optional Okta filter expression
+     * @param search an optional Okta search expression, used instead of the filter
+     * @param startAfter the cursor to start from, or null to start at the beginning
+     * @param journal where to checkpoint each page before it is handled, or null
+     * @param scanStartedAt when the slices being scanned were cut, recorded with each checkpoint
+     * @param pageHandler called once per page, never with an empty page
+     * @return the total number of users handed to the page handler
+     */
+    private int scan(String filter, String search, String startAfter, CheckpointJournal<PageCheckpoint> journal,
+                     long scanStartedAt, Consumer<List<OktaUserRecord>> pageHandler) {
+        String after = startAfter;
+        ResponseEntity<List<OktaUserRecord>> response = null;
+        int numPages = 0;
+        int userCount = 0;
+
+        do {
+            String cursor = after;
+            int requestedPageSize = pageSize.get();
+            response = oktaRateLimiter.execute(OktaEndpoint.USERS, () -> search != null
+                    ? oktaUsersClient.searchRecordsByExpression(
+                            OKTA_TOKEN_PREFIX + apiToken,
+                            search,
+                            requestedPageSize,
+                            cursor)
+                    : oktaUsersClient.searchRecords(
+                            OKTA_TOKEN_PREFIX + apiToken,
+                            null,
+                            filter,
+                            requestedPageSize,
+                            cursor));
+
+            if (response == null || response.getBody().isEmpty()) {
+                break;
+            }
+
+            after = getNextCursor(response);
+            adjustPageSize(requestedPageSize, response.getBody().size(), after != null);
+            numPages++;
+            log.info("Read page {} of Okta users.", numPages);
+            metricRegistry.histogram("okta.scan.page-size").update(response.getBody().size());
+            metricRegistry.meter("okta.scan.users").mark(response.getBody().size());
+            if (journal != null) {
+                String slice = Strings.nullToEmpty(search != null ? search : filter);
+                checkpoint(journal, new PageCheckpoint(slice, after, response.getBody(), scanStartedAt));
+            }
+            pageHandler.accept(response.getBody());
+            userCount += response.getBody().size();
+        } while (after != null);
+
+        log.info("Found {} pages of Okta users. {} total Okta users", numPages, userCount);
+        return userCount;
+    }
+
+    private void checkpoint(CheckpointJournal<PageCheckpoint> journal, PageCheckpoint checkpoint) {
+        try {
+            journal.append(checkpoint);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to checkpoint Okta scan", e);
+        }
+    }
+
+    /**
+     * Ask for bigger pages while the rate limit budget is under pressure, since fewer calls are then needed for the
+     * same users. A page that comes back smaller than requested while there are more pages shows the most Okta will
+     * return, and becomes the new maximum.
+     */
+    private void adjustPageSize(int requested, int returned, boolean hasNextPage) {
+        if (hasNextPage && returned < requested) {
+            maxPageSize = returned;
+            if (pageSize.getAndSet(returned) != returned) {
+                log.info("Okta returned {} users when {} were requested, using a page size of {}",
+                        returned, requested, returned);
+            }
+        } else if (returned == requested && requested < maxPageSize
+                && oktaRateLimiter.getRemainingFraction(OktaEndpoint.USERS) < PAGE_SIZE_INCREASE_THRESHOLD) {
+            int increased = Math.min(maxPageSize, requested * 2);
+            if (pageSize.compareAndSet(requested, increased)) {
+                log.info("Increased Okta page size to {}", increased);
+            }
+        }
+    }
+
+    String getNextCursor(ResponseEntity<?> response) {
+        List<String> headers = response.getHeaders().get(OKTA_HEADER_LINKS);
+        if (headers == null) {
+            return null;
+        }
+
+        String nextPageUrl = headers.stream()
+                .filter(url -> url.contains(NEXT_PAGE_INDICATOR))
+                .findFirst()
+                .orElse(null);
+
+        if (nextPageUrl != null) {
+            Matcher matcher = NEXT_PAGE_PATTERN.matcher(nextPageUrl);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A page of users fetched from one slice of the scan, the cursor of the page after it, and the time the scan cut
+     * its slices at, in epoch milliseconds or 0 if unknown.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class PageCheckpoint {
+        private String slice;
+        private String after;
+        private List<OktaUserRecord> users;
+        private long scanStartedAt;
+    }
+
+    /**
+     * High-water mark of an incremental sync: users updated after {@code updatedSince} are fetched on the next run.
+     */
+    @Getter
+    @AllArgsConstructor
+    private static class Watermark {
+        private final DateTime updatedSince;
+        private final DateTime lastFullScan;
+    }
+
+    /**
+     * How the directory scan is split into slices.
+     */
+    enum Partitioning {
+        NONE,
+        STATUS,
+        LAST_UPDATED
+    }
+
+    private int readCache(Consumer<List<OktaUserRecord>> pageHandler) {
+        File f = new File(OKTA_USER_CACHE.getFilename());
+        if (!f.exists()) {
+            return 0;
+        }
+
+        int userCount = 0;
+        List<OktaUserRecord> page = Lists.newArrayList();
+        try (MappingIterator<OktaUserRecord> users = objectMapper.readerFor(OktaUserRecord.class).readValues(f)) {
+            while (users.hasNextValue()) {
+                page.add(users.nextValue());
+                if (page.size() == OKTA_PAGE_SIZE) {
+                    pageHandler.accept(page);
+                    userCount += page.size();
+                    page = Lists.newArrayList();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read Okta users from cache");
+            if (userCount > 0) {
+                throw new IllegalStateException("Okta user cache is corrupt after " + userCount + " users", e);
+            }
+            return 0;
+        }
+
+        if (!page.isEmpty()) {
+            pageHandler.accept(page);
+            userCount += page.size();
+        }
+        return userCount;
+    }
+
+    private void writePage(JsonGenerator generator, List<OktaUserRecord> page) {
+        try {
+            for (OktaUserRecord oktaUser : page) {
+                generator.writeObject(oktaUser);
+            }
+            generator.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write Okta user cache", e);
+        }
+    }
+}
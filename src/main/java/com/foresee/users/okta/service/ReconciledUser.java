@@ -0,0 +1,78 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+
+/**
+ * An APP_USER row joined with its Okta user, with every string the rules compare already turned into a flag.
+ * <p>
+ * The flags are worked out once per row, so rules test booleans and enums instead of repeating
+ * {@code equalsIgnoreCase} on the same columns.
+ * </p>
+ */
+@Getter
+class ReconciledUser {
+
+    static final String PASSWORD_MIGRATED_STATUS = "PASSWORD_MIGRATED";
+    static final String FORESEE_PROVIDER = "FORESEE";
+    private static final String YES = "Y";
+    private static final String NO = "N";
+    private static final String NOT_AVAILABLE = "n/a";
+
+    private final AppUserRecord foreseeUser;
+    private final OktaUserRecord oktaUser;
+    private final UserStatus oktaUserStatus;
+    private final boolean accountEnabled;
+    private final boolean accountDisabled;
+    private final boolean passwordMigrated;
+    private final boolean passwordNotMigrated;
+    // OKTA_STATUS is compared case sensitively by every rule but one, which is kept as it was
+    private final boolean oktaStatusPasswordMigrated;
+    private final boolean oktaStatusPasswordMigratedIgnoringCase;
+    private final boolean foreseeProvider;
+    private final DateTime lastLogonDate;
+    private final boolean passwordSet;
+    private String csv;
+
+    ReconciledUser(AppUserRecord foreseeUser, OktaUserRecord oktaUser) {
+        this.foreseeUser = foreseeUser;
+        this.oktaUser = oktaUser;
+        this.oktaUserStatus = oktaUser != null ? oktaUser.getStatus() : null;
+        this.accountEnabled = YES.equalsIgnoreCase(foreseeUser.getAccountEnabled());
+        this.accountDisabled = NO.equalsIgnoreCase(foreseeUser.getAccountEnabled());
+        this.passwordMigrated = YES.equalsIgnoreCase(foreseeUser.getPasswordMigrated());
+        this.passwordNotMigrated = NO.equalsIgnoreCase(foreseeUser.getPasswordMigrated());
+        this.oktaStatusPasswordMigrated = PASSWORD_MIGRATED_STATUS.equals(foreseeUser.getOktaStatus());
+        this.oktaStatusPasswordMigratedIgnoringCase =
+                PASSWORD_MIGRATED_STATUS.equalsIgnoreCase(foreseeUser.getOktaStatus());
+        this.foreseeProvider = FORESEE_PROVIDER.equalsIgnoreCase(foreseeUser.getAuthenticationProvider());
+        this.lastLogonDate = foreseeUser.getLastLogonDate();
+        this.passwordSet = foreseeUser.isPasswordSet();
+    }
+
+    /**
+     * @return the row as it is written to the reports, built the first time it is needed
+     */
+    String toCsv() {
+        if (csv == null) {
+            csv = StringUtils.joinWith(",",
+                    foreseeUser.getClientId(),
+                    foreseeUser.getId(),
+                    foreseeUser.getAccountEnabled(),
+                    foreseeUser.getLastLogonDate(),
+                    foreseeUser.getUserName(),
+                    foreseeUser.getPasswordMigrated(),
+                    foreseeUser.getOktaStatus(),
+                    foreseeUser.getAuthenticationProvider(),
+                    foreseeUser.getOktaId(),
+                    oktaUser != null ? oktaUser.getStatus() : NOT_AVAILABLE,
+                    oktaUser != null ? oktaUser.getLastLogin() : NOT_AVAILABLE,
+                    oktaUser != null ? oktaUser.getPasswordChanged() : NOT_AVAILABLE);
+        }
+        return csv;
+    }
+}
@@ -0,0 +1,246 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.index.OktaUserIndex;
+import com.foresee.users.okta.repository.UserRepository;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import lombok.extern.log4j.Log4j2;
+import org.assertj.core.util.Lists;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the Okta users and their APP_USER rows in memory and writes the reports from them on a schedule, instead of
+ * starting a batch run for each set of reports.
+ * <p>
+ * The first refresh reads everything, straight from Okta and APP_USER rather than from the caches or checkpoints of
+ * earlier runs. Later refreshes only fetch the Okta users updated since the last one, going by {@code lastUpdated},
+ * and the APP_USER rows changed since then, going by LAST_MODIFIED, and fold them into a new
+ * {@link ReconciliationIndex}. Neither shows deletions, so every {@code okta.daemon.full-refresh-interval-hours} both
+ * sides are built again from scratch the same way as the first time.
+ * </p>
+ * <p>
+ * Refreshes run {@code okta.daemon.refresh-interval-millis} apart and can be started at any time over JMX, as can
+ * writing the reports again from the index as it is. Only one of them runs at a time. Each time the reports are
+ * written a {@link UserQueryIndex} is built from the same classification, for the query API to serve.
+ * </p>
+ */
+@Service
+@ConditionalOnProperty(name = "okta.daemon.enabled", havingValue = "true")
+@ManagedResource(objectName = "okta-reconciliation:type=ReconciliationDaemon")
+@Log4j2
+public class ReconciliationDaemon {
+
+    // Changes made while a refresh is running may or may not be in it, so the next refresh goes back a little further
+    private static final Duration SYNC_OVERLAP = Duration.standardMinutes(5);
+
+    @Value("${okta.daemon.full-refresh-interval-hours:24}")
+    private int fullRefreshIntervalHours;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private OktaUserScanner oktaUserScanner;
+
+    @Autowired
+    private AppUserLoader appUserLoader;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile ReconciliationIndex index;
+    private volatile UserQueryIndex queryIndex;
+    private volatile long lastRefreshMillis;
+
+    @PostConstruct
+    public void registerMetrics() {
+        metricRegistry.register(MetricRegistry.name("daemon", "okta-users"), (Gauge<Integer>) this::getOktaUserCount);
+        metricRegistry.register(MetricRegistry.name("daemon", "app-users"), (Gauge<Integer>) this::getAppUserCount);
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${okta.daemon.refresh-interval-millis:900000}")
+    public void scheduledRefresh() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            // Keep the schedule going, the next refresh starts from the last index that was built
+            log.error("Refresh failed", e);
+        }
+    }
+
+    /**
+     * Bring the index up to date and write the reports from it.
+     *
+     * @return false if a refresh or report run was already going, in which case nothing is done
+     */
+    @ManagedOperation(description = "Fetch what changed in Okta and APP_USER and write the reports")
+    public boolean refresh() {
+        if (!lock.tryLock()) {
+            log.info("A refresh is already running");
+            return false;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            try (Timer.Context ignored = metricRegistry.timer(MetricRegistry.name("daemon", "refresh")).time()) {
+                ReconciliationIndex current = index;
+                if (current == null || current.getLastFullRefresh().plusHours(fullRefreshIntervalHours).isBeforeNow()) {
+                    index = load();
+                } else {
+                    index = update(current);
+                }
+                queryIndex = userService.execute(index);
+            }
+            lastRefreshMillis = System.currentTimeMillis() - start;
+            log.info("Refreshed {} Okta users and {} Foresee users in {}ms",
+                    getOktaUserCount(), getAppUserCount(), lastRefreshMillis);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the reports again from the index as it is, without reading Okta or APP_USER.
+     *
+     * @return false if there is no index yet, or a refresh or report run was already going
+     */
+    @ManagedOperation(description = "Write the reports from the users in memory without fetching anything")
+    public boolean writeReports() {
+        ReconciliationIndex current = index;
+        if (current == null || !lock.tryLock()) {
+            log.info("No index to write reports from, or a refresh is already running");
+            return false;
+        }
+        try {
+            queryIndex = userService.execute(current);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Okta users in memory")
+    public int getOktaUserCount() {
+        ReconciliationIndex current = index;
+        return current == null ? 0 : current.getOktaUsers().size();
+    }
+
+    @ManagedAttribute(description = "APP_USER rows in memory")
+    public int getAppUserCount() {
+        ReconciliationIndex current = index;
+        return current == null ? 0 : current.getAppUsers().size();
+    }
+
+    @ManagedAttribute(description = "Okta changes up to this time are in memory")
+    public String getOktaSyncedAt() {
+        ReconciliationIndex current = index;
+        return current == null ? null : current.getOktaSyncedAt().toString();
+    }
+
+    @ManagedAttribute(description = "Time taken by the last refresh, in milliseconds")
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    /**
+     * @return the index as of the last refresh, or null before the first one is done
+     */
+    public ReconciliationIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the users as of the last time the reports were written, or null before the first time
+     */
+    public UserQueryIndex getQueryIndex() {
+        return queryIndex;
+    }
+
+    private ReconciliationIndex load() {
+        log.info("Reading every Okta user and Foresee user");
+        DateTime start = DateTime.now();
+        OktaUserIndex oktaUsers = new OktaUserIndex();
+        oktaUserScanner.scanAllWithoutCheckpoint(page -> page.forEach(oktaUsers::add));
+        List<AppUserRecord> appUsers = appUserLoader.loadWithoutCheckpoint(Longs.asList(oktaUsers.getForeseeIds()));
+        return new ReconciliationIndex(oktaUsers, appUsers, start, start, start);
+    }
+
+    /**
+     * Build a new index from the old one and whatever changed since it was built.
+     * <p>
+     * Changed Okta users replace their old copy in place and new ones go at the end, so positions in the new index
+     * are those of the old one for every user that was already there. Changed APP_USER rows replace their old copy,
+     * and the rows of Okta users that were not in the old index are read by id.
+     * </p>
+     */
+    private ReconciliationIndex update(ReconciliationIndex old) {
+        DateTime start = DateTime.now();
+        Map<String, OktaUserRecord> changedOktaUsers = Maps.newLinkedHashMap();
+        oktaUserScanner.scanChangedSince(old.getOktaSyncedAt().minus(SYNC_OVERLAP),
+                page -> page.forEach(oktaUser -> changedOktaUsers.put(oktaUser.getId(), oktaUser)));
+        Map<Long, AppUserRecord> changedAppUsers = Maps.newHashMap();
+        for (AppUserRecord appUser
+                : userRepository.findRecordsByLastModifiedAfter(old.getAppUsersSyncedAt().minus(SYNC_OVERLAP))) {
+            changedAppUsers.put(appUser.getId(), appUser);
+        }
+        log.info("Found {} Okta users and {} Foresee users changed since the last refresh",
+                changedOktaUsers.size(), changedAppUsers.size());
+
+        OktaUserIndex oldOktaUsers = old.getOktaUsers();
+        OktaUserIndex oktaUsers = new OktaUserIndex();
+        for (int i = 0; i < oldOktaUsers.size(); i++) {
+            OktaUserRecord oktaUser = oldOktaUsers.get(i);
+            OktaUserRecord changed = changedOktaUsers.remove(oktaUser.getId());
+            oktaUsers.add(changed != null ? changed : oktaUser);
+        }
+        changedOktaUsers.values().forEach(oktaUsers::add);
+
+        List<AppUserRecord> appUsers = Lists.newArrayList();
+        for (AppUserRecord appUser : old.getAppUsers()) {
+            AppUserRecord changed = changedAppUsers.remove(appUser.getId());
+            appUsers.add(changed != null ? changed : appUser);
+        }
+        List<Long> newIds = Lists.newArrayList();
+        for (long foreseeId : oktaUsers.getForeseeIds()) {
+            if (!oldOktaUsers.containsForeseeId(foreseeId)) {
+                changedAppUsers.remove(foreseeId);
+                newIds.add(foreseeId);
+            }
+        }
+        for (AppUserRecord appUser : changedAppUsers.values()) {
+            // A row that is new to APP_USER but points at an Okta user that was already there
+            if (oktaUsers.containsForeseeId(appUser.getId())) {
+                appUsers.add(appUser);
+            }
+        }
+        Iterables.partition(newIds, AppUserLoader.PARTITION_SIZE)
+                .forEach(subList -> appUsers.addAll(userRepository.findRecordsByIdIn(subList)));
+
+        log.info("Updated the index in {}ms", DateTime.now().getMillis() - start.getMillis());
+        return new ReconciliationIndex(oktaUsers, appUsers, start, start, old.getLastFullRefresh());
+    }
+}
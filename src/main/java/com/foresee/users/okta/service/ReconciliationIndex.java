@@ -0,0 +1,27 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.index.OktaUserIndex;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.joda.time.DateTime;
+
+import java.util.List;
+
+/**
+ * The Okta users and the APP_USER rows that point at them, as of a refresh of the {@link ReconciliationDaemon}.
+ * <p>
+ * Never changed once built: a refresh builds a new index next to the old one and swaps it in, so the reports can be
+ * written from an index while the next one is being built.
+ * </p>
+ */
+@Getter
+@AllArgsConstructor
+public class ReconciliationIndex {
+    private final OktaUserIndex oktaUsers;
+    private final List<AppUserRecord> appUsers;
+    // Okta users and APP_USER rows changed after these times are not in the index yet
+    private final DateTime oktaSyncedAt;
+    private final DateTime appUsersSyncedAt;
+    private final DateTime lastFullRefresh;
+}
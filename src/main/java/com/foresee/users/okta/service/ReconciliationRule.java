@@ -0,0 +1,20 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.service.UserService.LogFile;
+
+/**
+ * A check run against every APP_USER row that matched an Okta user. Rows the check matches are written to the
+ * rule's report.
+ * <p>
+ * The built in checks are the {@link StandardRule}s; further checks can be added as Spring beans implementing this
+ * interface, and run after them.
+ * </p>
+ */
+interface ReconciliationRule {
+
+    String getName();
+
+    LogFile getLogFile();
+
+    boolean matches(ReconciledUser user);
+}
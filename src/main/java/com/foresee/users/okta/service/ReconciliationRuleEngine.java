@@ -0,0 +1,71 @@
+package com.foresee.users.okta.service;
+
+import lombok.extern.log4j.Log4j2;
+import org.assertj.core.util.Lists;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs every {@link ReconciliationRule} over each matched row in a single pass, writing the row to the report of
+ * each rule that matches.
+ * <p>
+ * Matches and time spent are counted per rule and logged by {@link #logSummary()}, so the cost of a new check shows
+ * up on the first run that has it.
+ * </p>
+ */
+@Component
+@Log4j2
+class ReconciliationRuleEngine {
+
+    @Autowired(required = false)
+    private List<ReconciliationRule> customRules = Collections.emptyList();
+
+    private ReconciliationRule[] rules;
+    private LongAdder[] matches;
+    private LongAdder[] nanos;
+    private final LongAdder rows = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        List<ReconciliationRule> allRules = Lists.newArrayList(Arrays.asList(StandardRule.values()));
+        allRules.addAll(customRules);
+        rules = allRules.toArray(new ReconciliationRule[0]);
+        matches = new LongAdder[rules.length];
+        nanos = new LongAdder[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            matches[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+        }
+    }
+
+    void evaluate(ReconciledUser user, ReportSink reports) {
+        rows.increment();
+        for (int i = 0; i < rules.length; i++) {
+            long start = System.nanoTime();
+            boolean matched = rules[i].matches(user);
+            nanos[i].add(System.nanoTime() - start);
+            if (matched) {
+                matches[i].increment();
+                reports.write(rules[i].getLogFile(), user.toCsv());
+            }
+        }
+    }
+
+    /**
+     * Log the rows each rule matched and the time it took since the last summary, and start counting again.
+     */
+    void logSummary() {
+        log.info("Evaluated {} rules over {} rows", rules.length, rows.sumThenReset());
+        for (int i = 0; i < rules.length; i++) {
+            log.info("Rule {}: {} matches, {}ms", rules[i].getName(), matches[i].sumThenReset(),
+                    TimeUnit.NANOSECONDS.toMillis(nanos[i].sumThenReset()));
+        }
+    }
+}
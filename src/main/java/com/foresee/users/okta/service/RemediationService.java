@@ -0,0 +1,295 @@
+package com.foresee.users.okta.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.okta.domain.user.OktaUser;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.client.OktaEndpoint;
+import com.foresee.users.okta.client.OktaRateLimiter;
+import com.foresee.users.okta.client.OktaUsersClient;
+import com.foresee.users.okta.service.UserService.LogFile;
+import com.google.common.collect.Sets;
+import feign.FeignException;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.assertj.core.util.Lists;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Fixes what the reconciliation found, by reading the finished reports and calling the Okta lifecycle API.
+ * <p>
+ * Orphans in {@code OrphanOktaUsersToDelete.csv} are deactivated unless they already are. Rows in
+ * {@code MismatchedStatus.csv} are suspended or unsuspended to match ACCOUNT_ENABLED, and enabled users that are
+ * locked out in {@code FullUserList.csv} are unlocked. The calls run on {@code okta.remediation.parallelism} threads
+ * and every one of them goes through {@link OktaRateLimiter}, so the lifecycle budget decides how fast they go.
+ * </p>
+ * <p>
+ * Each action that succeeds is appended to {@code RemediationJournal}, and an action already in the journal is not
+ * made again, so a run that dies part way can be resumed without repeating its calls. The journal is deleted once
+ * every planned action has been tried, so a later run starts from what its own reports say rather than from what
+ * was done before. Every action, made or not, gets a row in {@code RemediationResults.csv}.
+ * In dry run mode, the default, the actions are only written to the results.
+ * </p>
+ */
+@Service
+@Log4j2
+public class RemediationService {
+
+    private static final String OKTA_TOKEN_PREFIX = "SSWS ";
+    private static final String MEDIA_TYPE_JSON = "application/json";
+    private static final String YES = "Y";
+    private static final String NO = "N";
+
+    @Value("${okta.api-token}")
+    private String apiToken;
+
+    @Value("${okta.remediation.dry-run:true}")
+    private boolean dryRun;
+
+    @Value("${okta.remediation.parallelism:8}")
+    private int parallelism;
+
+    @Value("${okta.checkpoint.sync-interval:10}")
+    private int syncInterval;
+
+    @Autowired
+    private OktaUsersClient oktaUsersClient;
+
+    @Autowired
+    private OktaRateLimiter oktaRateLimiter;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ReportWriter reportWriter;
+
+    enum Action {
+        DEACTIVATE,
+        SUSPEND,
+        UNSUSPEND,
+        UNLOCK
+    }
+
+    enum Outcome {
+        DONE,
+        DRY_RUN,
+        ALREADY_DONE,
+        FAILED
+    }
+
+    /**
+     * Plan the actions from the reports of the run that just finished and carry them out.
+     * The reports must be closed first.
+     */
+    public void remediate() {
+        List<RemediationEntry> actions = plan();
+        log.info("Planned {} remediation actions{}", actions.size(), dryRun ? " (dry run)" : "");
+
+        File journalFile = new File(LogFile.REMEDIATION_JOURNAL.getFilename());
+        try (CheckpointJournal<RemediationEntry> journal =
+                     new CheckpointJournal<>(journalFile, objectMapper, RemediationEntry.class, syncInterval);
+             Writer results = reportWriter.createReport(reportWriter.getReportFile(LogFile.REMEDIATION_RESULTS))) {
+            Set<RemediationEntry> done = Sets.newHashSet();
+            int replayed = journal.replay(done::add);
+            log.info("{} remediation actions were already made by an interrupted run", replayed);
+
+            results.write(StringUtils.joinWith(",", "TIME", "ACTION", "OKTA_ID", "OUTCOME", "DETAIL"));
+            results.write('\n');
+            run(actions, done, journal, results);
+            journal.complete();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write remediation results", e);
+        }
+    }
+
+    List<RemediationEntry> plan() {
+        List<RemediationEntry> actions = Lists.newArrayList();
+        Set<RemediationEntry> planned = Sets.newHashSet();
+        Consumer<RemediationEntry> add = entry -> {
+            if (planned.add(entry)) {
+                actions.add(entry);
+            }
+        };
+
+        // OKTA_ID,CLIENT_ID,FORESEE_ID,LOGIN,STATUS
+        readReport(LogFile.OKTA_USERS_TO_DELETE, false, columns -> {
+            if (getStatus(columns[columns.length - 1]) != UserStatus.DEPROVISIONED) {
+                add.accept(new RemediationEntry(Action.DEACTIVATE, columns[0]));
+            }
+        });
+
+        // The user name can hold commas, so the Okta columns are counted from the end of the row
+        readReport(LogFile.MISMATCHED_STATUS, true, columns -> {
+            String enabled = columns[2];
+            String oktaId = columns[columns.length - 4];
+            UserStatus status = getStatus(columns[columns.length - 3]);
+            if (YES.equalsIgnoreCase(enabled) && status == UserStatus.SUSPENDED) {
+                add.accept(new RemediationEntry(Action.UNSUSPEND, oktaId));
+            } else if (NO.equalsIgnoreCase(enabled) && status == UserStatus.ACTIVE) {
+                // Okta only suspends active users
+                add.accept(new RemediationEntry(Action.SUSPEND, oktaId));
+            }
+        });
+
+        readReport(LogFile.FULL_USER_LIST, true, columns -> {
+            if (YES.equalsIgnoreCase(columns[2])
+                    && getStatus(columns[columns.length - 3]) == UserStatus.LOCKED_OUT) {
+                add.accept(new RemediationEntry(Action.UNLOCK, columns[columns.length - 4]));
+            }
+        });
+        return actions;
+    }
+
+    private void run(List<RemediationEntry> actions, Set<RemediationEntry> done,
+                     CheckpointJournal<RemediationEntry> journal, Writer results) throws IOException {
+        Map<Outcome, LongAdder> counts = new EnumMap<>(Outcome.class);
+        for (Outcome outcome : Outcome.values()) {
+            counts.put(outcome, new LongAdder());
+        }
+        long start = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Callable<Void>> calls = Lists.newArrayList();
+            for (RemediationEntry action : actions) {
+                calls.add(() -> {
+                    Result result = done.contains(action)
+                            ? new Result(Outcome.ALREADY_DONE, null)
+                            : dryRun ? new Result(Outcome.DRY_RUN, null) : apply(action, journal);
+                    counts.get(result.outcome).increment();
+                    writeResult(results, action, result);
+                    return null;
+                });
+            }
+            executor.invokeAll(calls);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while remediating users", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info("Remediated {} users in {} ms: {}", actions.size(), System.currentTimeMillis() - start, counts);
+    }
+
+    private Result apply(RemediationEntry action, CheckpointJournal<RemediationEntry> journal) {
+        String token = OKTA_TOKEN_PREFIX + apiToken;
+        String oktaId = action.getOktaId();
+        try {
+            oktaRateLimiter.execute(OktaEndpoint.USER_LIFECYCLE, () -> {
+                switch (action.getAction()) {
+                    case DEACTIVATE:
+                        return oktaUsersClient.deactivateUser(MEDIA_TYPE_JSON, MEDIA_TYPE_JSON, token, oktaId);
+                    case SUSPEND:
+                        return oktaUsersClient.suspend(MEDIA_TYPE_JSON, MEDIA_TYPE_JSON, token, oktaId);
+                    case UNSUSPEND:
+                        return oktaUsersClient.unsuspend(MEDIA_TYPE_JSON, MEDIA_TYPE_JSON, token, oktaId);
+                    case UNLOCK:
+                        // Feign will not send a null body, and Okta ignores the one it gets
+                        return oktaUsersClient.unlock(MEDIA_TYPE_JSON, MEDIA_TYPE_JSON, token, oktaId,
+                                new OktaUser());
+                    default:
+                        throw new IllegalArgumentException("Unknown remediation action " + action.getAction());
+                }
+            });
+        } catch (FeignException e) {
+            log.warn("Failed to {} Okta user {}: {}", action.getAction(), oktaId, e.status());
+            return new Result(Outcome.FAILED, "HTTP " + e.status());
+        } catch (RuntimeException e) {
+            log.warn("Failed to {} Okta user {}", action.getAction(), oktaId, e);
+            return new Result(Outcome.FAILED, e.getClass().getSimpleName());
+        }
+        try {
+            journal.append(action);
+        } catch (IOException e) {
+            log.warn("Failed to journal {} of Okta user {}, it will be made again on the next run",
+                    action.getAction(), oktaId, e);
+        }
+        return new Result(Outcome.DONE, null);
+    }
+
+    private static void writeResult(Writer results, RemediationEntry action, Result result) {
+        String row = StringUtils.joinWith(",",
+                DateTime.now(),
+                action.getAction(),
+                action.getOktaId(),
+                result.outcome,
+                StringUtils.defaultString(result.detail));
+        synchronized (results) {
+            try {
+                results.write(row);
+                results.write('\n');
+            } catch (IOException e) {
+                log.warn("Failed to write remediation result {}", row, e);
+            }
+        }
+    }
+
+    private void readReport(LogFile logFile, boolean hasHeader, Consumer<String[]> consumer) {
+        File file = reportWriter.getReportFile(logFile);
+        try (BufferedReader reader = reportWriter.openReport(file)) {
+            if (reader == null) {
+                return;
+            }
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                if (first && hasHeader) {
+                    first = false;
+                    continue;
+                }
+                first = false;
+                if (!line.isEmpty()) {
+                    consumer.accept(line.split(",", -1));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read " + file, e);
+        }
+    }
+
+    private static UserStatus getStatus(String status) {
+        try {
+            return UserStatus.valueOf(status);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An action on one Okta user, as planned and as journaled once it is made.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class RemediationEntry {
+        private Action action;
+        private String oktaId;
+    }
+
+    @AllArgsConstructor
+    private static class Result {
+        private final Outcome outcome;
+        private final String detail;
+    }
+}
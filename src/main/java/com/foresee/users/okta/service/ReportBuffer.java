@@ -0,0 +1,35 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.service.UserService.LogFile;
+import org.assertj.core.util.Lists;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Report rows held in memory by one thread, to be written out in order once its work is merged with the others'.
+ * Not thread safe.
+ */
+class ReportBuffer implements ReportSink {
+
+    private final Map<LogFile, List<String>> rows = new EnumMap<>(LogFile.class);
+
+    @Override
+    public void write(LogFile logFile, String message) {
+        rows.computeIfAbsent(logFile, l -> Lists.newArrayList()).add(message);
+    }
+
+    /**
+     * Add the rows of a buffer that follows this one.
+     */
+    void append(ReportBuffer other) {
+        other.rows.forEach((logFile, messages) ->
+                rows.computeIfAbsent(logFile, l -> Lists.newArrayList()).addAll(messages));
+    }
+
+    void writeTo(ReportSink sink) {
+        rows.forEach((logFile, messages) -> messages.forEach(message -> sink.write(logFile, message)));
+        rows.clear();
+    }
+}
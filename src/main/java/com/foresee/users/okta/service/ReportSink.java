@@ -0,0 +1,11 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.service.UserService.LogFile;
+
+/**
+ * Somewhere report rows can be written.
+ */
+interface ReportSink {
+
+    void write(LogFile logFile, String message);
+}
@@ -0,0 +1,358 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.foresee.users.okta.report.BlockGzipOutputStream;
+import com.foresee.users.okta.report.ColumnarReport;
+import com.foresee.users.okta.report.ColumnarReport.Type;
+import com.foresee.users.okta.report.ColumnarReportWriter;
+import com.foresee.users.okta.service.UserService.LogFile;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Writes the report files on a background thread.
+ * <p>
+ * Each report is opened once per run and kept behind a large buffer. Rows are handed over through a queue, so the
+ * thread classifying users only blocks if the writer falls a whole queue behind. {@link #close()} drains the queue,
+ * flushes every report and forces it to disk.
+ * </p>
+ * <p>
+ * With {@code okta.report.compression} every report is written as {@code <file>.csv.gz} instead, in gzip members of
+ * about {@code okta.report.block-size} bytes deflated at {@code okta.report.compression-level}. With
+ * {@code okta.report.columnar} the reports laid out as {@link UserService#getHeader()} are also written as a
+ * {@link ColumnarReport}, {@code <file>.columns}, with the status, flag and provider columns dictionary encoded and
+ * the dates as timestamps.
+ * </p>
+ * <p>
+ * Rows and characters written to each report are metered as {@code report.<file>.rows} and
+ * {@code report.<file>.chars}.
+ * </p>
+ */
+@Component
+@Log4j2
+class ReportWriter implements ReportSink {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int DRAIN_BATCH_SIZE = 1024;
+    private static final Row END = new Row(null, null);
+    static final String COMPRESSED_SUFFIX = ".gz";
+    private static final String CSV_SUFFIX = ".csv";
+    private static final String COLUMNAR_SUFFIX = ".columns";
+    private static final String NOT_AVAILABLE = "n/a";
+    // The columns of UserService#getHeader()
+    private static final List<String> USER_COLUMNS = Arrays.asList(
+            "CLIENT_ID",
+            "USER_ID",
+            "ACCOUNT_ENABLED",
+            "LAST_LOGON_DATE",
+            "USERNAME",
+            "PASSWORD_MIGRATED",
+            "OKTA_STATUS",
+            "AUTHENTICATION_PROVIDER",
+            "OKTA_ID",
+            "STATUS_IN_OKTA",
+            "LAST_OKTA_LOGIN",
+            "LAST_PASSWORD_CHANGE");
+    private static final List<Type> USER_COLUMN_TYPES = Arrays.asList(
+            Type.LONG,
+            Type.LONG,
+            Type.DICTIONARY,
+            Type.TIMESTAMP,
+            Type.STRING,
+            Type.DICTIONARY,
+            Type.DICTIONARY,
+            Type.DICTIONARY,
+            Type.STRING,
+            Type.DICTIONARY,
+            Type.TIMESTAMP,
+            Type.TIMESTAMP);
+    // The user name can hold commas, so the columns after it are counted from the end of the row
+    private static final int USERNAME_COLUMN = 4;
+
+    @Value("${okta.report.queue-capacity:65536}")
+    private int queueCapacity;
+
+    @Value("${okta.report.compression:false}")
+    private boolean compression;
+
+    @Value("${okta.report.block-size:1048576}")
+    private int blockSize;
+
+    @Value("${okta.report.compression-level:1}")
+    private int compressionLevel;
+
+    @Value("${okta.report.columnar:false}")
+    private boolean columnar;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private final Map<LogFile, FileOutputStream> files = new EnumMap<>(LogFile.class);
+    private final Map<LogFile, Meter> rowMeters = new EnumMap<>(LogFile.class);
+    private final Map<LogFile, Meter> charMeters = new EnumMap<>(LogFile.class);
+    private final Map<LogFile, Writer> writers = new EnumMap<>(LogFile.class);
+    private final Map<LogFile, ColumnarReportWriter> columnarWriters = new EnumMap<>(LogFile.class);
+    private final Set<LogFile> headersSeen = EnumSet.noneOf(LogFile.class);
+    private BlockingQueue<Row> queue;
+    private Thread thread;
+    // Set if the writer thread has died before it was closed
+    private volatile boolean stopped;
+
+    /**
+     * Truncate every report and start the writer thread.
+     */
+    synchronized void open() throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Reports are already open");
+        }
+        for (LogFile logFile : LogFile.values()) {
+            if (!logFile.isCacheFile()) {
+                File f = getReportFile(logFile);
+                File dir = f.getParentFile();
+                if (dir != null && !dir.exists()) {
+                    dir.mkdirs();
+                }
+                FileOutputStream out = new FileOutputStream(f, false);
+                files.put(logFile, out);
+                OutputStream stream = compression ? new BlockGzipOutputStream(out, blockSize, compressionLevel) : out;
+                writers.put(logFile,
+                        new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE));
+                if (columnar && logFile.hasHeader()) {
+                    File columns = new File(StringUtils.removeEnd(logFile.getFilename(), CSV_SUFFIX) + COLUMNAR_SUFFIX);
+                    columnarWriters.put(logFile, new ColumnarReportWriter(columns, USER_COLUMNS, USER_COLUMN_TYPES));
+                }
+                rowMeters.put(logFile, metricRegistry.meter(MetricRegistry.name("report", logFile.name(), "rows")));
+                charMeters.put(logFile, metricRegistry.meter(MetricRegistry.name("report", logFile.name(), "chars")));
+            }
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        stopped = false;
+        thread = new Thread(this::drain, "report-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a line to be appended to a report.
+     *
+     * @throws IllegalStateException if the reports are not open or the writer thread has died
+     */
+    @Override
+    public void write(LogFile logFile, String message) {
+        if (logFile.isCacheFile()) {
+            throw new IllegalArgumentException(logFile + " is not a report");
+        }
+        BlockingQueue<Row> q = queue;
+        if (q == null) {
+            throw new IllegalStateException("Reports are not open");
+        }
+        if (stopped) {
+            throw new IllegalStateException("The report writer has stopped, see the log for why");
+        }
+        try {
+            q.put(new Row(logFile, message));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing report row", e);
+        }
+    }
+
+    /**
+     * Write everything queued so far, force the reports to disk and close them.
+     */
+    @PreDestroy
+    synchronized void close() {
+        if (thread == null) {
+            return;
+        }
+        try {
+            if (!stopped) {
+                queue.put(END);
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while closing reports, some rows may be lost");
+        }
+        Timer.Context flush = metricRegistry.timer("report.flush").time();
+        for (Map.Entry<LogFile, Writer> entry : writers.entrySet()) {
+            LogFile logFile = entry.getKey();
+            try {
+                entry.getValue().flush();
+                files.get(logFile).getChannel().force(true);
+                entry.getValue().close();
+            } catch (IOException e) {
+                log.error("Failed to close report {}", logFile.getFilename(), e);
+            }
+        }
+        for (Map.Entry<LogFile, ColumnarReportWriter> entry : columnarWriters.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                log.error("Failed to write the columns of report {}", entry.getKey().getFilename(), e);
+            }
+        }
+        flush.stop();
+        writers.clear();
+        files.clear();
+        columnarWriters.clear();
+        headersSeen.clear();
+        queue = null;
+        thread = null;
+    }
+
+    private void drain() {
+        List<Row> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+                for (Row row : batch) {
+                    if (row == END) {
+                        return;
+                    }
+                    try {
+                        writeRow(row);
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Failed to write message to file {}. Message: {}",
+                                row.logFile.getFilename(), row.message, e);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            stopped = true;
+            log.error("Report writer interrupted, some rows may be lost");
+        } catch (Error e) {
+            stopped = true;
+            log.error("Report writer failed, no more rows will be written", e);
+            throw e;
+        } finally {
+            if (stopped) {
+                // Let producers blocked on a full queue through, they fail on their next row
+                queue.clear();
+            }
+        }
+    }
+
+    private void writeRow(Row row) throws IOException {
+        Writer writer = writers.get(row.logFile);
+        writer.write(row.message);
+        writer.write('\n');
+        rowMeters.get(row.logFile).mark();
+        charMeters.get(row.logFile).mark(row.message.length() + 1);
+        ColumnarReportWriter columns = columnarWriters.get(row.logFile);
+        // The first row of these reports is the header
+        if (columns != null && !headersSeen.add(row.logFile)) {
+            writeColumns(columns, row);
+        }
+    }
+
+    /**
+     * @return the file the report is written to, compressed or not
+     */
+    File getReportFile(LogFile logFile) {
+        return new File(logFile.getFilename() + (compression ? COMPRESSED_SUFFIX : ""));
+    }
+
+    /**
+     * @return the file the report is written to in another directory, such as a shard's
+     */
+    File getReportFile(LogFile logFile, String dir) {
+        return new File(logFile.getFilename(dir) + (compression ? COMPRESSED_SUFFIX : ""));
+    }
+
+    /**
+     * Open a finished report for reading, decompressing it if reports are compressed.
+     *
+     * @return the reader, or null if there is no such report
+     */
+    BufferedReader openReport(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        if (compression) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Create or truncate a report that is written outside of the writer thread, compressed if reports are.
+     */
+    Writer createReport(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        OutputStream out = new FileOutputStream(file, false);
+        if (compression) {
+            out = new BlockGzipOutputStream(out, blockSize, compressionLevel);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static void writeColumns(ColumnarReportWriter columns, Row row) {
+        String[] parts = row.message.split(",", -1);
+        int trailing = USER_COLUMNS.size() - USERNAME_COLUMN - 1;
+        if (parts.length < USER_COLUMNS.size()) {
+            log.warn("Row of {} left out of its columnar report: {}", row.logFile, row.message);
+            return;
+        }
+        String[] values = new String[USER_COLUMNS.size()];
+        System.arraycopy(parts, 0, values, 0, USERNAME_COLUMN);
+        values[USERNAME_COLUMN] = String.join(",",
+                Arrays.asList(parts).subList(USERNAME_COLUMN, parts.length - trailing));
+        System.arraycopy(parts, parts.length - trailing, values, USERNAME_COLUMN + 1, trailing);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].isEmpty() || NOT_AVAILABLE.equals(values[i])) {
+                values[i] = null;
+            }
+        }
+        try {
+            columns.write(values);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Row of {} left out of its columnar report: {}", row.logFile, row.message, e);
+        }
+    }
+
+    private static class Row {
+        private final LogFile logFile;
+        private final String message;
+
+        Row(LogFile logFile, String message) {
+            this.logFile = logFile;
+            this.message = message;
+        }
+    }
+}
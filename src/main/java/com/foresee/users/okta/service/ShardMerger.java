@@ -0,0 +1,132 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.users.okta.service.UserService.LogFile;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.assertj.core.util.Lists;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Puts the reports written by every shard of a {@link ClientShard} run together in the usual place, as if a single
+ * run had written them.
+ * <p>
+ * Reports are concatenated in shard order, with the column names written once for those that have them. The status
+ * counts are added up column by column. Caches, checkpoints and columnar reports stay with their shard.
+ * </p>
+ */
+@Service
+@Log4j2
+public class ShardMerger {
+
+    @Autowired
+    private ClientShard clientShard;
+
+    @Autowired
+    private ReportWriter reportWriter;
+
+    /**
+     * @throws IllegalStateException if a shard has not written its reports
+     */
+    public void merge() {
+        int count = clientShard.getCount();
+        for (int index = 0; index < count; index++) {
+            File dir = new File(ClientShard.getDirectory(index, count));
+            if (!dir.isDirectory()) {
+                throw new IllegalStateException("Shard " + index + " of " + count + " has no reports in " + dir);
+            }
+        }
+        new File(UserService.LOG_DIR).mkdirs();
+
+        for (LogFile logFile : LogFile.values()) {
+            if (logFile.isCacheFile()) {
+                continue;
+            }
+            try {
+                if (logFile == LogFile.STATUS_COUNTS) {
+                    mergeStatusCounts(count);
+                } else {
+                    concatenate(logFile, count);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to merge " + logFile.getFilename(UserService.LOG_DIR), e);
+            }
+        }
+        log.info("Merged the reports of {} shards into {}", count, UserService.LOG_DIR);
+    }
+
+    private void concatenate(LogFile logFile, int count) throws IOException {
+        File merged = reportWriter.getReportFile(logFile, UserService.LOG_DIR);
+        boolean headerWritten = false;
+        try (Writer out = reportWriter.createReport(merged)) {
+            for (int index = 0; index < count; index++) {
+                File f = reportWriter.getReportFile(logFile, ClientShard.getDirectory(index, count));
+                try (BufferedReader in = reportWriter.openReport(f)) {
+                    if (in == null) {
+                        continue;
+                    }
+                    // Every shard starts its report with the same header, which is kept from the first one that has it
+                    if (logFile.hasHeader()) {
+                        String header = in.readLine();
+                        if (header == null) {
+                            continue;
+                        }
+                        if (!headerWritten) {
+                            out.write(header);
+                            out.write('\n');
+                            headerWritten = true;
+                        }
+                    }
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                }
+            }
+        }
+    }
+
+    private void mergeStatusCounts(int count) throws IOException {
+        String header = null;
+        long[] totals = null;
+        for (int index = 0; index < count; index++) {
+            File f = reportWriter.getReportFile(LogFile.STATUS_COUNTS, ClientShard.getDirectory(index, count));
+            List<String> lines = Lists.newArrayList();
+            try (BufferedReader in = reportWriter.openReport(f)) {
+                if (in == null) {
+                    continue;
+                }
+                in.lines().forEach(lines::add);
+            }
+            if (lines.size() < 2) {
+                continue;
+            }
+            header = lines.get(0);
+            String[] counts = lines.get(1).split(",");
+            if (totals == null) {
+                totals = new long[counts.length];
+            }
+            for (int i = 0; i < counts.length && i < totals.length; i++) {
+                totals[i] += Long.parseLong(counts[i].trim());
+            }
+        }
+
+        File merged = reportWriter.getReportFile(LogFile.STATUS_COUNTS, UserService.LOG_DIR);
+        try (Writer out = reportWriter.createReport(merged)) {
+            if (header != null) {
+                out.write(header);
+                out.write('\n');
+                out.write(StringUtils.join(totals, ','));
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.service.UserService.LogFile;
+import org.joda.time.DateTime;
+
+/**
+ * The reconciliation checks, in the order their rows are written.
+ */
+enum StandardRule implements ReconciliationRule {
+
+    MISMATCHED_STATUS(LogFile.MISMATCHED_STATUS) {
+        @Override
+        public boolean matches(ReconciledUser user) {
+            UserStatus status = user.getOktaUserStatus();
+            return (user.isAccountEnabled() && status == UserStatus.SUSPENDED)
+                    || (user.isAccountDisabled()
+                    && status != UserStatus.SUSPENDED
+                    && status != UserStatus.PROVISIONED);
+        }
+    },
+
+    FULL_USER_LIST(LogFile.FULL_USER_LIST) {
+        @Override
+        public boolean matches(ReconciledUser user) {
+            return true;
+        }
+    },
+
+    /**
+     * Passwords show as migrated on APP_USER but status in Okta is PROVISIONED
+     */
+    PASSWORDS_MIGHT_NOT_BE_MIGRATED(LogFile.PASSWORDS_MIGHT_NOT_BE_MIGRATED) {
+        @Override
+        public boolean matches(ReconciledUser user) {
+            return user.isOktaStatusPasswordMigratedIgnoringCase()
+                    && user.getOktaUserStatus() == UserStatus.PROVISIONED;
+        }
+    },
+
+    /**
+     * Passwords show as not migrated but the status in Okta is active so they probably are migrated
+     */
+    PASSWORDS_PROBABLY_MIGRATED(LogFile.PASSWORDS_PROBABLY_MIGRATED) {
+        @Override
+        public boolean matches(ReconciledUser user) {
+            return !user.isOktaStatusPasswordMigrated()
+                    && user.isForeseeProvider()
+                    && user.getOktaUserStatus() == UserStatus.ACTIVE;
+        }
+    },
+
+    /**
+     * Passwords that are not migrated, for users who have logged in since the last release
+     */
+    PASSWORDS_NOT_MIGRATED(LogFile.PASSWORDS_NOT_MIGRATED) {
+        @Override
+        public boolean matches(ReconciledUser user) {
+            return !user.isOktaStatusPasswordMigrated()
+                    && user.isPasswordNotMigrated()
+                    && user.getOktaUserStatus() != UserStatus.ACTIVE
+                    && user.getLastLogonDate() != null
+                    && user.getLastLogonDate().isAfter(LAST_RELEASE)
+                    && user.isPasswordSet();
+        }
+    },
+
+    PASSWORD_MIGRATED_BUT_NOT_ACTIVE(LogFile.PASSWORD_MIGRATED_BUT_NOT_ACTIVE) {
+        @Override
+        public boolean matches(ReconciledUser user) {
+            return (user.isOktaStatusPasswordMigrated() || user.isPasswordMigrated())
+                    && user.getOktaUserStatus() != UserStatus.ACTIVE;
+        }
+    };
+
+    private static final DateTime LAST_RELEASE = new DateTime(2017, 12, 11, 0, 0);
+
+    private final LogFile logFile;
+
+    StandardRule(LogFile logFile) {
+        this.logFile = logFile;
+    }
+
+    @Override
+    public String getName() {
+        return name();
+    }
+
+    @Override
+    public LogFile getLogFile() {
+        return logFile;
+    }
+}
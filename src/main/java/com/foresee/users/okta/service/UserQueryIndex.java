@@ -0,0 +1,346 @@
+package com.foresee.users.okta.service;
+
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.index.LongIntHashMap;
+import com.foresee.users.okta.index.OktaUserIndex;
+import com.foresee.users.okta.index.StringIntHashMap;
+import com.foresee.users.okta.service.UserService.LogFile;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.assertj.core.util.Lists;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The users of a {@link ReconciliationIndex} joined across Okta and APP_USER, with the reports each of them is in,
+ * so that the state of a user can be looked up without going to Okta or reading the reports.
+ * <p>
+ * There is an entry for every APP_USER row and one for every Okta user that no row points at. A row is joined with
+ * the Okta user that has its OKTA_ID, or failing that the one that has its id as foreseeId. Entries are found by Okta
+ * id, foreseeId or login, and filtered by client, Okta status and report. Statuses and reports are bit sets over the
+ * entries and clients are lists of entries, so a filtered query costs a few bit set operations plus the page itself.
+ * </p>
+ * <p>
+ * Never changed once built, so any number of threads may query it.
+ * </p>
+ */
+public class UserQueryIndex {
+
+    private static final LogFile[] LOG_FILES = LogFile.values();
+    // The reports classification and the orphan pass below put entries in; the others never hold users
+    private static final List<LogFile> CATEGORIES = categoryLogFiles();
+    private static final UserStatus[] STATUSES = UserStatus.values();
+    private static final int NONE = -1;
+
+    private final OktaUserIndex oktaUsers;
+    private final List<AppUserRecord> appUsers;
+    private final int size;
+    // By entry
+    private final int[] oktaPositions;
+    private final int[] appUserRows;
+    private final long[] categories;
+    // By position in the Okta user index
+    private final int[] oktaEntries;
+    private final LongIntHashMap foreseeIdEntries = new LongIntHashMap();
+    private final StringIntHashMap loginEntries = new StringIntHashMap();
+    private final BitSet[] statusEntries = new BitSet[STATUSES.length];
+    private final BitSet[] categoryEntries = new BitSet[LOG_FILES.length];
+    private final LongIntHashMap clientCodes = new LongIntHashMap();
+    private final int[][] clientEntries;
+
+    /**
+     * @param rowCategories for each APP_USER row, the bits of the {@link LogFile} ordinals of the reports it is in
+     * @param claimed the positions of the Okta users that were matched by an APP_USER row
+     * @param oktaLogin the login an APP_USER row should have in Okta, or null
+     */
+    UserQueryIndex(OktaUserIndex oktaUsers, List<AppUserRecord> appUsers, long[] rowCategories, BitSet claimed,
+                   Function<AppUserRecord, String> oktaLogin) {
+        this.oktaUsers = oktaUsers;
+        this.appUsers = appUsers;
+
+        int maxSize = appUsers.size() + oktaUsers.size();
+        int[] oktaPositions = new int[maxSize];
+        int[] appUserRows = new int[maxSize];
+        long[] categories = new long[maxSize];
+        oktaEntries = new int[oktaUsers.size()];
+        Arrays.fill(oktaEntries, NONE);
+
+        int entry = 0;
+        for (int row = 0; row < appUsers.size(); row++, entry++) {
+            AppUserRecord appUser = appUsers.get(row);
+            int position = appUser.getOktaId() != null ? oktaUsers.findByOktaId(appUser.getOktaId()) : NONE;
+            if (position < 0) {
+                position = oktaUsers.findByForeseeId(appUser.getId());
+            }
+            appUserRows[entry] = row;
+            oktaPositions[entry] = position;
+            categories[entry] = rowCategories[row];
+            // Several rows can point at one Okta user; it is found by Okta id through the row that matched it
+            if (position >= 0 && (oktaEntries[position] == NONE
+                    || (!isMatched(categories[oktaEntries[position]]) && isMatched(categories[entry])))) {
+                oktaEntries[position] = entry;
+            }
+        }
+        for (int position = 0; position < oktaUsers.size(); position++) {
+            if (oktaEntries[position] == NONE) {
+                appUserRows[entry] = NONE;
+                oktaPositions[entry] = position;
+                oktaEntries[position] = entry++;
+            }
+            if (!oktaUsers.hasForeseeId(position)) {
+                categories[oktaEntries[position]] |= bit(LogFile.MISSING_FORESEE_ID_FILE);
+            } else if (!claimed.get(position)) {
+                categories[oktaEntries[position]] |= bit(LogFile.OKTA_USERS_TO_DELETE);
+            }
+        }
+        size = entry;
+        this.oktaPositions = Arrays.copyOf(oktaPositions, size);
+        this.appUserRows = Arrays.copyOf(appUserRows, size);
+        this.categories = Arrays.copyOf(categories, size);
+
+        for (int i = 0; i < STATUSES.length; i++) {
+            statusEntries[i] = new BitSet(size);
+        }
+        for (int i = 0; i < LOG_FILES.length; i++) {
+            categoryEntries[i] = new BitSet(size);
+        }
+        int[] clientSizes = new int[64];
+        int[] clientCodeByEntry = new int[size];
+        for (entry = 0; entry < size; entry++) {
+            index(entry, oktaLogin);
+            Long clientId = getClientId(entry);
+            int code = NONE;
+            if (clientId != null) {
+                code = clientCodes.size();
+                int existing = clientCodes.putIfAbsent(clientId, code);
+                if (existing != LongIntHashMap.NO_VALUE) {
+                    code = existing;
+                } else if (code == clientSizes.length) {
+                    clientSizes = Arrays.copyOf(clientSizes, code * 2);
+                }
+                clientSizes[code]++;
+            }
+            clientCodeByEntry[entry] = code;
+        }
+
+        clientEntries = new int[clientCodes.size()][];
+        for (int code = 0; code < clientEntries.length; code++) {
+            clientEntries[code] = new int[clientSizes[code]];
+            clientSizes[code] = 0;
+        }
+        for (entry = 0; entry < size; entry++) {
+            int code = clientCodeByEntry[entry];
+            if (code != NONE) {
+                clientEntries[code][clientSizes[code]++] = entry;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the user with the Okta id, or null
+     */
+    public JoinedUser findByOktaId(String oktaId) {
+        int position = oktaUsers.findByOktaId(oktaId);
+        return position < 0 ? null : get(oktaEntries[position]);
+    }
+
+    /**
+     * @return the user with the APP_USER id, or the Okta user with the foreseeId if there is no such row, or null
+     */
+    public JoinedUser findByForeseeId(long foreseeId) {
+        int entry = foreseeIdEntries.get(foreseeId);
+        return entry == LongIntHashMap.NO_VALUE ? null : get(entry);
+    }
+
+    /**
+     * @return the user with the login in Okta, or that should have it going by APP_USER, ignoring case, or null
+     */
+    public JoinedUser findByLogin(String login) {
+        int entry = loginEntries.get(normalize(login));
+        return entry == StringIntHashMap.NO_VALUE ? null : get(entry);
+    }
+
+    /**
+     * Find the users that pass every filter given, in the order of the entries.
+     *
+     * @param clientId the client of the APP_USER row, or of the Okta user if there is no row, or null for any
+     * @param status the status in Okta, or null for any
+     * @param category the name of a report the users must be in, or null for any
+     * @throws IllegalArgumentException if there is no report with that name
+     */
+    public Page find(Long clientId, UserStatus status, String category, int offset, int limit) {
+        BitSet filter = null;
+        if (status != null) {
+            filter = (BitSet) statusEntries[status.ordinal()].clone();
+        }
+        if (category != null) {
+            BitSet categoryFilter = categoryEntries[toLogFile(category).ordinal()];
+            if (filter == null) {
+                filter = (BitSet) categoryFilter.clone();
+            } else {
+                filter.and(categoryFilter);
+            }
+        }
+
+        List<JoinedUser> users = Lists.newArrayList();
+        int total = 0;
+        if (clientId != null) {
+            int code = clientCodes.get(clientId);
+            int[] entries = code == LongIntHashMap.NO_VALUE ? new int[0] : clientEntries[code];
+            for (int entry : entries) {
+                if (filter == null || filter.get(entry)) {
+                    if (total >= offset && users.size() < limit) {
+                        users.add(get(entry));
+                    }
+                    total++;
+                }
+            }
+        } else if (filter == null) {
+            total = size;
+            for (int entry = offset; entry < size && users.size() < limit; entry++) {
+                users.add(get(entry));
+            }
+        } else {
+            total = filter.cardinality();
+            int skipped = 0;
+            for (int entry = filter.nextSetBit(0); entry >= 0 && users.size() < limit;
+                 entry = filter.nextSetBit(entry + 1)) {
+                if (skipped++ >= offset) {
+                    users.add(get(entry));
+                }
+            }
+        }
+        return new Page(total, offset, limit, users);
+    }
+
+    /**
+     * @return the names of the reports users can be filtered by: the Okta id reports, those of the standard rules and
+     * those of the Okta users no row points at
+     */
+    public static List<String> getCategories() {
+        List<String> names = Lists.newArrayList();
+        for (LogFile logFile : CATEGORIES) {
+            names.add(logFile.name());
+        }
+        return names;
+    }
+
+    private JoinedUser get(int entry) {
+        int position = oktaPositions[entry];
+        int row = appUserRows[entry];
+        List<String> names = Lists.newArrayList();
+        for (long bits = categories[entry]; bits != 0; bits &= bits - 1) {
+            names.add(LOG_FILES[Long.numberOfTrailingZeros(bits)].name());
+        }
+        return new JoinedUser(
+                position == NONE ? null : oktaUsers.get(position),
+                row == NONE ? null : appUsers.get(row),
+                Collections.unmodifiableList(names));
+    }
+
+    private void index(int entry, Function<AppUserRecord, String> oktaLogin) {
+        int position = oktaPositions[entry];
+        int row = appUserRows[entry];
+        if (row != NONE) {
+            AppUserRecord appUser = appUsers.get(row);
+            foreseeIdEntries.putIfAbsent(appUser.getId(), entry);
+            String login = oktaLogin.apply(appUser);
+            if (login != null) {
+                loginEntries.putIfAbsent(normalize(login), entry);
+            }
+        }
+        if (position != NONE) {
+            if (row == NONE && oktaUsers.hasForeseeId(position)) {
+                foreseeIdEntries.putIfAbsent(oktaUsers.getForeseeId(position), entry);
+            }
+            OktaUserRecord oktaUser = oktaUsers.get(position);
+            if (oktaUser.getLogin() != null) {
+                loginEntries.putIfAbsent(normalize(oktaUser.getLogin()), entry);
+            }
+            if (oktaUser.getStatus() != null) {
+                statusEntries[oktaUser.getStatus().ordinal()].set(entry);
+            }
+        }
+        for (long bits = categories[entry]; bits != 0; bits &= bits - 1) {
+            categoryEntries[Long.numberOfTrailingZeros(bits)].set(entry);
+        }
+    }
+
+    private Long getClientId(int entry) {
+        int row = appUserRows[entry];
+        if (row != NONE) {
+            return appUsers.get(row).getClientId();
+        }
+        return oktaUsers.getClientId(oktaPositions[entry]);
+    }
+
+    private static LogFile toLogFile(String category) {
+        for (LogFile logFile : CATEGORIES) {
+            if (logFile.name().equalsIgnoreCase(category)) {
+                return logFile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown category " + category + ", expected one of " + getCategories());
+    }
+
+    private static List<LogFile> categoryLogFiles() {
+        Set<LogFile> logFiles = EnumSet.of(LogFile.MISSING_OKTA_ID_FILE, LogFile.INVALID_OKTA_ID_FILE,
+                LogFile.MISSING_FORESEE_ID_FILE, LogFile.OKTA_USERS_TO_DELETE);
+        for (StandardRule rule : StandardRule.values()) {
+            logFiles.add(rule.getLogFile());
+        }
+        return Collections.unmodifiableList(Lists.newArrayList(logFiles));
+    }
+
+    // A row that was written to neither of these reports matched its Okta user
+    private static boolean isMatched(long categories) {
+        return (categories & (bit(LogFile.MISSING_OKTA_ID_FILE) | bit(LogFile.INVALID_OKTA_ID_FILE))) == 0;
+    }
+
+    private static long bit(LogFile logFile) {
+        return 1L << logFile.ordinal();
+    }
+
+    private static String normalize(String login) {
+        return login.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A user as Okta and APP_USER have it, either of which may be missing, and the reports the user is in.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class JoinedUser {
+        private final OktaUserRecord oktaUser;
+        private final AppUserRecord appUser;
+        private final List<String> categories;
+    }
+
+    /**
+     * One page of the users that passed a filter, and how many passed it in all.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Page {
+        private final int total;
+        private final int offset;
+        private final int limit;
+        private final List<JoinedUser> users;
+    }
+}
@@ -1,38 +1,46 @@
 package com.foresee.users.okta.service;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.foresee.okta.domain.user.OktaUser;
 import com.foresee.okta.domain.user.UserStatus;
 import com.foresee.okta.exception.InvalidUsernameException;
 import com.foresee.okta.util.OktaUserUtil;
-import com.foresee.users.okta.client.OktaUsersClient;
-import com.foresee.users.okta.domain.UserEntity;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.index.OktaUserIndex;
 import com.foresee.users.okta.repository.UserRepository;
+import com.foresee.users.okta.snapshot.AppUserSnapshot;
+import com.foresee.users.okta.snapshot.OktaUserSnapshot;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.StringUtils;
 import org.assertj.core.util.Lists;
-import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
 import static com.foresee.users.okta.service.UserService.LogFile.*;
 
@@ -40,289 +48,644 @@ import static com.foresee.users.okta.service.UserService.LogFile.*;
 @Log4j2
 public class UserService {
 
-    private static final String PROVISIONED_FILTER = "status eq \"PROVISIONED\"";
-    private static final Integer OKTA_PAGE_SIZE = 200;
-    private static final String OKTA_TOKEN_PREFIX = "SSWS ";
-    private static final String OKTA_HEADER_LINKS = "link";
-    private static final String NEXT_PAGE_INDICATOR = "rel=\"next\"";
-    private static final String MEDIA_TYPE_JSON = "application/json";
-    private static final String LOG_DIR = "logs";
-    private Pattern NEXT_PAGE_PATTERN = Pattern.compile("after=(\\w+)&");
+    static final String LOG_DIR = "logs";
 
+    @Value("${okta.reconciliation.streaming:false}")
+    private boolean streaming;
 
-    @Value("${okta.api-token}")
-    private String apiToken;
+    @Value("${okta.snapshot.binary:false}")
+    private boolean binarySnapshots;
+
+    @Value("${okta.sync.incremental:false}")
+    private boolean incremental;
+
+    @Value("${okta.reconciliation.full-table-scan:false}")
+    private boolean fullTableScan;
+
+    @Value("${okta.reconciliation.parallelism:0}")
+    private int classificationParallelism;
+
+    @Value("${okta.write-back.enabled:false}")
+    private boolean writeBack;
+
+    @Value("${okta.remediation.enabled:false}")
+    private boolean remediation;
 
     @Autowired
-    private OktaUsersClient oktaUsersClient;
+    private OktaUserScanner oktaUserScanner;
 
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private AppUserLoader appUserLoader;
+
     @Autowired
     private OktaUserUtil oktaUserUtil;
 
     @Autowired
     private ObjectMapper objectMapper;
 
-    public void execute() throws InvalidUsernameException {
-        initFiles();
+    @Autowired
+    private ReportWriter reportWriter;
 
-        List<OktaUser> allUsers = getAllOktaUsers();
+    @Autowired
+    private ReconciliationRuleEngine ruleEngine;
 
-        handleUsers(allUsers);
-    }
+    @Autowired
+    private RemediationService remediationService;
 
-    private void handleUsers(List<OktaUser> oktaUsers) throws InvalidUsernameException {
+    @Autowired
+    private AppUserWriteBack appUserWriteBack;
 
-        MultiValueMap<Long, OktaUser> foreseeIdMap = new LinkedMultiValueMap<>();
-        Map<String, OktaUser> oktaIdMap = Maps.newHashMap();
+    @Autowired
+    private MetricRegistry metricRegistry;
 
-        AtomicInteger activeUserCount = new AtomicInteger();
-        AtomicInteger suspendedCount = new AtomicInteger();
-        AtomicInteger provisionedCount = new AtomicInteger();
-        AtomicInteger recoveryCount = new AtomicInteger();
-        AtomicInteger stagedCount = new AtomicInteger();
-        AtomicInteger deprovisionedCount = new AtomicInteger();
-        oktaUsers.forEach(oktaUser -> {
-            if (oktaUser.getProfile().getForeseeId() == null) {
-                writeToFile(MISSING_FORESEE_ID_FILE,
-                        StringUtils.joinWith(",",
-                                oktaUser.getId(),
-                                oktaUser.getProfile().getClientId(),
-                                oktaUser.getProfile().getForeseeId(),
-                                oktaUser.getProfile().getLogin(),
-                                oktaUser.getStatus()
-                        ));
-                return;
-            }
-            foreseeIdMap.add(oktaUser.getProfile().getForeseeId(), oktaUser);
-            oktaIdMap.put(oktaUser.getId(), oktaUser);
-            switch (oktaUser.getStatus()) {
-                case ACTIVE:
-                    activeUserCount.incrementAndGet();
-                    break;
-                case PROVISIONED:
-                    provisionedCount.incrementAndGet();
-                    break;
-                case SUSPENDED:
-                    suspendedCount.incrementAndGet();
-                    break;
-                case DEPROVISIONED:
-                    deprovisionedCount.incrementAndGet();
-                    break;
-                case RECOVERY:
-                    recoveryCount.incrementAndGet();
-                    break;
-                case STAGED:
-                    stagedCount.incrementAndGet();
-                    break;
-                default:
-                    log.warn("Okta user {} has unexpected status {}", oktaUser.getProfile().getLogin(), oktaUser.getStatus());
-                    break;
+    @Autowired
+    private ClientShard clientShard;
+
+    @Autowired
+    private ShardMerger shardMerger;
+
+    @Autowired
+    private GroupEnricher groupEnricher;
+
+    private Meter classifiedRows;
+
+    @PostConstruct
+    public void registerMetrics() {
+        classifiedRows = metricRegistry.meter("classification.rows");
+    }
+
+    public void execute() throws InvalidUsernameException {
+        if (clientShard.isMerge()) {
+            try (Timer.Context ignored = phase("shard-merge")) {
+                shardMerger.merge();
             }
-        });
+            return;
+        }
+        try (Timer.Context ignored = phase("total")) {
+            writeReports(() -> {
+                if (streaming) {
+                    try (Timer.Context phase = phase("streaming")) {
+                        streamUsers();
+                    }
+                } else if (!binarySnapshots || incremental || !reconcileSnapshots()) {
+                    OktaUserIndex allUsers;
+                    try (Timer.Context phase = phase("okta-scan")) {
+                        allUsers = getAllOktaUsers();
+                    }
 
-        writeToFile(STATUS_COUNTS,
-                StringUtils.joinWith(",",
-                        UserStatus.ACTIVE,
-                        UserStatus.SUSPENDED,
-                        UserStatus.PROVISIONED,
-                        UserStatus.DEPROVISIONED,
-                        UserStatus.STAGED,
-                        UserStatus.RECOVERY
-                ));
-        writeToFile(STATUS_COUNTS,
-                StringUtils.joinWith(",",
-                        activeUserCount.get(),
-                        suspendedCount.get(),
-                        provisionedCount.get(),
-                        deprovisionedCount.get(),
-                        stagedCount.get(),
-                        recoveryCount.get()
-                ));
+                    handleUsers(allUsers);
+                }
+            });
+        }
+    }
 
-        List<UserEntity> foreseeUsers = getForeseeUsers(Lists.newArrayList(foreseeIdMap.keySet()));
+    /**
+     * Write the reports from an index kept in memory by the {@link ReconciliationDaemon}, without reading Okta or
+     * APP_USER at all. Write-back and remediation follow as they do after a batch run.
+     *
+     * @return the users and the reports they are in, to be queried until the next time
+     */
+    public UserQueryIndex execute(ReconciliationIndex index) {
+        AtomicReference<UserQueryIndex> queryIndex = new AtomicReference<>();
+        try (Timer.Context ignored = phase("total")) {
+            writeReports(() -> queryIndex.set(handleUsers(index)));
+        }
+        return queryIndex.get();
+    }
 
-        for (UserEntity foreseeUser : foreseeUsers) {
-            if (foreseeUser.getOktaId() == null) {
-                writeToFile(MISSING_OKTA_ID_FILE,
-                        StringUtils.joinWith(",",
-                                foreseeUser.getClientId(),
-                                foreseeUser.getAccountEnabled(),
-                                foreseeUser.getUserName(),
-                                foreseeUser.getOktaStatus(),
-                                foreseeUser.getOktaId(),
-                                foreseeUser.getAuthenticationProvider()
-                        ));
-                continue;
+    private void writeReports(Runnable reconciliation) {
+        initFiles();
+        groupEnricher.start(reportWriter);
+        try {
+            reconciliation.run();
+            try (Timer.Context phase = phase("group-enrichment")) {
+                groupEnricher.finish();
             }
-            OktaUser matchingOktaUser = oktaIdMap.get(foreseeUser.getOktaId());
-            String oktaUsername = null;
-            try {
-                oktaUsername = oktaUserUtil.getOktaUsername(
-                        foreseeUser.getUserName(),
-                        foreseeUser.getUserNameSuffix(),
-                        foreseeUser.getEmail());
-            } catch (Exception e) {
-                log.error("Invalid username: {}", foreseeUser.getUserName(), e);
+        } finally {
+            groupEnricher.cancel();
+            ruleEngine.logSummary();
+            try (Timer.Context phase = phase("report-close")) {
+                reportWriter.close();
             }
+        }
 
-            // Make sure that a user and a matching okta user match both by okta id and by username
-            if (matchingOktaUser == null
-                    || (oktaUsername != null && !matchingOktaUser.getProfile().getLogin().equalsIgnoreCase(oktaUsername))) {
-                writeToFile(INVALID_OKTA_ID_FILE,
-                        StringUtils.joinWith(",",
-                                foreseeUser.getClientId(),
-                                foreseeUser.getAccountEnabled(),
-                                foreseeUser.getUserName(),
-                                foreseeUser.getOktaStatus(),
-                                foreseeUser.getOktaId(),
-                                foreseeUser.getAuthenticationProvider()
-                        ));
-                continue;
+        if (writeBack) {
+            try (Timer.Context phase = phase("write-back")) {
+                appUserWriteBack.flush();
             }
-
-            if ((foreseeUser.getAccountEnabled().equalsIgnoreCase("Y")
-                    && matchingOktaUser.getStatus() == UserStatus.SUSPENDED)
-                    || (foreseeUser.getAccountEnabled().equalsIgnoreCase("N")
-                    && matchingOktaUser.getStatus() != UserStatus.SUSPENDED
-                    && matchingOktaUser.getStatus() != UserStatus.PROVISIONED)) {
-                writeToFile(MISMATCHED_STATUS,
-                        toString(foreseeUser, matchingOktaUser));
+        }
+        if (remediation) {
+            try (Timer.Context phase = phase("remediation")) {
+                remediationService.remediate();
             }
+        }
+    }
 
-            writeToFile(FULL_USER_LIST, toString(foreseeUser, matchingOktaUser));
+    /**
+     * Start timing a phase of the run as the {@code phase.<name>} metric.
+     */
+    private Timer.Context phase(String name) {
+        return metricRegistry.timer(MetricRegistry.name("phase", name)).time();
+    }
 
-            // Passwords show as migrated on APP_USER but status in Okta is PROVISIONED
-            if ("PASSWORD_MIGRATED".equalsIgnoreCase(foreseeUser.getOktaStatus())
-                    && matchingOktaUser.getStatus() == UserStatus.PROVISIONED) {
-                writeToFile(PASSWORDS_MIGHT_NOT_BE_MIGRATED,
-                        toString(foreseeUser, matchingOktaUser));
+    private void handleUsers(OktaUserIndex oktaUsers) {
+        writeOktaUserCounts(oktaUsers);
+
+        // Okta users matched by an APP_USER row, by position in the index
+        BitSet claimed = new BitSet(oktaUsers.size());
+        if (fullTableScan) {
+            // One pass over APP_USER, probing each row against the Okta users instead of looking them up by id
+            List<AppUserRecord> foreseeUsers = Lists.newArrayList();
+            try (Timer.Context phase = phase("full-table-scan")) {
+                appUserLoader.scan(foreseeUser -> {
+                    if (oktaUsers.containsForeseeId(foreseeUser.getId())) {
+                        if (binarySnapshots) {
+                            foreseeUsers.add(foreseeUser);
+                        }
+                        reconcileRow(foreseeUser, oktaUsers, claimed, reportWriter);
+                    }
+                });
             }
-            // Passwords show as not migrated but the status in Okta is active so they probably are migrated
-            if (!"PASSWORD_MIGRATED".equals(foreseeUser.getOktaStatus())
-                    && "FORESEE".equalsIgnoreCase(foreseeUser.getAuthenticationProvider())
-                    && UserStatus.ACTIVE == matchingOktaUser.getStatus()) {
-                writeToFile(PASSWORDS_PROBABLY_MIGRATED,
-                        toString(foreseeUser, matchingOktaUser));
+            if (binarySnapshots) {
+                writeSnapshots(oktaUsers.asList(), foreseeUsers);
             }
-            DateTime lastRelease = new DateTime().withYear(2017).withMonthOfYear(12).withDayOfMonth(11);
-            // Passwords that are not migrated
-            if (!"PASSWORD_MIGRATED".equals(foreseeUser.getOktaStatus())
-                    && foreseeUser.getPasswordMigrated().equalsIgnoreCase("N")
-                    && matchingOktaUser.getStatus() != UserStatus.ACTIVE
-                    && foreseeUser.getLastLogonDate() != null
-                    && foreseeUser.getLastLogonDate().isAfter(lastRelease)
-                    && foreseeUser.getPassword() != null) {
-                writeToFile(PASSWORDS_NOT_MIGRATED,
-                        toString(foreseeUser, matchingOktaUser));
+        } else {
+            List<AppUserRecord> foreseeUsers;
+            try (Timer.Context phase = phase("app-user-load")) {
+                foreseeUsers = getForeseeUsers(Longs.asList(oktaUsers.getForeseeIds()));
             }
 
-            if (("PASSWORD_MIGRATED".equals(foreseeUser.getOktaStatus())
-                    || foreseeUser.getPasswordMigrated().equalsIgnoreCase("Y"))
-                    && matchingOktaUser.getStatus() != UserStatus.ACTIVE) {
-                writeToFile(PASSWORD_MIGRATED_BUT_NOT_ACTIVE,
-                        toString(foreseeUser, matchingOktaUser));
+            if (binarySnapshots) {
+                writeSnapshots(oktaUsers.asList(), foreseeUsers);
             }
 
-            oktaIdMap.remove(foreseeUser.getOktaId());
+            try (Timer.Context phase = phase("classification")) {
+                claimed.or(classify(foreseeUsers, oktaUsers, reportWriter));
+            }
         }
 
-        for (String oktaId : oktaIdMap.keySet()) {
-            OktaUser oktaUser = oktaIdMap.get(oktaId);
-            writeToFile(OKTA_USERS_TO_DELETE,
-                    StringUtils.joinWith(",",
-                            oktaId,
-                            oktaUser.getProfile().getClientId(),
-                            oktaUser.getProfile().getForeseeId(),
-                            oktaUser.getProfile().getLogin(),
-                            oktaUser.getStatus()
-                    ));
-//            if (oktaUser.getStatus() != UserStatus.DEPROVISIONED) {
-//                oktaUsersClient.deactivateUser(
-//                        MEDIA_TYPE_JSON,
-//                        MEDIA_TYPE_JSON,
-//                        OKTA_TOKEN_PREFIX + apiToken,
-//                        oktaId);
-//            }
+        writeOrphans(oktaUsers, claimed);
+    }
+
+    private UserQueryIndex handleUsers(ReconciliationIndex index) {
+        OktaUserIndex oktaUsers = index.getOktaUsers();
+        writeOktaUserCounts(oktaUsers);
+
+        long[] categories = new long[index.getAppUsers().size()];
+        BitSet claimed;
+        try (Timer.Context phase = phase("classification")) {
+            claimed = classify(index.getAppUsers(), oktaUsers, reportWriter, categories);
+        }
+
+        writeOrphans(oktaUsers, claimed);
+
+        try (Timer.Context phase = phase("query-index")) {
+            return new UserQueryIndex(oktaUsers, index.getAppUsers(), categories, claimed, this::getOktaLogin);
         }
     }
 
-    private List<OktaUser> getAllOktaUsers() {
-        List<OktaUser> allUsers = Lists.newArrayList();
-        try {
-            File f = new File(LogFile.OKTA_USER_CACHE.getFilename());
-            if (f.exists()) {
-                allUsers.addAll(objectMapper.readValue(
-                        f,
-                        new TypeReference<List<OktaUser>>(){}));
+    private void writeOktaUserCounts(OktaUserIndex oktaUsers) {
+        StatusCounts statusCounts = new StatusCounts();
+        for (int i = 0; i < oktaUsers.size(); i++) {
+            if (!oktaUsers.hasForeseeId(i)) {
+                writeMissingForeseeId(oktaUsers.get(i));
+                continue;
             }
-        } catch (Exception e) {
-            log.error("Failed to read Okta users from cache");
+            statusCounts.add(oktaUsers.get(i));
         }
 
-        if (!allUsers.isEmpty()) {
-            log.info("Found {} Okta users in cache", allUsers.size());
-            return allUsers;
-        }
+        writeStatusCounts(statusCounts);
+    }
 
-        String after = null;
-        ResponseEntity<List<OktaUser>> response = null;
-        int numPages = 0;
-        int userCount = 0;
+    private void writeOrphans(OktaUserIndex oktaUsers, BitSet claimed) {
+        for (int i = 0; i < oktaUsers.size(); i++) {
+            if (!oktaUsers.hasForeseeId(i) || claimed.get(i)) {
+                continue;
+            }
+            OktaUserRecord oktaUser = oktaUsers.get(i);
+            writeOrphan(oktaUser);
+        }
+    }
+    /**
+     * Classify the joined users on a pool of {@code okta.reconciliation.parallelism} threads.
+     * <p>
+     * Which Okta user a row gets depends on the rows before it: the first row with a matching login claims the Okta
+     * user of its OKTA_ID, and a later row pointing at the same one is reported as invalid. So the threads first only
+     * work out which Okta user each row could claim, without writing anything. The claims are then settled in row
+     * order on the calling thread, which is a bit set lookup per row, and only then are the rows classified, each
+     * thread with its own slice of rows and its own report buffer. The slices are merged in order afterwards, which
+     * leaves the reports and the claims the same as a single threaded run.
+     * </p>
+     *
+     * @return the positions of the Okta users that were claimed
+     */
+    private BitSet classifyInParallel(List<AppUserRecord> foreseeUsers, OktaUserIndex oktaUsers, ReportSink reports,
+                                      long[] categories) {
+        log.info("Classifying {} users on {} threads", foreseeUsers.size(), classificationParallelism);
+        String[] oktaUsernames = new String[foreseeUsers.size()];
+        int[] matches = new int[foreseeUsers.size()];
+        int[] corrections = new int[foreseeUsers.size()];
+        ForkJoinPool pool = new ForkJoinPool(classificationParallelism);
+        Classification result;
+        BitSet claimed;
+        try {
+            pool.submit(() -> IntStream.range(0, foreseeUsers.size()).parallel().forEach(row -> {
+                AppUserRecord foreseeUser = foreseeUsers.get(row);
+                if (foreseeUser.getOktaId() == null) {
+                    matches[row] = -1;
+                    corrections[row] = -1;
+                    return;
+                }
+                oktaUsernames[row] = getOktaUsername(foreseeUser);
+                matches[row] = findMatch(foreseeUser, oktaUsernames[row], oktaUsers);
+                corrections[row] = findCorrection(foreseeUser, oktaUsernames[row], oktaUsers);
+            })).get();
+            claimed = settleClaims(matches, corrections, oktaUsers.size());
+            result = pool.submit(() -> IntStream.range(0, foreseeUsers.size()).parallel().collect(
+                    Classification::new,
+                    (classification, row) -> classification.add(foreseeUsers, row, oktaUsers, oktaUsernames[row],
+                            matches[row], corrections[row], categories),
+                    Classification::append)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while classifying users", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to classify users", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
 
-        do {
-            response = oktaUsersClient.search(
-                    OKTA_TOKEN_PREFIX + apiToken,
-                    null,
-                    null,
-                    OKTA_PAGE_SIZE,
-                    after);
+        result.reports.writeTo(reports);
+        return claimed;
+    }
 
-            if (response == null || response.getBody().isEmpty()) {
-                break;
+    /**
+     * Hand out the Okta users in row order, as {@link #reconcileRow} does: a row gets its match if no earlier row
+     * took it, and otherwise its correction if no earlier row took that. Whatever a row does not get is set to -1.
+     *
+     * @return the positions of the Okta users that were claimed
+     */
+    private static BitSet settleClaims(int[] matches, int[] corrections, int oktaUserCount) {
+        BitSet claimed = new BitSet(oktaUserCount);
+        for (int row = 0; row < matches.length; row++) {
+            if (matches[row] >= 0 && !claimed.get(matches[row])) {
+                claimed.set(matches[row]);
+                corrections[row] = -1;
+                continue;
+            }
+            matches[row] = -1;
+            if (corrections[row] >= 0 && !claimed.get(corrections[row])) {
+                claimed.set(corrections[row]);
+            } else {
+                corrections[row] = -1;
             }
+        }
+        return claimed;
+    }
+
+    /**
+     * Reconcile Okta users page by page as they are read instead of loading the whole directory first.
+     * <p>
+     * Each page is indexed, its APP_USER rows are fetched and every matched pair is classified straight away, so
+     * only the current page plus the Okta users that have not been matched yet are held in memory. The APP_USER cache
+     * is not used in this mode.
+     * </p>
+     */
+    private void streamUsers() {
+        StreamingJoin join = new StreamingJoin();
+        oktaUserScanner.forEachPage(join::handlePage);
+        join.finish();
+    }
+
+    /**
+     * Reconcile from the binary snapshots written by an earlier run instead of the JSON caches.
+     * <p>
+     * The snapshots are memory mapped, so nothing is parsed up front and the Okta users are looked up through the
+     * snapshot's Okta id index instead of a map on the heap. Okta users that are still unclaimed are tracked in a
+     * bit set over their record numbers.
+     * </p>
+     *
+     * @return false if there are no usable snapshots, in which case nothing has been written yet
+     */
+    private boolean reconcileSnapshots() {
+        File oktaSnapshotFile = new File(OKTA_USER_SNAPSHOT.getFilename());
+        File appUserSnapshotFile = new File(APP_USER_SNAPSHOT.getFilename());
+        if (!oktaSnapshotFile.exists() || !appUserSnapshotFile.exists()) {
+            return false;
+        }
 
-            List<String> headers = response.getHeaders().get(OKTA_HEADER_LINKS);
+        try (OktaUserSnapshot oktaSnapshot = OktaUserSnapshot.open(oktaSnapshotFile);
+             AppUserSnapshot appUserSnapshot = AppUserSnapshot.open(appUserSnapshotFile)) {
+            log.info("Found {} Okta users and {} Foresee users in snapshots",
+                    oktaSnapshot.size(), appUserSnapshot.size());
+
+            BitSet unclaimed = new BitSet(oktaSnapshot.size());
+            StatusCounts statusCounts = new StatusCounts();
+            for (int i = 0; i < oktaSnapshot.size(); i++) {
+                OktaUserRecord oktaUser = oktaSnapshot.get(i);
+                if (oktaUser.getForeseeId() == null) {
+                    writeMissingForeseeId(oktaUser);
+                    continue;
+                }
+                statusCounts.add(oktaUser);
+                unclaimed.set(i);
+            }
 
-            String nextPageUrl = headers.stream()
-                    .filter(url -> url.contains(NEXT_PAGE_INDICATOR))
-                    .findFirst()
-                    .orElse(null);
+            writeStatusCounts(statusCounts);
 
-            after = null;
-            if (nextPageUrl != null) {
-                Matcher matcher = NEXT_PAGE_PATTERN.matcher(nextPageUrl);
-                if (matcher.find()) {
-                    after = matcher.group(1);
+            for (int i = 0; i < appUserSnapshot.size(); i++) {
+                AppUserRecord foreseeUser = appUserSnapshot.get(i);
+                if (foreseeUser.getOktaId() == null) {
+                    writeMissingOktaId(foreseeUser);
+                    continue;
                 }
+                int match = oktaSnapshot.findByOktaId(foreseeUser.getOktaId());
+                boolean available = match >= 0 && unclaimed.get(match);
+                if (reconcile(foreseeUser, available ? oktaSnapshot.get(match) : null)) {
+                    unclaimed.clear(match);
+                }
+            }
+
+            for (int i = unclaimed.nextSetBit(0); i >= 0; i = unclaimed.nextSetBit(i + 1)) {
+                writeOrphan(oktaSnapshot.get(i));
             }
-            numPages++;
-            log.info("Read page {} of Okta users.", numPages);
-            allUsers.addAll(response.getBody());
-//            handleUsers(response.getBody());
-            userCount += response.getBody().size();
-        } while (after != null);
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to read snapshots, falling back to the caches", e);
+            return false;
+        }
+    }
+
+    private void writeSnapshots(List<OktaUserRecord> oktaUsers, List<AppUserRecord> foreseeUsers) {
+        try {
+            OktaUserSnapshot.write(new File(OKTA_USER_SNAPSHOT.getFilename()), oktaUsers);
+            AppUserSnapshot.write(new File(APP_USER_SNAPSHOT.getFilename()), foreseeUsers);
+            log.info("Wrote snapshots of {} Okta users and {} Foresee users", oktaUsers.size(), foreseeUsers.size());
+        } catch (IOException e) {
+            log.error("Failed to write snapshots", e);
+        }
+    }
+
+    /**
+     * Reconcile APP_USER rows against the Okta users they point at, on {@code okta.reconciliation.parallelism}
+     * threads if it is set.
+     *
+     * @return the positions of the Okta users that were claimed
+     */
+    BitSet classify(List<AppUserRecord> foreseeUsers, OktaUserIndex oktaUsers, ReportSink reports) {
+        return classify(foreseeUsers, oktaUsers, reports, null);
+    }
+
+    /**
+     * As {@link #classify(List, OktaUserIndex, ReportSink)}, also noting the reports each row is written to.
+     *
+     * @param categories if not null, one per row, the bits of the {@link LogFile} ordinals of its reports are set
+     */
+    private BitSet classify(List<AppUserRecord> foreseeUsers, OktaUserIndex oktaUsers, ReportSink reports,
+                            long[] categories) {
+        if (classificationParallelism > 0) {
+            return classifyInParallel(foreseeUsers, oktaUsers, reports, categories);
+        }
+        BitSet claimed = new BitSet(oktaUsers.size());
+        for (int row = 0; row < foreseeUsers.size(); row++) {
+            reconcileRow(foreseeUsers.get(row), oktaUsers, claimed, categorize(reports, categories, row));
+        }
+        return claimed;
+    }
 
-        log.info("Found {} pages of Okta users. {} total Okta users", numPages, userCount);
+    private static ReportSink categorize(ReportSink reports, long[] categories, int row) {
+        if (categories == null) {
+            return reports;
+        }
+        return (logFile, message) -> {
+            categories[row] |= 1L << logFile.ordinal();
+            reports.write(logFile, message);
+        };
+    }
+
+    /**
+     * Reconcile an APP_USER row against the Okta user it points at, and claim that Okta user if it matches.
+     */
+    private void reconcileRow(AppUserRecord foreseeUser, OktaUserIndex oktaUsers, BitSet claimed,
+                              ReportSink reports) {
+        if (foreseeUser.getOktaId() == null) {
+            writeMissingOktaId(foreseeUser, reports);
+            return;
+        }
+        String oktaUsername = getOktaUsername(foreseeUser);
+        int position = findCandidate(oktaUsers, foreseeUser.getOktaId(), claimed);
+        if (reconcile(foreseeUser, oktaUsername, position >= 0 ? oktaUsers.get(position) : null, reports)) {
+            claimed.set(position);
+        } else {
+            correctOktaId(foreseeUser, oktaUsername, oktaUsers, claimed);
+        }
+    }
 
+    /**
+     * When write-back is on, point a user with an invalid Okta id at the Okta user that carries its foreseeId and
+     * the expected login. That Okta user is claimed, so it is not reported as an orphan and deactivated.
+     */
+    private void correctOktaId(AppUserRecord foreseeUser, String oktaUsername, OktaUserIndex oktaUsers,
+                               BitSet claimed) {
+        int position = findCorrection(foreseeUser, oktaUsername, oktaUsers);
+        if (position >= 0 && !claimed.get(position)) {
+            appUserWriteBack.oktaId(foreseeUser, oktaUsers.get(position).getId());
+            claimed.set(position);
+        }
+    }
+
+    /**
+     * @return the position of the Okta user that the row would match if no other row had claimed it, or -1
+     */
+    private int findMatch(AppUserRecord foreseeUser, String oktaUsername, OktaUserIndex oktaUsers) {
+        if (foreseeUser.getOktaId() == null) {
+            return -1;
+        }
+        int position = oktaUsers.findByOktaId(foreseeUser.getOktaId());
+        if (position < 0 || !oktaUsers.hasForeseeId(position)) {
+            return -1;
+        }
+        // As in reconcile, a row whose username is not valid matches on the Okta id alone
+        return oktaUsername == null || oktaUsers.get(position).getLogin().equalsIgnoreCase(oktaUsername)
+                ? position : -1;
+    }
+
+    /**
+     * @return the position of the Okta user that {@link #correctOktaId} would point the row at if no other row had
+     * claimed it, or -1
+     */
+    private int findCorrection(AppUserRecord foreseeUser, String oktaUsername, OktaUserIndex oktaUsers) {
+        if (!writeBack || foreseeUser.getOktaId() == null) {
+            return -1;
+        }
+        int position = oktaUsers.findByForeseeId(foreseeUser.getId());
+        if (position < 0) {
+            return -1;
+        }
+        String login = oktaUsers.get(position).getLogin();
+        return oktaUsername != null && login != null && login.equalsIgnoreCase(oktaUsername) ? position : -1;
+    }
+
+    /**
+     * Work out the login an APP_USER row should have in Okta, logging a row that has no valid one. The
+     * reconciliation does this once per row and passes it on to the matching and the checks, which all need it.
+     *
+     * @return the login, or null if the row has no valid one
+     */
+    private String getOktaUsername(AppUserRecord foreseeUser) {
+        try {
+            return oktaUserUtil.getOktaUsername(
+                    foreseeUser.getUserName(),
+                    foreseeUser.getUserNameSuffix(),
+                    foreseeUser.getEmail());
+        } catch (Exception e) {
+            log.error("Invalid username: {}", foreseeUser.getUserName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the login an APP_USER row should have in Okta, or null if it has no valid one
+     */
+    private String getOktaLogin(AppUserRecord foreseeUser) {
         try {
-            writeToFile(OKTA_USER_CACHE, objectMapper.writeValueAsString(allUsers));
+            return oktaUserUtil.getOktaUsername(
+                    foreseeUser.getUserName(),
+                    foreseeUser.getUserNameSuffix(),
+                    foreseeUser.getEmail());
         } catch (Exception e) {
-            log.error("Failed to cache Okta users");
+            return null;
         }
+    }
+
+    /**
+     * @return the position of the Okta user an APP_USER row can match: one with the row's Okta id that has a
+     * foreseeId and has not been claimed by another row yet, or -1
+     */
+    private static int findCandidate(OktaUserIndex oktaUsers, String oktaId, BitSet claimed) {
+        int position = oktaUsers.findByOktaId(oktaId);
+        return position >= 0 && oktaUsers.hasForeseeId(position) && !claimed.get(position) ? position : -1;
+    }
+
+    /**
+     * Run the reconciliation checks for an APP_USER row and the Okta user its OKTA_ID points to.
+     *
+     * @param foreseeUser the APP_USER row, which must have an Okta id
+     * @param matchingOktaUser the Okta user with that id, or null if there is none
+     * @return true if the Okta user matched and has been claimed by this row
+     */
+    private boolean reconcile(AppUserRecord foreseeUser, OktaUserRecord matchingOktaUser) {
+        return reconcile(foreseeUser, getOktaUsername(foreseeUser), matchingOktaUser, reportWriter);
+    }
+
+    /**
+     * @param oktaUsername the login the row should have in Okta, from {@link #getOktaUsername}
+     */
+    private boolean reconcile(AppUserRecord foreseeUser, String oktaUsername, OktaUserRecord matchingOktaUser,
+                              ReportSink reports) {
+        classifiedRows.mark();
+
+        // Make sure that a user and a matching okta user match both by okta id and by username
+        if (matchingOktaUser == null
+                || (oktaUsername != null && !matchingOktaUser.getLogin().equalsIgnoreCase(oktaUsername))) {
+            reports.write(INVALID_OKTA_ID_FILE,
+                    StringUtils.joinWith(",",
+                            foreseeUser.getClientId(),
+                            foreseeUser.getAccountEnabled(),
+                            foreseeUser.getUserName(),
+                            foreseeUser.getOktaStatus(),
+                            foreseeUser.getOktaId(),
+                            foreseeUser.getAuthenticationProvider()
+                    ));
+            return false;
+        }
+
+        ReconciledUser user = new ReconciledUser(foreseeUser, matchingOktaUser);
+        ruleEngine.evaluate(user, reports);
+        groupEnricher.submit(user);
+        if (writeBack && StandardRule.PASSWORDS_PROBABLY_MIGRATED.matches(user)) {
+            appUserWriteBack.passwordMigrated(foreseeUser);
+        }
+        return true;
+    }
+
+    private void writeMissingForeseeId(OktaUserRecord oktaUser) {
+        writeToFile(MISSING_FORESEE_ID_FILE,
+                StringUtils.joinWith(",",
+                        oktaUser.getId(),
+                        oktaUser.getClientId(),
+                        oktaUser.getForeseeId(),
+                        oktaUser.getLogin(),
+                        oktaUser.getStatus()
+                ));
+    }
+
+    private void writeMissingOktaId(AppUserRecord foreseeUser) {
+        writeMissingOktaId(foreseeUser, reportWriter);
+    }
+
+    private void writeMissingOktaId(AppUserRecord foreseeUser, ReportSink reports) {
+        classifiedRows.mark();
+        reports.write(MISSING_OKTA_ID_FILE,
+                StringUtils.joinWith(",",
+                        foreseeUser.getClientId(),
+                        foreseeUser.getAccountEnabled(),
+                        foreseeUser.getUserName(),
+                        foreseeUser.getOktaStatus(),
+                        foreseeUser.getOktaId(),
+                        foreseeUser.getAuthenticationProvider()
+                ));
+    }
+
+    private void writeOrphan(OktaUserRecord oktaUser) {
+        writeToFile(OKTA_USERS_TO_DELETE,
+                StringUtils.joinWith(",",
+                        oktaUser.getId(),
+                        oktaUser.getClientId(),
+                        oktaUser.getForeseeId(),
+                        oktaUser.getLogin(),
+                        oktaUser.getStatus()
+                ));
+    }
+
+    private void writeStatusCounts(StatusCounts statusCounts) {
+        writeToFile(STATUS_COUNTS,
+                StringUtils.joinWith(",",
+                        UserStatus.ACTIVE,
+                        UserStatus.SUSPENDED,
+                        UserStatus.PROVISIONED,
+                        UserStatus.DEPROVISIONED,
+                        UserStatus.STAGED,
+                        UserStatus.RECOVERY
+                ));
+        writeToFile(STATUS_COUNTS,
+                StringUtils.joinWith(",",
+                        statusCounts.activeUserCount.get(),
+                        statusCounts.suspendedCount.get(),
+                        statusCounts.provisionedCount.get(),
+                        statusCounts.deprovisionedCount.get(),
+                        statusCounts.stagedCount.get(),
+                        statusCounts.recoveryCount.get()
+                ));
+    }
+
+    private OktaUserIndex getAllOktaUsers() {
+        OktaUserIndex allUsers = new OktaUserIndex();
+        oktaUserScanner.forEachPage(page -> page.forEach(allUsers::add));
         return allUsers;
     }
 
-    private List<UserEntity> getForeseeUsers(List<Long> userIds) {
-        List<UserEntity> foreseeUsers = Lists.newArrayList();
+    private List<AppUserRecord> getForeseeUsers(List<Long> userIds) {
+        List<AppUserRecord> foreseeUsers = Lists.newArrayList();
         try {
             File f = new File(LogFile.APP_USER_CACHE.getFilename());
             if (f.exists()) {
                 foreseeUsers.addAll(objectMapper.readValue(
                         f,
-                        new TypeReference<List<UserEntity>>(){}));
+                        new TypeReference<List<AppUserRecord>>(){}));
             }
         } catch (Exception e) {
             log.error("Failed to read Foresee users from cache");
@@ -333,12 +696,11 @@ public class UserService {
             return foreseeUsers;
         }
 
-        Iterables.partition(userIds, 1000).forEach(subList -> foreseeUsers.addAll(userRepository.findByIdIn(subList)));
-
+        foreseeUsers.addAll(appUserLoader.load(userIds));
         log.info("Read {} users from app_user", foreseeUsers.size());
 
         try {
-            writeToFile(APP_USER_CACHE, objectMapper.writeValueAsString(foreseeUsers));
+            objectMapper.writeValue(new File(APP_USER_CACHE.getFilename()), foreseeUsers);
         } catch (Exception e) {
             log.error("Failed to cache Foresee users");
         }
@@ -346,31 +708,15 @@ public class UserService {
     }
 
     private void initFiles() {
-        File f;
         try {
-            File dir = new File(LOG_DIR);
-            if (!dir.exists()) {
-                dir.mkdir();
-            }
+            reportWriter.open();
             for (LogFile logFile : LogFile.values()) {
-                if (!logFile.isCacheFile()) {
-                    f = new File(logFile.getFilename());
-                    f.delete();
-                    f.createNewFile();
-                    switch (logFile) {
-                        case MISMATCHED_STATUS:
-                        case PASSWORDS_MIGHT_NOT_BE_MIGRATED:
-                        case PASSWORDS_PROBABLY_MIGRATED:
-                        case PASSWORDS_NOT_MIGRATED:
-                        case PASSWORD_MIGRATED_BUT_NOT_ACTIVE:
-                        case FULL_USER_LIST:
-                            writeToFile(logFile, getHeader());
-                            break;
-                    }
+                if (!logFile.isCacheFile() && logFile.hasHeader()) {
+                    writeToFile(logFile, getHeader());
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Failed to open report files", e);
         }
     }
 
@@ -390,28 +736,140 @@ public class UserService {
                 "LAST_PASSWORD_CHANGE");
     }
 
-    String toString(UserEntity foreseeUser, OktaUser oktaUser) {
-        return StringUtils.joinWith(",",
-                foreseeUser.getClientId(),
-                foreseeUser.getId(),
-                foreseeUser.getAccountEnabled(),
-                foreseeUser.getLastLogonDate(),
-                foreseeUser.getUserName(),
-                foreseeUser.getPasswordMigrated(),
-                foreseeUser.getOktaStatus(),
-                foreseeUser.getAuthenticationProvider(),
-                foreseeUser.getOktaId(),
-                oktaUser != null ? oktaUser.getStatus() : "n/a",
-                oktaUser != null ?oktaUser.getLastLogin() : "n/a",
-                oktaUser != null ?oktaUser.getPasswordChanged()  : "n/a");
-    }
-
-
-    void writeToFile (LogFile logFile, String message) {
-        try (PrintWriter pw = new PrintWriter(new FileOutputStream(logFile.getFilename(), true))) {
-            pw.println(message);
-        } catch (Exception e) {
-            log.error("Failed to write message to file {}. Message: {}", logFile.getFilename(), message, e);
+    void writeToFile(LogFile logFile, String message) {
+        reportWriter.write(logFile, message);
+    }
+
+    /**
+     * What one thread of {@link #classifyInParallel} has classified so far.
+     */
+    private class Classification {
+        private final ReportBuffer reports = new ReportBuffer();
+
+        /**
+         * Classify a row whose claims have been settled.
+         *
+         * @param oktaUsername the login the row should have in Okta, or null if it has no valid one
+         * @param match the Okta user the row has claimed by its OKTA_ID, or -1
+         * @param correction the Okta user the row is to be pointed at instead, or -1
+         */
+        void add(List<AppUserRecord> foreseeUsers, int row, OktaUserIndex oktaUsers, String oktaUsername, int match,
+                 int correction, long[] categories) {
+            AppUserRecord foreseeUser = foreseeUsers.get(row);
+            ReportSink sink = categorize(reports, categories, row);
+            if (foreseeUser.getOktaId() == null) {
+                writeMissingOktaId(foreseeUser, sink);
+                return;
+            }
+            reconcile(foreseeUser, oktaUsername, match >= 0 ? oktaUsers.get(match) : null, sink);
+            if (correction >= 0) {
+                appUserWriteBack.oktaId(foreseeUser, oktaUsers.get(correction).getId());
+            }
+        }
+
+        void append(Classification other) {
+            reports.append(other.reports);
+        }
+    }
+
+    /**
+     * Running count of Okta users by status.
+     */
+    static class StatusCounts {
+        private final AtomicInteger activeUserCount = new AtomicInteger();
+        private final AtomicInteger suspendedCount = new AtomicInteger();
+        private final AtomicInteger provisionedCount = new AtomicInteger();
+        private final AtomicInteger recoveryCount = new AtomicInteger();
+        private final AtomicInteger stagedCount = new AtomicInteger();
+        private final AtomicInteger deprovisionedCount = new AtomicInteger();
+
+        void add(OktaUserRecord oktaUser) {
+            if (oktaUser.getStatus() == null) {
+                log.warn("Okta user {} has no status we know of", oktaUser.getLogin());
+                return;
+            }
+            switch (oktaUser.getStatus()) {
+                case ACTIVE:
+                    activeUserCount.incrementAndGet();
+                    break;
+                case PROVISIONED:
+                    provisionedCount.incrementAndGet();
+                    break;
+                case SUSPENDED:
+                    suspendedCount.incrementAndGet();
+                    break;
+                case DEPROVISIONED:
+                    deprovisionedCount.incrementAndGet();
+                    break;
+                case RECOVERY:
+                    recoveryCount.incrementAndGet();
+                    break;
+                case STAGED:
+                    stagedCount.incrementAndGet();
+                    break;
+                default:
+                    log.warn("Okta user {} has unexpected status {}", oktaUser.getLogin(), oktaUser.getStatus());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Join state for {@link #streamUsers()}.
+     * <p>
+     * An APP_USER row can point at an Okta user that arrives on a later page, so rows whose Okta user has not been
+     * seen yet wait in {@code pending} and Okta users that have not been claimed by a row wait in {@code unmatched}.
+     * Whatever is left in either once the last page is handled is reported as invalid or orphaned.
+     * </p>
+     */
+    private class StreamingJoin {
+        private final StatusCounts statusCounts = new StatusCounts();
+        private final Set<Long> seenForeseeIds = Sets.newHashSet();
+        private final Map<String, OktaUserRecord> unmatched = Maps.newHashMap();
+        private final ListMultimap<String, AppUserRecord> pending = ArrayListMultimap.create();
+        private int foreseeUserCount;
+
+        void handlePage(List<OktaUserRecord> page) {
+            List<Long> foreseeIds = Lists.newArrayList();
+            for (OktaUserRecord oktaUser : page) {
+                Long foreseeId = oktaUser.getForeseeId();
+                if (foreseeId == null) {
+                    writeMissingForeseeId(oktaUser);
+                    continue;
+                }
+                statusCounts.add(oktaUser);
+                unmatched.put(oktaUser.getId(), oktaUser);
+                if (seenForeseeIds.add(foreseeId)) {
+                    foreseeIds.add(foreseeId);
+                }
+                pending.removeAll(oktaUser.getId()).forEach(this::match);
+            }
+
+            Iterables.partition(foreseeIds, AppUserLoader.PARTITION_SIZE).forEach(subList -> {
+                for (AppUserRecord foreseeUser : userRepository.findRecordsByIdIn(subList)) {
+                    foreseeUserCount++;
+                    if (foreseeUser.getOktaId() == null) {
+                        writeMissingOktaId(foreseeUser);
+                    } else if (unmatched.containsKey(foreseeUser.getOktaId())) {
+                        match(foreseeUser);
+                    } else {
+                        pending.put(foreseeUser.getOktaId(), foreseeUser);
+                    }
+                }
+            });
+        }
+
+        void finish() {
+            log.info("Read {} users from app_user", foreseeUserCount);
+            pending.values().forEach(foreseeUser -> reconcile(foreseeUser, null));
+            unmatched.values().forEach(UserService.this::writeOrphan);
+            writeStatusCounts(statusCounts);
+        }
+
+        private void match(AppUserRecord foreseeUser) {
+            if (reconcile(foreseeUser, unmatched.get(foreseeUser.getOktaId()))) {
+                unmatched.remove(foreseeUser.getOktaId());
+            }
         }
     }
 
@@ -427,19 +885,61 @@ public class UserService {
         PASSWORDS_MIGHT_NOT_BE_MIGRATED("PasswordsMightNotBeMigrated.csv", false),
         STATUS_COUNTS("StatusCounts.csv", false),
         PASSWORDS_NOT_MIGRATED("PasswordsNotMigrated.csv", false),
-        OKTA_USER_CACHE("OktaUserCache", true),
-        APP_USER_CACHE("AppUserCache", true),
-        FULL_USER_LIST("FullUserList.csv", false);
+        OKTA_USER_CACHE("OktaUserRecordCache", true),
+        OKTA_USER_WATERMARK("OktaUserWatermark", true),
+        OKTA_USER_SNAPSHOT("OktaUserSnapshot.bin", true),
+        APP_USER_SNAPSHOT("AppUserSnapshot.bin", true),
+        OKTA_SCAN_CHECKPOINT("OktaScanRecordCheckpoint", true),
+        APP_USER_CHECKPOINT("AppUserCheckpoint", true),
+        APP_USER_CACHE("AppUserRecordCache", true),
+        FULL_USER_LIST("FullUserList.csv", false),
+        CLIENT_GROUP_MISMATCH("ClientGroupMismatch.csv", false),
+        REMEDIATION_RESULTS("RemediationResults.csv", false),
+        REMEDIATION_JOURNAL("RemediationJournal", true);
+
+        // Set once at startup, before any file is used
+        private static volatile String directory = LOG_DIR;
 
         private String filename;
         private boolean cacheFile;
 
         public String getFilename() {
-            return LOG_DIR + "/" + filename;
+            return getFilename(directory);
+        }
+
+        /**
+         * @return where the file goes in a directory other than the one in use, such as another shard's
+         */
+        String getFilename(String dir) {
+            return dir + "/" + filename;
         }
 
         public boolean isCacheFile() {
             return cacheFile;
         }
+
+        /**
+         * @return whether the report starts with the column names of {@link UserService#getHeader()}
+         */
+        boolean hasHeader() {
+            switch (this) {
+                case MISMATCHED_STATUS:
+                case PASSWORDS_MIGHT_NOT_BE_MIGRATED:
+                case PASSWORDS_PROBABLY_MIGRATED:
+                case PASSWORDS_NOT_MIGRATED:
+                case PASSWORD_MIGRATED_BUT_NOT_ACTIVE:
+                case FULL_USER_LIST:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Put every file under another directory from now on.
+         */
+        static void useDirectory(String dir) {
+            directory = dir;
+        }
     }
 }
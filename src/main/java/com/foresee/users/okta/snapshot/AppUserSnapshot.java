@@ -0,0 +1,155 @@
+package com.foresee.users.okta.snapshot;
+
+import com.foresee.users.okta.domain.AppUserRecord;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.foresee.users.okta.snapshot.SnapshotFile.NULL_LONG;
+import static com.foresee.users.okta.snapshot.SnapshotFile.hash;
+import static com.foresee.users.okta.snapshot.SnapshotFile.toLong;
+
+/**
+ * Binary snapshot of APP_USER rows, indexed by user id and by Okta id.
+ * <p>
+ * The last logon date is kept as epoch milliseconds along with the id of its zone, so it is read back in the zone it
+ * was written in rather than in the zone of the JVM reading the snapshot.
+ * </p>
+ *
+ * @see OktaUserSnapshot
+ */
+public class AppUserSnapshot implements Closeable {
+
+    private static final int CLIENT_ID = 0;
+    private static final int ID = 8;
+    private static final int ACCOUNT_ENABLED = 16;
+    private static final int LAST_LOGON_DATE = 20;
+    private static final int USERNAME = 28;
+    private static final int USERNAME_SUFFIX = 32;
+    private static final int EMAIL = 36;
+    private static final int PASSWORD_MIGRATED = 40;
+    private static final int OKTA_STATUS = 44;
+    private static final int AUTHENTICATION_PROVIDER = 48;
+    private static final int OKTA_ID = 52;
+    private static final int PASSWORD_SET = 56;
+    private static final int VERSION = 57;
+    private static final int LAST_LOGON_ZONE = 65;
+    private static final int RECORD_WIDTH = 69;
+
+    private static final int ID_INDEX = 0;
+    private static final int OKTA_ID_INDEX = 1;
+
+    private final SnapshotFile snapshot;
+
+    private AppUserSnapshot(SnapshotFile snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public static void write(File file, Iterable<AppUserRecord> users) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(file, RECORD_WIDTH, 2)) {
+            for (AppUserRecord user : users) {
+                int accountEnabled = writer.addString(user.getAccountEnabled(), true);
+                int userName = writer.addString(user.getUserName(), false);
+                int userNameSuffix = writer.addString(user.getUserNameSuffix(), true);
+                int email = writer.addString(user.getEmail(), false);
+                int passwordMigrated = writer.addString(user.getPasswordMigrated(), true);
+                int oktaStatus = writer.addString(user.getOktaStatus(), true);
+                int authenticationProvider = writer.addString(user.getAuthenticationProvider(), true);
+                int oktaId = writer.addString(user.getOktaId(), false);
+                int lastLogonZone = writer.addString(user.getLastLogonDate() != null
+                        ? user.getLastLogonDate().getZone().getID()
+                        : null, true);
+
+                ByteBuffer record = writer.startRecord();
+                record.putLong(CLIENT_ID, toLong(user.getClientId()))
+                        .putLong(ID, toLong(user.getId()))
+                        .putInt(ACCOUNT_ENABLED, accountEnabled)
+                        .putLong(LAST_LOGON_DATE, user.getLastLogonDate() != null
+                                ? user.getLastLogonDate().getMillis()
+                                : NULL_LONG)
+                        .putInt(USERNAME, userName)
+                        .putInt(USERNAME_SUFFIX, userNameSuffix)
+                        .putInt(EMAIL, email)
+                        .putInt(PASSWORD_MIGRATED, passwordMigrated)
+                        .putInt(OKTA_STATUS, oktaStatus)
+                        .putInt(AUTHENTICATION_PROVIDER, authenticationProvider)
+                        .putInt(OKTA_ID, oktaId)
+                        .put(PASSWORD_SET, (byte) (user.isPasswordSet() ? 1 : 0))
+                        .putLong(VERSION, toLong(user.getVersion()))
+                        .putInt(LAST_LOGON_ZONE, lastLogonZone);
+                int recordNumber = writer.endRecord();
+
+                writer.index(ID_INDEX, toLong(user.getId()), recordNumber);
+                if (user.getOktaId() != null) {
+                    writer.index(OKTA_ID_INDEX, hash(user.getOktaId()), recordNumber);
+                }
+            }
+        }
+    }
+
+    public static AppUserSnapshot open(File file) throws IOException {
+        return new AppUserSnapshot(new SnapshotFile(file, RECORD_WIDTH));
+    }
+
+    public int size() {
+        return snapshot.getRecordCount();
+    }
+
+    public AppUserRecord get(int recordNumber) {
+        return new AppUserRecord(
+                snapshot.getNullableLong(recordNumber, CLIENT_ID),
+                snapshot.getNullableLong(recordNumber, ID),
+                snapshot.getString(recordNumber, ACCOUNT_ENABLED),
+                getLastLogonDate(recordNumber),
+                snapshot.getString(recordNumber, USERNAME),
+                snapshot.getString(recordNumber, USERNAME_SUFFIX),
+                snapshot.getString(recordNumber, EMAIL),
+                snapshot.getString(recordNumber, PASSWORD_MIGRATED),
+                snapshot.getString(recordNumber, OKTA_STATUS),
+                snapshot.getString(recordNumber, AUTHENTICATION_PROVIDER),
+                snapshot.getString(recordNumber, OKTA_ID),
+                snapshot.getByte(recordNumber, PASSWORD_SET) == 1,
+                snapshot.getNullableLong(recordNumber, VERSION));
+    }
+
+    private DateTime getLastLogonDate(int recordNumber) {
+        long millis = snapshot.getLong(recordNumber, LAST_LOGON_DATE);
+        if (millis == NULL_LONG) {
+            return null;
+        }
+        String zone = snapshot.getString(recordNumber, LAST_LOGON_ZONE);
+        return new DateTime(millis, zone != null ? DateTimeZone.forID(zone) : DateTimeZone.UTC);
+    }
+
+    /**
+     * @return the record number of the user with the id, or -1 if there is none
+     */
+    public int findById(long id) {
+        int[] recordNumbers = snapshot.find(ID_INDEX, id);
+        return recordNumbers.length > 0 ? recordNumbers[0] : -1;
+    }
+
+    /**
+     * @return the record numbers of the users pointing at the Okta id
+     */
+    public int[] findByOktaId(String oktaId) {
+        int[] candidates = snapshot.find(OKTA_ID_INDEX, hash(oktaId));
+        int matches = 0;
+        for (int recordNumber : candidates) {
+            if (oktaId.equals(snapshot.getString(recordNumber, OKTA_ID))) {
+                candidates[matches++] = recordNumber;
+            }
+        }
+        return matches == candidates.length ? candidates : Arrays.copyOf(candidates, matches);
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshot.close();
+    }
+}
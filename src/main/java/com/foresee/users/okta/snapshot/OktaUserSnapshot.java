@@ -0,0 +1,131 @@
+package com.foresee.users.okta.snapshot;
+
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.OktaUserRecord;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.foresee.users.okta.snapshot.SnapshotFile.NULL_STRING;
+import static com.foresee.users.okta.snapshot.SnapshotFile.hash;
+import static com.foresee.users.okta.snapshot.SnapshotFile.toLong;
+
+/**
+ * Binary snapshot of Okta users, indexed by Okta id and by foreseeId.
+ * <p>
+ * Opening a snapshot maps it into memory without reading any records, and lookups only touch the index pages and
+ * records they need, so the snapshot never has to be on the heap as a whole.
+ * </p>
+ */
+public class OktaUserSnapshot implements Closeable {
+
+    private static final int ID = 0;
+    private static final int STATUS = 4;
+    private static final int LOGIN = 8;
+    private static final int CLIENT_ID = 12;
+    private static final int FORESEE_ID = 20;
+    private static final int LAST_LOGIN = 28;
+    private static final int PASSWORD_CHANGED = 32;
+    private static final int RECORD_WIDTH = 36;
+
+    private static final int OKTA_ID_INDEX = 0;
+    private static final int FORESEE_ID_INDEX = 1;
+
+    private final SnapshotFile snapshot;
+    // Statuses are stored once in the dictionary, so each dictionary id only has to be decoded once
+    private final Map<Integer, UserStatus> statuses = new ConcurrentHashMap<>();
+
+    private OktaUserSnapshot(SnapshotFile snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public static void write(File file, Iterable<OktaUserRecord> users) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(file, RECORD_WIDTH, 2)) {
+            for (OktaUserRecord user : users) {
+                int id = writer.addString(user.getId(), false);
+                int status = writer.addString(user.getStatus() != null ? user.getStatus().name() : null, true);
+                int login = writer.addString(user.getLogin(), false);
+                int lastLogin = writer.addString(user.getLastLogin(), false);
+                int passwordChanged = writer.addString(user.getPasswordChanged(), false);
+
+                ByteBuffer record = writer.startRecord();
+                record.putInt(ID, id)
+                        .putInt(STATUS, status)
+                        .putInt(LOGIN, login)
+                        .putLong(CLIENT_ID, toLong(user.getClientId()))
+                        .putLong(FORESEE_ID, toLong(user.getForeseeId()))
+                        .putInt(LAST_LOGIN, lastLogin)
+                        .putInt(PASSWORD_CHANGED, passwordChanged);
+                int recordNumber = writer.endRecord();
+
+                writer.index(OKTA_ID_INDEX, hash(user.getId()), recordNumber);
+                if (user.getForeseeId() != null) {
+                    writer.index(FORESEE_ID_INDEX, user.getForeseeId(), recordNumber);
+                }
+            }
+        }
+    }
+
+    public static OktaUserSnapshot open(File file) throws IOException {
+        return new OktaUserSnapshot(new SnapshotFile(file, RECORD_WIDTH));
+    }
+
+    public int size() {
+        return snapshot.getRecordCount();
+    }
+
+    public OktaUserRecord get(int recordNumber) {
+        return new OktaUserRecord(
+                getId(recordNumber),
+                getStatus(recordNumber),
+                snapshot.getString(recordNumber, LOGIN),
+                snapshot.getNullableLong(recordNumber, CLIENT_ID),
+                getForeseeId(recordNumber),
+                snapshot.getString(recordNumber, LAST_LOGIN),
+                snapshot.getString(recordNumber, PASSWORD_CHANGED));
+    }
+
+    public String getId(int recordNumber) {
+        return snapshot.getString(recordNumber, ID);
+    }
+
+    public Long getForeseeId(int recordNumber) {
+        return snapshot.getNullableLong(recordNumber, FORESEE_ID);
+    }
+
+    /**
+     * @return the record number of the user with the Okta id, or -1 if there is none
+     */
+    public int findByOktaId(String oktaId) {
+        for (int recordNumber : snapshot.find(OKTA_ID_INDEX, hash(oktaId))) {
+            if (oktaId.equals(getId(recordNumber))) {
+                return recordNumber;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the record numbers of the users with the foreseeId
+     */
+    public int[] findByForeseeId(long foreseeId) {
+        return snapshot.find(FORESEE_ID_INDEX, foreseeId);
+    }
+
+    private UserStatus getStatus(int recordNumber) {
+        int id = snapshot.getInt(recordNumber, STATUS);
+        if (id == NULL_STRING) {
+            return null;
+        }
+        return statuses.computeIfAbsent(id, statusId -> UserStatus.valueOf(snapshot.getDictionaryString(statusId)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshot.close();
+    }
+}
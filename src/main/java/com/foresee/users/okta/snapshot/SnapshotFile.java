@@ -0,0 +1,178 @@
+package com.foresee.users.okta.snapshot;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only, memory-mapped view of a snapshot written by {@link SnapshotWriter}.
+ * <p>
+ * A snapshot is made of fixed-width records, a dictionary holding every string the records refer to, and any number
+ * of indexes of (key, record number) pairs sorted by key. String columns are stored in the records as dictionary ids
+ * and string keys are indexed by their 64 bit hash, so callers must compare the actual value of every match.
+ * Nothing is read until it is asked for, so opening a snapshot costs the same however many records it holds.
+ * </p>
+ * <pre>
+ * header     magic, version, record count, record width, dictionary count, index count,
+ *            records offset, dictionary offsets offset, dictionary offset, dictionary length, index offsets
+ * records    record count * record width bytes
+ * offsets    dictionary count longs, the start of each string in the dictionary
+ * dictionary UTF-8 bytes of every string
+ * indexes    entry count, then (long key, int record number) entries per index
+ * </pre>
+ */
+class SnapshotFile implements Closeable {
+
+    static final int MAGIC = 0x4F4B5441;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 6 * 4 + 4 * 8;
+    static final int INDEX_ENTRY_SIZE = 8 + 4;
+    static final int NULL_STRING = -1;
+    static final long NULL_LONG = Long.MIN_VALUE;
+    private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+    private final RandomAccessFile file;
+    private final int recordCount;
+    private final int recordWidth;
+    private final int dictionaryCount;
+    private final long dictionaryLength;
+    private final MappedByteBuffer records;
+    private final MappedByteBuffer offsets;
+    private final MappedByteBuffer dictionary;
+    private final MappedByteBuffer[] indexes;
+
+    SnapshotFile(File f, int expectedRecordWidth) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a snapshot file: " + f);
+            }
+            recordCount = header.getInt();
+            recordWidth = header.getInt();
+            dictionaryCount = header.getInt();
+            int indexCount = header.getInt();
+            long recordsOffset = header.getLong();
+            long offsetsOffset = header.getLong();
+            long dictionaryOffset = header.getLong();
+            dictionaryLength = header.getLong();
+            if (recordWidth != expectedRecordWidth) {
+                throw new IOException("Snapshot " + f + " has records of " + recordWidth + " bytes, expected "
+                        + expectedRecordWidth);
+            }
+
+            ByteBuffer indexHeader = ByteBuffer.allocate(8 * indexCount);
+            channel.read(indexHeader, HEADER_SIZE);
+            indexHeader.flip();
+
+            records = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, (long) recordCount * recordWidth);
+            offsets = channel.map(FileChannel.MapMode.READ_ONLY, offsetsOffset, 8L * dictionaryCount);
+            dictionary = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, dictionaryLength);
+            indexes = new MappedByteBuffer[indexCount];
+            for (int i = 0; i < indexCount; i++) {
+                long indexOffset = indexHeader.getLong();
+                ByteBuffer size = ByteBuffer.allocate(4);
+                channel.read(size, indexOffset);
+                size.flip();
+                indexes[i] = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset + 4,
+                        (long) size.getInt() * INDEX_ENTRY_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    int getInt(int recordNumber, int offset) {
+        return records.getInt(recordNumber * recordWidth + offset);
+    }
+
+    long getLong(int recordNumber, int offset) {
+        return records.getLong(recordNumber * recordWidth + offset);
+    }
+
+    byte getByte(int recordNumber, int offset) {
+        return records.get(recordNumber * recordWidth + offset);
+    }
+
+    Long getNullableLong(int recordNumber, int offset) {
+        long value = getLong(recordNumber, offset);
+        return value == NULL_LONG ? null : value;
+    }
+
+    String getString(int recordNumber, int offset) {
+        return getDictionaryString(getInt(recordNumber, offset));
+    }
+
+    String getDictionaryString(int id) {
+        if (id == NULL_STRING) {
+            return null;
+        }
+        long start = offsets.getLong(id * 8);
+        long end = id + 1 < dictionaryCount ? offsets.getLong((id + 1) * 8) : dictionaryLength;
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer view = dictionary.duplicate();
+        view.position((int) start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the record numbers stored under a key, in record order.
+     *
+     * @param index the index to search
+     * @param key the key
+     * @return the matching record numbers, possibly empty
+     */
+    int[] find(int index, long key) {
+        ByteBuffer entries = indexes[index];
+        int size = entries.capacity() / INDEX_ENTRY_SIZE;
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries.getLong(middle * INDEX_ENTRY_SIZE) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int end = low;
+        while (end < size && entries.getLong(end * INDEX_ENTRY_SIZE) == key) {
+            end++;
+        }
+        int[] recordNumbers = new int[end - low];
+        for (int i = low; i < end; i++) {
+            recordNumbers[i - low] = entries.getInt(i * INDEX_ENTRY_SIZE + 8);
+        }
+        return recordNumbers;
+    }
+
+    static long hash(String key) {
+        return KEY_HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    static long toLong(Long value) {
+        return value == null ? NULL_LONG : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
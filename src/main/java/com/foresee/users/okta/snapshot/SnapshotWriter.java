@@ -0,0 +1,272 @@
+package com.foresee.users.okta.snapshot;
+
+import com.google.common.collect.Maps;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.foresee.users.okta.snapshot.SnapshotFile.HEADER_SIZE;
+import static com.foresee.users.okta.snapshot.SnapshotFile.INDEX_ENTRY_SIZE;
+import static com.foresee.users.okta.snapshot.SnapshotFile.MAGIC;
+import static com.foresee.users.okta.snapshot.SnapshotFile.NULL_STRING;
+import static com.foresee.users.okta.snapshot.SnapshotFile.VERSION;
+
+/**
+ * Writes a {@link SnapshotFile}.
+ * <p>
+ * Records and dictionary strings are streamed to temporary files as they are added; only the index keys and the
+ * dictionary entries of low cardinality columns are held in memory. The snapshot replaces the target file once it
+ * is complete, so a reader never sees a partly written snapshot.
+ * </p>
+ */
+class SnapshotWriter implements Closeable {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+    private final int recordWidth;
+    private final File recordsFile;
+    private final File dictionaryFile;
+    private final File offsetsFile;
+    private final DataOutputStream records;
+    private final DataOutputStream dictionary;
+    private final DataOutputStream offsets;
+    private final Map<String, Integer> sharedStrings = Maps.newHashMap();
+    private final ByteBuffer record;
+    private final Index[] indexes;
+    private int recordCount;
+    private int dictionaryCount;
+    private long dictionaryLength;
+
+    SnapshotWriter(File file, int recordWidth, int indexCount) throws IOException {
+        this.file = file;
+        this.recordWidth = recordWidth;
+        this.recordsFile = new File(file.getPath() + ".records" + TEMP_SUFFIX);
+        this.dictionaryFile = new File(file.getPath() + ".dictionary" + TEMP_SUFFIX);
+        this.offsetsFile = new File(file.getPath() + ".offsets" + TEMP_SUFFIX);
+        this.records = open(recordsFile);
+        this.dictionary = open(dictionaryFile);
+        this.offsets = open(offsetsFile);
+        this.record = ByteBuffer.allocate(recordWidth);
+        this.indexes = new Index[indexCount];
+        for (int i = 0; i < indexCount; i++) {
+            indexes[i] = new Index();
+        }
+    }
+
+    /**
+     * @return the buffer to fill with the next record, cleared
+     */
+    ByteBuffer startRecord() {
+        record.clear();
+        return record;
+    }
+
+    /**
+     * Write the record filled in since {@link #startRecord()}.
+     *
+     * @return the record number
+     */
+    int endRecord() throws IOException {
+        records.write(record.array(), 0, recordWidth);
+        return recordCount++;
+    }
+
+    /**
+     * Add a string to the dictionary.
+     *
+     * @param value the string, may be null
+     * @param shared true for low cardinality values, which are stored only once
+     * @return the dictionary id to store in the record
+     */
+    int addString(String value, boolean shared) throws IOException {
+        if (value == null) {
+            return NULL_STRING;
+        }
+        if (shared) {
+            Integer id = sharedStrings.get(value);
+            if (id != null) {
+                return id;
+            }
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        offsets.writeLong(dictionaryLength);
+        dictionary.write(bytes);
+        dictionaryLength += bytes.length;
+        int id = dictionaryCount++;
+        if (shared) {
+            sharedStrings.put(value, id);
+        }
+        return id;
+    }
+
+    void index(int index, long key, int recordNumber) {
+        indexes[index].add(key, recordNumber);
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.close();
+        dictionary.close();
+        offsets.close();
+
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            channel.position(HEADER_SIZE + 8L * indexes.length);
+
+            long recordsOffset = channel.position();
+            transfer(recordsFile, channel);
+            long offsetsOffset = channel.position();
+            transfer(offsetsFile, channel);
+            long dictionaryOffset = channel.position();
+            transfer(dictionaryFile, channel);
+
+            long[] indexOffsets = new long[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                indexOffsets[i] = channel.position();
+                indexes[i].writeTo(channel);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8 * indexes.length);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(recordCount)
+                    .putInt(recordWidth)
+                    .putInt(dictionaryCount)
+                    .putInt(indexes.length)
+                    .putLong(recordsOffset)
+                    .putLong(offsetsOffset)
+                    .putLong(dictionaryOffset)
+                    .putLong(dictionaryLength);
+            for (long indexOffset : indexOffsets) {
+                header.putLong(indexOffset);
+            }
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        } finally {
+            recordsFile.delete();
+            dictionaryFile.delete();
+            offsetsFile.delete();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static DataOutputStream open(File f) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+    }
+
+    private static void transfer(File from, FileChannel to) throws IOException {
+        if (from.length() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Snapshot section " + from.getName() + " is too large to map");
+        }
+        try (FileChannel in = new RandomAccessFile(from, "r").getChannel()) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, to);
+            }
+        }
+    }
+
+    /**
+     * Index entries, sorted by key when written so that readers can binary search them.
+     */
+    private static class Index {
+        private long[] keys = new long[1024];
+        private int[] recordNumbers = new int[1024];
+        private int size;
+
+        void add(long key, int recordNumber) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                recordNumbers = Arrays.copyOf(recordNumbers, size * 2);
+            }
+            keys[size] = key;
+            recordNumbers[size] = recordNumber;
+            size++;
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            if ((long) size * INDEX_ENTRY_SIZE > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Snapshot index is too large to map");
+            }
+            sort(0, size - 1);
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 64 * 1024 * INDEX_ENTRY_SIZE);
+            buffer.putInt(size);
+            for (int i = 0; i < size; i++) {
+                if (buffer.remaining() < INDEX_ENTRY_SIZE) {
+                    flush(buffer, channel);
+                }
+                buffer.putLong(keys[i]).putInt(recordNumbers[i]);
+            }
+            flush(buffer, channel);
+        }
+
+        private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // Quicksort over the two parallel arrays, ordered by key and then by record number
+        private void sort(int low, int high) {
+            while (low < high) {
+                int middle = low + (high - low) / 2;
+                long pivotKey = keys[middle];
+                int pivotRecord = recordNumbers[middle];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (compare(i, pivotKey, pivotRecord) < 0) {
+                        i++;
+                    }
+                    while (compare(j, pivotKey, pivotRecord) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // Recurse into the smaller half to keep the stack shallow
+                if (j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private int compare(int i, long key, int recordNumber) {
+            int result = Long.compare(keys[i], key);
+            return result != 0 ? result : Integer.compare(recordNumbers[i], recordNumber);
+        }
+
+        private void swap(int i, int j) {
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            int recordNumber = recordNumbers[i];
+            recordNumbers[i] = recordNumbers[j];
+            recordNumbers[j] = recordNumber;
+        }
+    }
+}
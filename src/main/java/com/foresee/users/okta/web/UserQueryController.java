@@ -0,0 +1,104 @@
+package com.foresee.users.okta.web;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.service.ReconciliationDaemon;
+import com.foresee.users.okta.service.UserQueryIndex;
+import com.foresee.users.okta.service.UserQueryIndex.JoinedUser;
+import com.foresee.users.okta.service.UserQueryIndex.Page;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Looks users up in the {@link UserQueryIndex} of the {@link ReconciliationDaemon}, for tools that would otherwise
+ * call Okta for each user or search the reports.
+ * <ul>
+ * <li>{@code GET /users/okta-id/{oktaId}}, {@code /users/foresee-id/{foreseeId}} and {@code /users/login?login=}
+ * return one user, or 404</li>
+ * <li>{@code GET /users?clientId=&status=&category=&offset=&limit=} returns a page of the users that pass every
+ * filter given</li>
+ * <li>{@code GET /users/categories} lists the reports users can be filtered by</li>
+ * </ul>
+ * Every call answers 503 until the daemon has built its first index.
+ */
+@RestController
+@RequestMapping("/users")
+@ConditionalOnProperty(name = "okta.daemon.enabled", havingValue = "true")
+public class UserQueryController {
+
+    private static final int MAX_LIMIT = 1000;
+
+    @Autowired
+    private ReconciliationDaemon reconciliationDaemon;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    @GetMapping("/okta-id/{oktaId}")
+    public ResponseEntity<JoinedUser> findByOktaId(@PathVariable String oktaId) {
+        return lookUp("okta-id", index -> index.findByOktaId(oktaId));
+    }
+
+    @GetMapping("/foresee-id/{foreseeId}")
+    public ResponseEntity<JoinedUser> findByForeseeId(@PathVariable long foreseeId) {
+        return lookUp("foresee-id", index -> index.findByForeseeId(foreseeId));
+    }
+
+    // Logins end in a domain, which Spring would take for a file extension in the path
+    @GetMapping("/login")
+    public ResponseEntity<JoinedUser> findByLogin(@RequestParam String login) {
+        return lookUp("login", index -> index.findByLogin(login));
+    }
+
+    @GetMapping
+    public ResponseEntity<Page> find(@RequestParam(required = false) Long clientId,
+                                     @RequestParam(required = false) UserStatus status,
+                                     @RequestParam(required = false) String category,
+                                     @RequestParam(defaultValue = "0") int offset,
+                                     @RequestParam(defaultValue = "100") int limit) {
+        if (offset < 0 || limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("offset must be at least 0 and limit from 1 to " + MAX_LIMIT);
+        }
+        UserQueryIndex index = reconciliationDaemon.getQueryIndex();
+        if (index == null) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        try (Timer.Context ignored = metricRegistry.timer("query.find").time()) {
+            return ResponseEntity.ok(index.find(clientId, status, category, offset, limit));
+        }
+    }
+
+    @GetMapping("/categories")
+    public List<String> getCategories() {
+        return UserQueryIndex.getCategories();
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+
+    private ResponseEntity<JoinedUser> lookUp(String key, Function<UserQueryIndex, JoinedUser> lookup) {
+        UserQueryIndex index = reconciliationDaemon.getQueryIndex();
+        if (index == null) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        JoinedUser user;
+        try (Timer.Context ignored = metricRegistry.timer(MetricRegistry.name("query", key)).time()) {
+            user = lookup.apply(index);
+        }
+        return user != null ? ResponseEntity.ok(user) : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+}
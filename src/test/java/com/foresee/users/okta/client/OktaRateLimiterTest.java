@@ -0,0 +1,163 @@
+package com.foresee.users.okta.client;
+
+import com.codahale.metrics.MetricRegistry;
+import feign.FeignException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OktaRateLimiterTest {
+
+    // On a whole second, as X-Rate-Limit-Reset counts in seconds
+    private static final long START_MILLIS = 1500000000000L;
+
+    private final AtomicLong now = new AtomicLong(START_MILLIS);
+    private ExecutorService executor;
+    private OktaRateLimiter rateLimiter;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        rateLimiter = newRateLimiter();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void waitsForTheWindowToResetOnceTheBudgetIsUsedUp() throws Exception {
+        rateLimiter.execute(OktaEndpoint.USERS, () -> response("10", "0", resetInSeconds(1)));
+        assertThat(rateLimiter.getRemainingFraction(OktaEndpoint.USERS)).isEqualTo(0);
+
+        Future<ResponseEntity<String>> waiting = executor.submit(() ->
+                rateLimiter.execute(OktaEndpoint.USERS, () -> response("10", "9", resetInSeconds(61))));
+        assertWaiting(waiting);
+
+        // Past the reset and the margin allowed for clock skew
+        now.addAndGet(2001);
+        assertThat(waiting.get(5, TimeUnit.SECONDS).getBody()).isEqualTo("ok");
+        assertThat(rateLimiter.getRemainingFraction(OktaEndpoint.USERS)).isEqualTo(0.9);
+    }
+
+    @Test
+    public void retriesA429OnceTheWindowResets() throws Exception {
+        rateLimiter.execute(OktaEndpoint.USERS, () -> response("10", "5", resetInSeconds(1)));
+        // Past the pause between calls that spreads the budget over the window
+        now.addAndGet(500);
+
+        AtomicInteger attempts = new AtomicInteger();
+        Future<ResponseEntity<String>> retrying = executor.submit(() ->
+                rateLimiter.execute(OktaEndpoint.USERS, () -> {
+                    if (attempts.getAndIncrement() == 0) {
+                        throw new FeignException(HttpStatus.TOO_MANY_REQUESTS.value(), "Too Many Requests") {
+                        };
+                    }
+                    return response("10", "9", resetInSeconds(61));
+                }));
+        assertWaiting(retrying);
+        assertThat(attempts.get()).isEqualTo(1);
+
+        now.addAndGet(1501);
+        assertThat(retrying.get(5, TimeUnit.SECONDS).getBody()).isEqualTo("ok");
+        assertThat(attempts.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void throwsA429OnceOutOfRetries() {
+        ReflectionTestUtils.setField(rateLimiter, "maxRetries", 0);
+
+        assertThatThrownBy(() -> rateLimiter.execute(OktaEndpoint.USERS, () -> {
+            throw new FeignException(HttpStatus.TOO_MANY_REQUESTS.value(), "Too Many Requests") {
+            };
+        })).isInstanceOf(FeignException.class);
+        assertThat(rateLimiter.getRemainingFraction(OktaEndpoint.USERS)).isEqualTo(1);
+    }
+
+    @Test
+    public void releasesWaitingCallsWhenAHeaderIsMalformed() throws Exception {
+        assertReleasesWaitingCalls(response("10", "ten", resetInSeconds(1)));
+        assertReleasesWaitingCalls(response("10", "9", "soon"));
+    }
+
+    @Test
+    public void releasesWaitingCallsWhenAHeaderIsMissing() throws Exception {
+        assertReleasesWaitingCalls(response("10", "9", null));
+        assertReleasesWaitingCalls(response("10", null, resetInSeconds(1)));
+        assertReleasesWaitingCalls(response(null, null, null));
+    }
+
+    // Until headers have been seen only one call is let through, so the second one waits for the first
+    private void assertReleasesWaitingCalls(ResponseEntity<String> firstResponse) throws Exception {
+        OktaRateLimiter rateLimiter = newRateLimiter();
+        CountDownLatch inCall = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Future<ResponseEntity<String>> first = executor.submit(() ->
+                rateLimiter.execute(OktaEndpoint.USERS, () -> {
+                    inCall.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return firstResponse;
+                }));
+        assertThat(inCall.await(5, TimeUnit.SECONDS)).isTrue();
+        Future<ResponseEntity<String>> second = executor.submit(() ->
+                rateLimiter.execute(OktaEndpoint.USERS, () -> response("10", "9", resetInSeconds(61))));
+        assertWaiting(second);
+
+        finish.countDown();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isSameAs(firstResponse);
+        assertThat(second.get(5, TimeUnit.SECONDS).getBody()).isEqualTo("ok");
+    }
+
+    private OktaRateLimiter newRateLimiter() {
+        OktaRateLimiter rateLimiter = new OktaRateLimiter();
+        ReflectionTestUtils.setField(rateLimiter, "metricRegistry", new MetricRegistry());
+        ReflectionTestUtils.setField(rateLimiter, "maxConcurrency", 8);
+        ReflectionTestUtils.setField(rateLimiter, "reserve", 0.0);
+        ReflectionTestUtils.setField(rateLimiter, "maxRetries", 1);
+        rateLimiter.clock = now::get;
+        return rateLimiter;
+    }
+
+    private String resetInSeconds(long seconds) {
+        return Long.toString(now.get() / 1000 + seconds);
+    }
+
+    private static void assertWaiting(Future<?> call) {
+        assertThatThrownBy(() -> call.get(300, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+    }
+
+    private static ResponseEntity<String> response(String limit, String remaining, String reset) {
+        HttpHeaders headers = new HttpHeaders();
+        if (limit != null) {
+            headers.add(OktaRateLimiter.HEADER_LIMIT, limit);
+        }
+        if (remaining != null) {
+            headers.add(OktaRateLimiter.HEADER_REMAINING, remaining);
+        }
+        if (reset != null) {
+            headers.add(OktaRateLimiter.HEADER_RESET, reset);
+        }
+        return new ResponseEntity<>("ok", headers, HttpStatus.OK);
+    }
+}
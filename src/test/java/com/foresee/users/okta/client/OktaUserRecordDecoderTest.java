@@ -0,0 +1,81 @@
+package com.foresee.users.okta.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.google.common.io.Resources;
+import com.google.common.reflect.TypeToken;
+import feign.Response;
+import feign.codec.DecodeException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class OktaUserRecordDecoderTest {
+
+    private static final Type RECORD_LIST = new TypeToken<List<OktaUserRecord>>() { }.getType();
+
+    private final OktaUserRecordDecoder decoder = new OktaUserRecordDecoder(new ObjectMapper().getFactory(),
+            (response, type) -> "delegated");
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void decodesACapturedPage() throws IOException {
+        byte[] page = Resources.toByteArray(Resources.getResource("okta/users-page.json"));
+
+        List<OktaUserRecord> users = (List<OktaUserRecord>) decoder.decode(response(page), RECORD_LIST);
+
+        assertThat(users).extracting("id", "status", "login", "clientId", "foreseeId", "lastLogin", "passwordChanged")
+                .containsExactly(
+                        tuple("00ub0oNGTSWTBKOLGLNR", UserStatus.ACTIVE, "isaac.brock@client1001.example.com",
+                                1001L, 5001L, "2018-02-14T09:12:45.000Z", "2017-03-01T16:41:02.000Z"),
+                        // Nulls, and unknown objects and arrays around and inside the profile
+                        tuple("00ub0oNGTSWTBKOLGLNS", UserStatus.PROVISIONED, "new.user@client1002.example.com",
+                                null, null, null, null),
+                        // Fields out of order, an unknown status and ids that are not numbers
+                        tuple("00ub0oNGTSWTBKOLGLNT", null, "odd.ids@example.com",
+                                null, null, "2018-02-01T00:00:00.000Z", null),
+                        tuple("00ub0oNGTSWTBKOLGLNU", UserStatus.SUSPENDED, null, null, null, null, null));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void decodesAnEmptyPage() throws IOException {
+        assertThat((List<OktaUserRecord>) decoder.decode(response(bytes("[]")), RECORD_LIST)).isEmpty();
+        assertThat((List<OktaUserRecord>) decoder.decode(response(bytes("")), RECORD_LIST)).isEmpty();
+    }
+
+    @Test
+    public void rejectsSomethingOtherThanAnArray() {
+        assertThatThrownBy(() -> decoder.decode(response(bytes("{\"errorCode\":\"E0000011\"}")), RECORD_LIST))
+                .isInstanceOf(DecodeException.class);
+    }
+
+    @Test
+    public void delegatesOtherTypes() throws IOException {
+        assertThat(decoder.decode(response(bytes("[]")), new TypeToken<List<String>>() { }.getType()))
+                .isEqualTo("delegated");
+        assertThat(decoder.decode(response(bytes("{}")), OktaUserRecord.class)).isEqualTo("delegated");
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Response response(byte[] body) {
+        return Response.builder()
+                .status(200)
+                .reason("OK")
+                .headers(Collections.emptyMap())
+                .body(body)
+                .build();
+    }
+}
@@ -0,0 +1,55 @@
+package com.foresee.users.okta.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void returnsWhatWasPutThroughGrowth() {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // Keys that only differ in their high bits, and zero and negatives, must not collide into one slot
+            long key = i % 3 == 0 ? (long) i << 40 : i % 3 == 1 ? -i : random.nextLong();
+            int previous = map.putIfAbsent(key, i);
+            Integer expectedPrevious = expected.putIfAbsent(key, i);
+            assertThat(previous).isEqualTo(expectedPrevious == null ? LongIntHashMap.NO_VALUE : expectedPrevious);
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+            assertThat(map.containsKey(entry.getKey())).isTrue();
+        }
+        assertThat(map.get(Long.MAX_VALUE - 7)).isEqualTo(LongIntHashMap.NO_VALUE);
+        assertThat(map.containsKey(Long.MAX_VALUE - 7)).isFalse();
+
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertThat(keys).containsExactly(expected.keySet().stream().mapToLong(Long::longValue).sorted().toArray());
+    }
+
+    @Test
+    public void keepsTheFirstValue() {
+        LongIntHashMap map = new LongIntHashMap(1);
+        assertThat(map.putIfAbsent(7, 1)).isEqualTo(LongIntHashMap.NO_VALUE);
+        assertThat(map.putIfAbsent(7, 2)).isEqualTo(1);
+        assertThat(map.get(7)).isEqualTo(1);
+        assertThat(map.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsNegativeValues() {
+        assertThatThrownBy(() -> new LongIntHashMap().putIfAbsent(1, -1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,76 @@
+package com.foresee.users.okta.index;
+
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OktaUserIndexTest {
+
+    private static final UserStatus[] STATUSES = UserStatus.values();
+
+    @Test
+    public void rebuildsEveryUserAsAdded() {
+        OktaUserIndex index = new OktaUserIndex();
+        List<OktaUserRecord> users = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            OktaUserRecord user = i % 7 == 0
+                    // Every field that can be missing is, including the id
+                    ? new OktaUserRecord(i % 14 == 0 ? null : oktaId(i), null, null, null, null, null, null)
+                    : new OktaUserRecord(oktaId(i), STATUSES[i % STATUSES.length], "user" + i + "@exämple.com",
+                    (long) (i % 50), (long) i, "2018-01-0" + (1 + i % 9) + "T00:00:00.000Z", "");
+            users.add(user);
+            assertThat(index.add(user)).isEqualTo(i);
+        }
+
+        assertThat(index.size()).isEqualTo(users.size());
+        assertThat(index.asList()).isEqualTo(users);
+        for (int i = 0; i < users.size(); i++) {
+            OktaUserRecord user = users.get(i);
+            assertThat(index.getStatus(i)).isEqualTo(user.getStatus());
+            assertThat(index.getClientId(i)).isEqualTo(user.getClientId());
+            assertThat(index.getForeseeId(i)).isEqualTo(user.getForeseeId());
+            assertThat(index.hasForeseeId(i)).isEqualTo(user.getForeseeId() != null);
+            if (user.getId() != null) {
+                assertThat(index.findByOktaId(user.getId())).isEqualTo(i);
+            }
+            if (user.getForeseeId() != null) {
+                assertThat(index.findByForeseeId(user.getForeseeId())).isEqualTo(i);
+                assertThat(index.containsForeseeId(user.getForeseeId())).isTrue();
+            }
+        }
+        assertThat(index.findByOktaId("00uUnknown")).isEqualTo(-1);
+        assertThat(index.findByForeseeId(-5)).isEqualTo(-1);
+        assertThat(index.getForeseeIds()).hasSize((int) users.stream().filter(u -> u.getForeseeId() != null).count());
+    }
+
+    @Test
+    public void findsTheFirstUserOfADuplicate() {
+        OktaUserIndex index = new OktaUserIndex();
+        index.add(new OktaUserRecord(oktaId(1), UserStatus.ACTIVE, "first", 1L, 10L, null, null));
+        index.add(new OktaUserRecord(oktaId(1), UserStatus.SUSPENDED, "second", 1L, 10L, null, null));
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.findByOktaId(oktaId(1))).isEqualTo(0);
+        assertThat(index.findByForeseeId(10)).isEqualTo(0);
+        assertThat(index.get(1).getLogin()).isEqualTo("second");
+    }
+
+    @Test
+    public void rejectsPositionsOutOfRange() {
+        OktaUserIndex index = new OktaUserIndex();
+        index.add(new OktaUserRecord(oktaId(1), UserStatus.ACTIVE, "user", null, null, null, null));
+
+        assertThatThrownBy(() -> index.get(1)).isInstanceOf(IndexOutOfBoundsException.class);
+        assertThatThrownBy(() -> index.get(-1)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    private static String oktaId(int i) {
+        return String.format("00u%017d", i);
+    }
+}
@@ -0,0 +1,38 @@
+package com.foresee.users.okta.index;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StringIntHashMapTest {
+
+    @Test
+    public void returnsWhatWasPutThroughGrowth() {
+        StringIntHashMap map = new StringIntHashMap();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            // Repeats, an empty key and keys beyond ASCII
+            String key = i == 0 ? "" : (i % 5 == 0 ? "ü" : "user") + (i % 40000) + "@example.com";
+            int previous = map.putIfAbsent(key, i);
+            Integer expectedPrevious = expected.putIfAbsent(key, i);
+            assertThat(previous).isEqualTo(expectedPrevious == null ? StringIntHashMap.NO_VALUE : expectedPrevious);
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+        }
+        assertThat(map.get("nobody@example.com")).isEqualTo(StringIntHashMap.NO_VALUE);
+        assertThat(map.get("user1@example.co")).isEqualTo(StringIntHashMap.NO_VALUE);
+    }
+
+    @Test
+    public void rejectsNegativeValues() {
+        assertThatThrownBy(() -> new StringIntHashMap().putIfAbsent("key", -1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
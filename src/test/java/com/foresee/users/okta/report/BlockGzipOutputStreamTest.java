@@ -0,0 +1,88 @@
+package com.foresee.users.okta.report;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockGzipOutputStreamTest {
+
+    @Test
+    public void decompressesToWhatWasWritten() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder();
+        try (BlockGzipOutputStream out = new BlockGzipOutputStream(compressed, 1024, Deflater.BEST_SPEED)) {
+            for (int i = 0; i < 20000; i++) {
+                String line = "00u" + i + ",user" + i + "@exämple.com," + (i % 13 == 0 ? "x" : "") + "\n";
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                if (i % 3 == 0) {
+                    for (byte b : bytes) {
+                        out.write(b);
+                    }
+                } else if (i % 3 == 1) {
+                    out.write(bytes);
+                } else {
+                    // Lines split over writes, so blocks have to be cut inside what was written
+                    out.write(bytes, 0, 5);
+                    out.write(bytes, 5, bytes.length - 5);
+                }
+                expected.append(line);
+            }
+            // A last line without a newline, longer than a block
+            for (int i = 0; i < 3000; i++) {
+                out.write('z');
+                expected.append('z');
+            }
+        }
+
+        byte[] bytes = compressed.toByteArray();
+        assertThat(countMembers(bytes)).isGreaterThan(100);
+        assertThat(decompress(bytes)).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void flushWritesWhatIsBuffered() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        BlockGzipOutputStream out = new BlockGzipOutputStream(compressed, 1 << 16, Deflater.DEFAULT_COMPRESSION);
+        out.write("first line\nno newline yet".getBytes(StandardCharsets.UTF_8));
+        assertThat(compressed.size()).isEqualTo(0);
+
+        out.flush();
+        assertThat(decompress(compressed.toByteArray())).isEqualTo("first line\nno newline yet");
+
+        out.write("\n".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        assertThat(decompress(compressed.toByteArray())).isEqualTo("first line\nno newline yet\n");
+    }
+
+    @Test
+    public void rejectsInvalidLevels() {
+        assertThatThrownBy(() -> new BlockGzipOutputStream(new ByteArrayOutputStream(), 1024, 10))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static String decompress(byte[] bytes) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Every member starts with the gzip magic and the deflate method, and none of them is empty
+    private static int countMembers(byte[] bytes) {
+        int members = 0;
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            if ((bytes[i] & 0xFF) == 0x1F && (bytes[i + 1] & 0xFF) == 0x8B && bytes[i + 2] == 8) {
+                members++;
+            }
+        }
+        return members;
+    }
+}
@@ -0,0 +1,97 @@
+package com.foresee.users.okta.report;
+
+import com.foresee.users.okta.report.ColumnarReport.Type;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ColumnarReportTest {
+
+    private static final int ROWS = 10000;
+    private static final long[] EXTREMES = {0, -1, Long.MAX_VALUE, Long.MIN_VALUE + 1, 42};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = new File(folder.getRoot(), "report.columnar");
+        long[] ids = new long[ROWS];
+        long[] timestamps = new long[ROWS];
+        String[] statuses = new String[ROWS];
+        String[] logins = new String[ROWS];
+        DateTime start = new DateTime(2018, 1, 1, 0, 0, DateTimeZone.UTC);
+        try (ColumnarReportWriter writer = new ColumnarReportWriter(file,
+                Arrays.asList("id", "lastLogin", "status", "login"),
+                Arrays.asList(Type.LONG, Type.TIMESTAMP, Type.DICTIONARY, Type.STRING))) {
+            for (int i = 0; i < ROWS; i++) {
+                ids[i] = i % 11 == 0 ? ColumnarReport.NULL_LONG : i < EXTREMES.length ? EXTREMES[i] : i * 1000L - 7;
+                DateTime timestamp = start.plusMinutes(i * 37).plusMillis(i);
+                timestamps[i] = i % 9 == 0 ? ColumnarReport.NULL_LONG : timestamp.getMillis();
+                statuses[i] = i % 17 == 0 ? null : "STATUS_" + i % 4;
+                logins[i] = i % 19 == 0 ? null : i % 23 == 0 ? "" : "user" + i + "@exämple.com";
+                String timestampValue = timestamps[i] == ColumnarReport.NULL_LONG ? null
+                        // Every other one with an offset, which goes through the general ISO parser
+                        : i % 2 == 0 ? timestamp.toString() : timestamp.withZone(DateTimeZone.forOffsetHours(-5))
+                        .toString();
+                writer.write(new String[]{
+                        ids[i] == ColumnarReport.NULL_LONG ? null : Long.toString(ids[i]),
+                        timestampValue,
+                        statuses[i],
+                        logins[i]});
+            }
+            assertThat(writer.getRowCount()).isEqualTo(ROWS);
+        }
+        assertThat(folder.getRoot().list()).containsExactly("report.columnar");
+
+        ColumnarReport report = ColumnarReport.open(file);
+        assertThat(report.getRowCount()).isEqualTo(ROWS);
+        assertThat(report.getColumnNames()).containsExactly("id", "lastLogin", "status", "login");
+        assertThat(report.getType("status")).isEqualTo(Type.DICTIONARY);
+        assertThat(report.readLongs("id")).isEqualTo(ids);
+        assertThat(report.readLongs("lastLogin")).isEqualTo(timestamps);
+        assertThat(report.readStrings("status")).isEqualTo(statuses);
+        assertThat(report.readStrings("login")).isEqualTo(logins);
+    }
+
+    @Test
+    public void skipsARowThatDoesNotParse() throws IOException {
+        File file = new File(folder.getRoot(), "report.columnar");
+        try (ColumnarReportWriter writer = new ColumnarReportWriter(file,
+                Arrays.asList("id", "name"), Arrays.asList(Type.LONG, Type.STRING))) {
+            writer.write(new String[]{"1", "one"});
+            assertThatThrownBy(() -> writer.write(new String[]{"two", "two"}))
+                    .isInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> writer.write(new String[]{"3"}))
+                    .isInstanceOf(IllegalArgumentException.class);
+            writer.write(new String[]{"4", "four"});
+        }
+
+        ColumnarReport report = ColumnarReport.open(file);
+        assertThat(report.readLongs("id")).containsExactly(1, 4);
+        assertThat(report.readStrings("name")).containsExactly("one", "four");
+        assertThatThrownBy(() -> report.readLongs("name")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> report.readLongs("missing")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("report.csv");
+        Files.write("id,name\n1,one\n".getBytes(StandardCharsets.UTF_8), file);
+
+        assertThatThrownBy(() -> ColumnarReport.open(file))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Not a columnar report");
+    }
+}
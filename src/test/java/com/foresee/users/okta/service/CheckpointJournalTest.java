@@ -0,0 +1,152 @@
+package com.foresee.users.okta.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CheckpointJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "checkpoints.jsonl");
+    }
+
+    @Test
+    public void replaysWhatWasAppended() throws IOException {
+        try (CheckpointJournal<Entry> journal = open()) {
+            assertThat(journal.replay(e -> { })).isEqualTo(0);
+            for (int i = 0; i < 5; i++) {
+                journal.append(new Entry(i, "entry \"" + i + "\" ü"));
+            }
+        }
+
+        List<Entry> replayed = new ArrayList<>();
+        try (CheckpointJournal<Entry> journal = open()) {
+            assertThat(journal.replay(replayed::add)).isEqualTo(5);
+            journal.append(new Entry(5, "after replay"));
+        }
+        assertThat(replayed).extracting("name").containsExactly(
+                "entry \"0\" ü", "entry \"1\" ü", "entry \"2\" ü", "entry \"3\" ü", "entry \"4\" ü");
+
+        assertThat(replayAll()).extracting("id").containsExactly(0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void dropsATornTail() throws IOException {
+        try (CheckpointJournal<Entry> journal = open()) {
+            journal.replay(e -> { });
+            journal.append(new Entry(0, "first"));
+            journal.append(new Entry(1, "second"));
+        }
+        // What a process that died halfway through an append leaves behind
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("{\"id\":2,\"na".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (CheckpointJournal<Entry> journal = open()) {
+            List<Entry> replayed = new ArrayList<>();
+            assertThat(journal.replay(replayed::add)).isEqualTo(2);
+            assertThat(replayed).extracting("id").containsExactly(0, 1);
+            // Appends go where the torn line started, not after it
+            journal.append(new Entry(2, "third"));
+        }
+
+        assertThat(replayAll()).extracting("name").containsExactly("first", "second", "third");
+    }
+
+    @Test
+    public void dropsACompleteEntryWithoutItsNewline() throws IOException {
+        try (CheckpointJournal<Entry> journal = open()) {
+            journal.replay(e -> { });
+            journal.append(new Entry(0, "first"));
+            journal.append(new Entry(1, "second"));
+        }
+        // The process died after writing the entry but before its newline
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("{\"id\":2,\"name\":\"torn\"}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (CheckpointJournal<Entry> journal = open()) {
+            assertThat(journal.replay(e -> { })).isEqualTo(2);
+            journal.append(new Entry(3, "fourth"));
+            journal.append(new Entry(4, "fifth"));
+        }
+
+        assertThat(replayAll()).extracting("id").containsExactly(0, 1, 3, 4);
+    }
+
+    @Test
+    public void stopsAtALineWithTwoEntries() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("{\"id\":0,\"name\":\"first\"}\n{\"id\":1,\"name\":\"a\"}{\"id\":2,\"name\":\"b\"}\n"
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThat(replayAll()).extracting("id").containsExactly(0);
+    }
+
+    @Test
+    public void restartDropsEveryEntry() throws IOException {
+        try (CheckpointJournal<Entry> journal = open()) {
+            journal.replay(e -> { });
+            journal.append(new Entry(0, "old"));
+            journal.restart();
+            journal.append(new Entry(1, "new"));
+        }
+
+        assertThat(replayAll()).extracting("name").containsExactly("new");
+    }
+
+    @Test
+    public void completeDeletesTheJournal() throws IOException {
+        CheckpointJournal<Entry> journal = open();
+        journal.replay(e -> { });
+        journal.append(new Entry(0, "done"));
+        journal.complete();
+
+        assertThat(file).doesNotExist();
+        assertThat(replayAll()).isEmpty();
+    }
+
+    private CheckpointJournal<Entry> open() {
+        return new CheckpointJournal<>(file, objectMapper, Entry.class, 2);
+    }
+
+    private List<Entry> replayAll() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (CheckpointJournal<Entry> journal = open()) {
+            journal.replay(entries::add);
+        }
+        return entries;
+    }
+
+    public static class Entry {
+        public int id;
+        public String name;
+
+        public Entry() {
+        }
+
+        Entry(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.foresee.users.okta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.foresee.okta.domain.user.UserStatus;
+import com.foresee.okta.util.OktaUserUtil;
+import com.foresee.users.okta.domain.AppUserRecord;
+import com.foresee.users.okta.domain.OktaUserRecord;
+import com.foresee.users.okta.index.OktaUserIndex;
+import com.foresee.users.okta.service.UserService.LogFile;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UserServiceClassificationTest {
+
+    private static final int ROWS = 20000;
+    private static final String SUFFIX = "@example.com";
+
+    private final List<String> corrections = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger loginLookups = new AtomicInteger();
+    private UserService userService;
+
+    @Before
+    public void setUp() throws Exception {
+        OktaUserUtil oktaUserUtil = mock(OktaUserUtil.class);
+        when(oktaUserUtil.getOktaUsername(anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    loginLookups.incrementAndGet();
+                    return invocation.getArguments()[0] + SUFFIX;
+                });
+
+        AppUserWriteBack appUserWriteBack = mock(AppUserWriteBack.class);
+        doAnswer(invocation -> {
+            AppUserRecord foreseeUser = (AppUserRecord) invocation.getArguments()[0];
+            corrections.add(foreseeUser.getUserName() + "->" + invocation.getArguments()[1]);
+            return null;
+        }).when(appUserWriteBack).oktaId(org.mockito.Matchers.any(AppUserRecord.class), anyString());
+
+        ReconciliationRuleEngine ruleEngine = new ReconciliationRuleEngine();
+        ruleEngine.init();
+
+        userService = new UserService();
+        ReflectionTestUtils.setField(userService, "oktaUserUtil", oktaUserUtil);
+        ReflectionTestUtils.setField(userService, "appUserWriteBack", appUserWriteBack);
+        ReflectionTestUtils.setField(userService, "ruleEngine", ruleEngine);
+        ReflectionTestUtils.setField(userService, "groupEnricher", mock(GroupEnricher.class));
+        ReflectionTestUtils.setField(userService, "metricRegistry", new MetricRegistry());
+        ReflectionTestUtils.setField(userService, "writeBack", true);
+        userService.registerMetrics();
+    }
+
+    @Test
+    public void parallelClassificationMatchesSequential() {
+        OktaUserIndex oktaUsers = new OktaUserIndex();
+        List<AppUserRecord> foreseeUsers = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            oktaUsers.add(oktaUser(i, "user" + i));
+        }
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 10 == 0) {
+                // Shares its OKTA_ID with a row at the end of the table, which ends up in another slice
+                foreseeUsers.add(appUser(i, "user" + i, oktaId(i)));
+            } else if (i % 10 == 1) {
+                // A wrong OKTA_ID, which write-back corrects to the Okta user with the row's foreseeId
+                foreseeUsers.add(appUser(i, "user" + i, "00uMissing" + i));
+            } else if (i % 10 == 2) {
+                foreseeUsers.add(appUser(i, "user" + i, null));
+            } else {
+                foreseeUsers.add(appUser(i, "user" + i, oktaId(i)));
+            }
+        }
+        for (int i = 0; i < ROWS / 2; i += 10) {
+            // Claims the Okta user of row i with the same login, but comes after it
+            foreseeUsers.add(appUser(i, "user" + i, oktaId(i)));
+            // Its OKTA_ID points at the Okta user row i + 1 is corrected to
+            foreseeUsers.add(appUser(ROWS + i, "user" + (i + 1), oktaId(i + 1)));
+        }
+
+        Map<LogFile, List<String>> sequentialReports = new EnumMap<>(LogFile.class);
+        ReflectionTestUtils.setField(userService, "classificationParallelism", 0);
+        BitSet sequentialClaims = userService.classify(foreseeUsers, oktaUsers, collectInto(sequentialReports));
+        List<String> sequentialCorrections = sortedCorrections();
+        // Once for each row with an OKTA_ID, however many checks need the login
+        assertThat(loginLookups.getAndSet(0)).isEqualTo(ROWS);
+
+        Map<LogFile, List<String>> parallelReports = new EnumMap<>(LogFile.class);
+        ReflectionTestUtils.setField(userService, "classificationParallelism", 8);
+        BitSet parallelClaims = userService.classify(foreseeUsers, oktaUsers, collectInto(parallelReports));
+        List<String> parallelCorrections = sortedCorrections();
+        assertThat(loginLookups.getAndSet(0)).isEqualTo(ROWS);
+
+        assertThat(parallelReports).isEqualTo(sequentialReports);
+        assertThat(parallelClaims).isEqualTo(sequentialClaims);
+        assertThat(parallelCorrections).isEqualTo(sequentialCorrections);
+
+        // Every duplicate comes second, so it is invalid, and only the first row of each pair is in the full list
+        assertThat(sequentialReports.get(LogFile.INVALID_OKTA_ID_FILE)).hasSize(ROWS / 10 + ROWS / 20 + ROWS / 20);
+        assertThat(sequentialReports.get(LogFile.FULL_USER_LIST)).hasSize(ROWS - ROWS / 10 * 2);
+        assertThat(sequentialCorrections).hasSize(ROWS / 10);
+        assertThat(sequentialClaims.cardinality()).isEqualTo(ROWS - ROWS / 10);
+    }
+
+    private List<String> sortedCorrections() {
+        List<String> sorted = new ArrayList<>(corrections);
+        Collections.sort(sorted);
+        corrections.clear();
+        return sorted;
+    }
+
+    private static ReportSink collectInto(Map<LogFile, List<String>> reports) {
+        return (logFile, message) -> reports.computeIfAbsent(logFile, l -> new ArrayList<>()).add(message);
+    }
+
+    private static String oktaId(int i) {
+        return String.format("00u%017d", i);
+    }
+
+    private static OktaUserRecord oktaUser(int i, String userName) {
+        return new OktaUserRecord(oktaId(i), UserStatus.ACTIVE, userName + SUFFIX, 1L, (long) i,
+                "2018-01-01T00:00:00.000Z", "2017-01-01T00:00:00.000Z");
+    }
+
+    private static AppUserRecord appUser(long id, String userName, String oktaId) {
+        return new AppUserRecord(1L, id, "Y", null, userName, SUFFIX, userName + SUFFIX, "Y", "PASSWORD_MIGRATED",
+                "FORESEE", oktaId, true, 1L);
+    }
+}
@@ -0,0 +1,46 @@
+package com.foresee.users.okta.snapshot;
+
+import com.foresee.users.okta.domain.AppUserRecord;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AppUserSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheLastLogonDateBackInItsZone() throws IOException {
+        DateTime newYork = new DateTime(2018, 2, 14, 9, 12, 45, DateTimeZone.forID("America/New_York"));
+        DateTime utc = new DateTime(2017, 12, 11, 0, 0, DateTimeZone.UTC);
+        File file = folder.newFile("app-users.snapshot");
+        AppUserSnapshot.write(file, Arrays.asList(user(1L, newYork), user(2L, utc), user(3L, null)));
+
+        DateTimeZone defaultZone = DateTimeZone.getDefault();
+        // A reader in another zone than the writer
+        DateTimeZone.setDefault(DateTimeZone.forID("Asia/Kolkata"));
+        try (AppUserSnapshot snapshot = AppUserSnapshot.open(file)) {
+            assertThat(snapshot.get(snapshot.findById(1L)).getLastLogonDate()).isEqualTo(newYork);
+            assertThat(snapshot.get(snapshot.findById(2L)).getLastLogonDate()).isEqualTo(utc);
+            assertThat(snapshot.get(snapshot.findById(3L)).getLastLogonDate()).isNull();
+            assertThat(snapshot.get(snapshot.findById(1L)).getLastLogonDate().toString())
+                    .isEqualTo("2018-02-14T09:12:45.000-05:00");
+        } finally {
+            DateTimeZone.setDefault(defaultZone);
+        }
+    }
+
+    private static AppUserRecord user(long id, DateTime lastLogonDate) {
+        return new AppUserRecord(1001L, id, "Y", lastLogonDate, "user" + id, null, "user" + id + "@example.com",
+                "Y", "ACTIVE", "OKTA", "00u" + id, true, 1L);
+    }
+}
@@ -0,0 +1,90 @@
+package com.foresee.users.okta.snapshot;
+
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SnapshotFileTest {
+
+    private static final int NAME = 0;
+    private static final int KIND = 4;
+    private static final int VALUE = 8;
+    private static final int FLAG = 16;
+    private static final int RECORD_WIDTH = 17;
+    private static final int RECORDS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = folder.newFile("records.snapshot");
+        try (SnapshotWriter writer = new SnapshotWriter(file, RECORD_WIDTH, 2)) {
+            for (int i = 0; i < RECORDS; i++) {
+                int name = writer.addString(i % 10 == 0 ? null : "name ü " + i, false);
+                int kind = writer.addString("kind" + i % 3, true);
+                ByteBuffer record = writer.startRecord();
+                record.putInt(NAME, name)
+                        .putInt(KIND, kind)
+                        .putLong(VALUE, SnapshotFile.toLong(i % 7 == 0 ? null : (long) i * -31))
+                        .put(FLAG, (byte) (i % 2));
+                int recordNumber = writer.endRecord();
+                assertThat(recordNumber).isEqualTo(i);
+                // Written out of key order and with duplicate keys
+                writer.index(0, RECORDS - i, recordNumber);
+                writer.index(1, i % 100, recordNumber);
+            }
+        }
+        assertThat(folder.getRoot().list()).containsExactly("records.snapshot");
+
+        try (SnapshotFile snapshot = new SnapshotFile(file, RECORD_WIDTH)) {
+            assertThat(snapshot.getRecordCount()).isEqualTo(RECORDS);
+            for (int i = 0; i < RECORDS; i++) {
+                assertThat(snapshot.getString(i, NAME)).isEqualTo(i % 10 == 0 ? null : "name ü " + i);
+                assertThat(snapshot.getString(i, KIND)).isEqualTo("kind" + i % 3);
+                assertThat(snapshot.getNullableLong(i, VALUE)).isEqualTo(i % 7 == 0 ? null : (long) i * -31);
+                assertThat(snapshot.getByte(i, FLAG)).isEqualTo((byte) (i % 2));
+                assertThat(snapshot.find(0, RECORDS - i)).containsExactly(i);
+            }
+            // Shared strings are stored once
+            assertThat(snapshot.getInt(3, KIND)).isEqualTo(snapshot.getInt(0, KIND));
+            assertThat(snapshot.find(1, 42)).hasSize(RECORDS / 100).startsWith(42, 142, 242);
+            assertThat(snapshot.find(0, RECORDS + 1)).isEmpty();
+            assertThat(snapshot.find(1, -1)).isEmpty();
+        }
+    }
+
+    @Test
+    public void readsAnEmptySnapshot() throws IOException {
+        File file = folder.newFile("empty.snapshot");
+        new SnapshotWriter(file, RECORD_WIDTH, 1).close();
+
+        try (SnapshotFile snapshot = new SnapshotFile(file, RECORD_WIDTH)) {
+            assertThat(snapshot.getRecordCount()).isEqualTo(0);
+            assertThat(snapshot.find(0, 1)).isEmpty();
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("records.snapshot");
+        new SnapshotWriter(file, RECORD_WIDTH, 1).close();
+        assertThatThrownBy(() -> new SnapshotFile(file, RECORD_WIDTH + 1))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("17 bytes");
+
+        File other = folder.newFile("other.snapshot");
+        Files.write(new byte[SnapshotFile.HEADER_SIZE], other);
+        assertThatThrownBy(() -> new SnapshotFile(other, RECORD_WIDTH))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Not a snapshot file");
+    }
+}